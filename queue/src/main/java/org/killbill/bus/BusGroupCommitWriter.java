@@ -0,0 +1,210 @@
+/*
+ * Copyright 2014-2019 Groupon, Inc
+ * Copyright 2014-2019 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.bus;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.killbill.bus.dao.BusEventModelDao;
+import org.killbill.commons.concurrent.Executors;
+import org.killbill.queue.DBBackedQueue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.SettableFuture;
+
+//
+// Group commit for non transactional posts: instead of each caller committing its own transaction, entries are enqueued and
+// a single writer thread inserts them in one transaction, as soon as maxEntries are pending or maxDelay has elapsed since the first one.
+// The future returned to each caller completes once the transaction has been committed (or failed).
+//
+public class BusGroupCommitWriter {
+
+    private static final Logger log = LoggerFactory.getLogger(BusGroupCommitWriter.class);
+
+    // How long the writer blocks waiting for a first entry, before checking whether it has been stopped
+    private static final long POLL_TIMEOUT_MS = 100;
+
+    private final DBBackedQueue<BusEventModelDao> dao;
+    private final int maxEntries;
+    private final long maxDelayNanos;
+    private final String threadName;
+    private final LinkedBlockingQueue<PendingEntry> pendingEntries;
+    private final AtomicBoolean isStarted;
+    // Submitters (read lock) vs stop (write lock): once stop has flipped isStarted, no entry can be enqueued behind the final drain
+    private final ReadWriteLock submitLock;
+
+    private ExecutorService writerExecutor;
+
+    public BusGroupCommitWriter(final DBBackedQueue<BusEventModelDao> dao, final int maxEntries, final long maxDelayMicros, final String threadName) {
+        this.dao = dao;
+        this.maxEntries = Math.max(1, maxEntries);
+        this.maxDelayNanos = TimeUnit.MICROSECONDS.toNanos(Math.max(0, maxDelayMicros));
+        this.threadName = threadName;
+        this.pendingEntries = new LinkedBlockingQueue<PendingEntry>();
+        this.isStarted = new AtomicBoolean(false);
+        this.submitLock = new ReentrantReadWriteLock();
+    }
+
+    public void start() {
+        if (!isStarted.compareAndSet(false, true)) {
+            return;
+        }
+
+        log.info("{}: Starting... maxEntries={}, maxDelayNanos={}", threadName, maxEntries, maxDelayNanos);
+        writerExecutor = Executors.newSingleThreadExecutor(threadName);
+        writerExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                write();
+            }
+        });
+    }
+
+    public void stop() {
+        submitLock.writeLock().lock();
+        try {
+            if (!isStarted.compareAndSet(true, false)) {
+                return;
+            }
+        } finally {
+            submitLock.writeLock().unlock();
+        }
+
+        log.info("{}: Shutdown...", threadName);
+        writerExecutor.shutdown();
+        try {
+            writerExecutor.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (final InterruptedException e) {
+            log.info("{} stop sequence has been interrupted", threadName);
+            Thread.currentThread().interrupt();
+        }
+
+        // Don't leave callers hanging: flush whatever was enqueued concurrently with the shutdown
+        final List<PendingEntry> leftOvers = new ArrayList<PendingEntry>();
+        pendingEntries.drainTo(leftOvers);
+        if (!leftOvers.isEmpty()) {
+            flush(leftOvers);
+        }
+    }
+
+    /**
+     * @param entry the entry to insert
+     * @return a future which completes once the entry has been committed
+     */
+    public Future<Void> submit(final BusEventModelDao entry) {
+        final SettableFuture<Void> future = SettableFuture.create();
+        submitLock.readLock().lock();
+        try {
+            if (!isStarted.get()) {
+                future.setException(new IllegalStateException(threadName + " is not started"));
+                return future;
+            }
+
+            pendingEntries.add(new PendingEntry(entry, future));
+            return future;
+        } finally {
+            submitLock.readLock().unlock();
+        }
+    }
+
+    private void write() {
+        final List<PendingEntry> batch = new ArrayList<PendingEntry>(maxEntries);
+        while (isStarted.get() || !pendingEntries.isEmpty()) {
+            try {
+                final PendingEntry first = pendingEntries.poll(POLL_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+
+                final long deadline = System.nanoTime() + maxDelayNanos;
+                while (batch.size() < maxEntries) {
+                    if (pendingEntries.drainTo(batch, maxEntries - batch.size()) > 0) {
+                        continue;
+                    }
+
+                    final long remainingNanos = deadline - System.nanoTime();
+                    if (remainingNanos <= 0) {
+                        break;
+                    }
+                    final PendingEntry next = pendingEntries.poll(remainingNanos, TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+            } catch (final InterruptedException e) {
+                log.info("{}: Writer got interrupted, exiting...", threadName);
+                Thread.currentThread().interrupt();
+                break;
+            } finally {
+                if (!batch.isEmpty()) {
+                    flush(batch);
+                    batch.clear();
+                }
+            }
+        }
+    }
+
+    private void flush(final List<PendingEntry> batch) {
+        final List<BusEventModelDao> entries = new ArrayList<BusEventModelDao>(batch.size());
+        for (final PendingEntry cur : batch) {
+            entries.add(cur.getEntry());
+        }
+
+        try {
+            dao.insertEntries(entries);
+            for (final PendingEntry cur : batch) {
+                cur.getFuture().set(null);
+            }
+        } catch (final Throwable e) {
+            // Don't let anything kill the writer thread: subsequent callers would never see their future complete
+            log.warn("{}: Failed to insert {} entries", threadName, entries.size(), e);
+            for (final PendingEntry cur : batch) {
+                cur.getFuture().setException(e);
+            }
+        }
+    }
+
+    private static final class PendingEntry {
+
+        private final BusEventModelDao entry;
+        private final SettableFuture<Void> future;
+
+        private PendingEntry(final BusEventModelDao entry, final SettableFuture<Void> future) {
+            this.entry = entry;
+            this.future = future;
+        }
+
+        public BusEventModelDao getEntry() {
+            return entry;
+        }
+
+        public SettableFuture<Void> getFuture() {
+            return future;
+        }
+    }
+}
@@ -18,13 +18,16 @@
 
 package org.killbill.bus;
 
+import java.io.IOException;
 import java.sql.Connection;
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Properties;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.annotation.Nullable;
@@ -41,6 +44,7 @@ import org.killbill.bus.api.PersistentBusConfig;
 import org.killbill.bus.dao.BusEventModelDao;
 import org.killbill.bus.dao.PersistentBusSqlDao;
 import org.killbill.bus.dispatching.BusCallableCallback;
+import org.killbill.bus.dispatching.IndexedEventBus;
 import org.killbill.clock.Clock;
 import org.killbill.clock.DefaultClock;
 import org.killbill.commons.jdbi.notification.DatabaseTransactionNotificationApi;
@@ -50,27 +54,36 @@ import org.killbill.queue.DBBackedQueue;
 import org.killbill.queue.DBBackedQueue.ReadyEntriesWithMetrics;
 import org.killbill.queue.DBBackedQueueWithInflightQueue;
 import org.killbill.queue.DBBackedQueueWithPolling;
+import org.killbill.queue.DefaultArchiver;
 import org.killbill.queue.DefaultQueueLifecycle;
+import org.killbill.queue.HistoryRetentionService;
 import org.killbill.queue.InTransaction;
+import org.killbill.queue.api.KeysetPage;
 import org.killbill.queue.api.PersistentQueueConfig.PersistentQueueMode;
+import org.killbill.queue.api.PersistentQueueEntryLifecycleState;
 import org.killbill.queue.api.QueueEvent;
+import org.killbill.queue.codec.EventTypeCache;
 import org.killbill.queue.dao.EventEntryModelDao;
 import org.killbill.queue.dispatching.BlockingRejectionExecutionHandler;
 import org.killbill.queue.dispatching.CallableCallbackBase;
 import org.killbill.queue.dispatching.Dispatcher;
+import org.killbill.queue.wakeup.QueueWakeupSources;
 import org.skife.config.ConfigurationObjectFactory;
 import org.skife.jdbi.v2.DBI;
 import org.skife.jdbi.v2.IDBI;
+import org.skife.jdbi.v2.ResultIterator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.codahale.metrics.Counter;
 import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.Timer;
-import com.fasterxml.jackson.core.JsonProcessingException;
 import com.google.common.base.Function;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Iterables;
-import com.google.common.eventbus.EventBusThatThrowsException;
+import com.google.common.eventbus.DeadEvent;
 
 /**
  * 职责：
@@ -85,9 +98,12 @@ public class DefaultPersistentBus extends DefaultQueueLifecycle implements Persi
 
     private static final Logger log = LoggerFactory.getLogger(DefaultPersistentBus.class);
 
+    // Upper bound on how long post() waits for the group commit writer (should never be reached unless the database is stuck)
+    private static final long GROUP_COMMIT_TIMEOUT_MS = 30000;
+
     private final DBI dbi;
     // 事件总线
-    private final EventBusThatThrowsException eventBusDelegate;
+    private final IndexedEventBus eventBusDelegate;
     // 基于数据库的队列
     private final DBBackedQueue<BusEventModelDao> dao;
     private final Clock clock;
@@ -95,11 +111,17 @@ public class DefaultPersistentBus extends DefaultQueueLifecycle implements Persi
     private final Profiling<Iterable<BusEventModelDao>, RuntimeException> prof;
     // 挖掘
     private final BusReaper reaper;
+    private final DefaultArchiver archiver;
+    private final HistoryRetentionService historyRetentionService;
     // 派发
     private final Dispatcher<BusEvent, BusEventModelDao> dispatcher;
+    // Only set in group commit mode
+    private final BusGroupCommitWriter groupCommitWriter;
 
     // Time it takes to handle the bus request (going through multiple handles potentially)
     private final Timer busHandlersProcessingTime;
+    // Entries directly completed, as there was no subscriber for them
+    private final Counter noSubscriberEntries;
 
     private final AtomicBoolean isInitialized;
     private final AtomicBoolean isStarted;
@@ -107,16 +129,9 @@ public class DefaultPersistentBus extends DefaultQueueLifecycle implements Persi
     // 从数据库中获取到event后会调用busCallableCallback#dispatch()方法来派发消息给订阅端
     private final BusCallableCallback busCallableCallback;
 
-    private static final class EventBusDelegate extends EventBusThatThrowsException {
-
-        public EventBusDelegate(final String busName) {
-            super(busName);
-        }
-    }
-
     @Inject
     public DefaultPersistentBus(@Named(QUEUE_NAME) final IDBI dbi, final Clock clock, final PersistentBusConfig config, final MetricRegistry metricRegistry, final DatabaseTransactionNotificationApi databaseTransactionNotificationApi) {
-        super(config.getTableName(), config, metricRegistry);
+        super(config.getTableName(), config, metricRegistry, QueueWakeupSources.create(config, dbi, databaseTransactionNotificationApi));
         this.dbi = (DBI) dbi;
         this.clock = clock;
         this.config = config;
@@ -124,7 +139,7 @@ public class DefaultPersistentBus extends DefaultQueueLifecycle implements Persi
         // 队列模式
         this.dao = config.getPersistentQueueMode() == PersistentQueueMode.STICKY_EVENTS ?
                    new DBBackedQueueWithInflightQueue<BusEventModelDao>(clock, dbi, PersistentBusSqlDao.class, config, dbBackedQId, metricRegistry, databaseTransactionNotificationApi) :
-                   new DBBackedQueueWithPolling<BusEventModelDao>(clock, dbi, PersistentBusSqlDao.class, config, dbBackedQId, metricRegistry);
+                   new DBBackedQueueWithPolling<BusEventModelDao>(clock, dbi, PersistentBusSqlDao.class, config, dbBackedQId, metricRegistry, getWakeupSource(), databaseTransactionNotificationApi);
 
         this.prof = new Profiling<Iterable<BusEventModelDao>, RuntimeException>();
         final ThreadFactory busThreadFactory = new ThreadFactory() {
@@ -137,17 +152,25 @@ public class DefaultPersistentBus extends DefaultQueueLifecycle implements Persi
         };
 
         this.busHandlersProcessingTime = metricRegistry.timer(MetricRegistry.name(DefaultPersistentBus.class, dbBackedQId, "busHandlersProcessingTime"));
+        this.noSubscriberEntries = metricRegistry.counter(MetricRegistry.name(DefaultPersistentBus.class, dbBackedQId, "noSubscriberEntries"));
 
-        this.eventBusDelegate = new EventBusDelegate("Killbill EventBus");
+        this.eventBusDelegate = new IndexedEventBus("Killbill EventBus", config.getFanOutThreads());
         this.isInitialized = new AtomicBoolean(false);
         this.isStarted = new AtomicBoolean(false);
         // 挖掘机
         this.reaper = new BusReaper(this.dao, config, clock);
+        // Only started in keepCompletedEntriesInPlace mode
+        this.archiver = new DefaultArchiver(this.dao, config, "BusArchiver");
+        // Only started when the history table is partitioned
+        this.historyRetentionService = new HistoryRetentionService(dbi, config, clock, "BusHistoryRetention", "created_date");
         // 从数据库获取到事件后的派发逻辑
         this.busCallableCallback = new BusCallableCallback(this);
         // 派发器，最终委派给busCallableCallback，而busCallableCallback又会调用 dispatchBusEventWithMetrics
         this.dispatcher = new Dispatcher<>(1, config, 10, TimeUnit.MINUTES, new LinkedBlockingQueue<Runnable>(config.getEventQueueCapacity()), busThreadFactory, new BlockingRejectionExecutionHandler(),
                                            clock, busCallableCallback, this);
+        this.groupCommitWriter = config.isGroupCommitEnabled() ?
+                                 new BusGroupCommitWriter(dao, config.getGroupCommitMaxEntries(), config.getGroupCommitMaxDelayMicros(), config.getTableName() + "-group-commit") :
+                                 null;
 
     }
 
@@ -166,7 +189,11 @@ public class DefaultPersistentBus extends DefaultQueueLifecycle implements Persi
 
         if (isInitialized.compareAndSet(false, true)) {
             dao.initialize();
+            eventBusDelegate.start();
             dispatcher.start();
+            if (groupCommitWriter != null) {
+                groupCommitWriter.start();
+            }
             return true;
         } else {
             return false;
@@ -192,6 +219,8 @@ public class DefaultPersistentBus extends DefaultQueueLifecycle implements Persi
                 // 启用挖掘机
                 reaper.start();
             }
+            archiver.start();
+            historyRetentionService.start();
             super.startQueue();
             return true;
         } else {
@@ -204,14 +233,21 @@ public class DefaultPersistentBus extends DefaultQueueLifecycle implements Persi
         if (isStarted.compareAndSet(true, false)) {
             isInitialized.set(false);
             reaper.stop();
+            archiver.stop();
+            historyRetentionService.stop();
+            if (groupCommitWriter != null) {
+                groupCommitWriter.stop();
+            }
             super.stopQueue();
             dispatcher.stop();
+            eventBusDelegate.stop();
             dao.close();
         }
     }
     // 从数据库获取事件，并派发给订阅端的逻辑
     @Override
     public DispatchResultMetrics doDispatchEvents() {
+        dao.reconcileApproximateNbReadyEntriesIfNeeded();
         // Step 1、 获取数据库事件
         final ReadyEntriesWithMetrics<BusEventModelDao> eventsWithMetrics = dao.getReadyEntries();
         final List<BusEventModelDao> events = eventsWithMetrics.getEntries();
@@ -222,19 +258,38 @@ public class DefaultPersistentBus extends DefaultQueueLifecycle implements Persi
 
         long ini = System.nanoTime();
         for (final BusEventModelDao cur : events) {
+            if (!hasSubscribers(cur)) {
+                // Nobody is interested in that event on this node: skip the deserialization and mark it as processed right away,
+                // the lifecycle complete threads will move it to history along with the other completed entries
+                noSubscriberEntries.inc();
+                dispatchCompletedOrFailedEvents(busCallableCallback.buildEntry(cur, clock.getUTCNow(), PersistentQueueEntryLifecycleState.PROCESSED, cur.getErrorCount()));
+                continue;
+            }
             // Step 2、 派发事件给订阅端
             dispatcher.dispatch(cur);
         }
         return new DispatchResultMetrics(events.size(), (System.nanoTime() - ini) + eventsWithMetrics.getTime());
     }
 
+    // Only looks at the class name: entries whose class cannot be loaded go through the regular path (and fail to deserialize)
+    private boolean hasSubscribers(final BusEventModelDao entry) {
+        final Class<?> eventClass;
+        try {
+            eventClass = EventTypeCache.getEventClass(entry.getClassName());
+        } catch (final ClassNotFoundException e) {
+            return true;
+        }
+        // DeadEvent handlers expect to see events without subscribers
+        return eventBusDelegate.hasSubscribers(eventClass) || eventBusDelegate.hasSubscribers(DeadEvent.class);
+    }
+
     /**
      * 将事件移到历史表中
      * @param completed
      */
     @Override
     public void doProcessCompletedEvents(final Iterable<? extends EventEntryModelDao> completed) {
-        busCallableCallback.moveCompletedOrFailedEvents((Iterable<BusEventModelDao>) completed);
+        busCallableCallback.moveCompletedOrFailedEvents(ImmutableList.<BusEventModelDao>copyOf(Iterables.filter(completed, BusEventModelDao.class)));
     }
 
     /**
@@ -244,11 +299,7 @@ public class DefaultPersistentBus extends DefaultQueueLifecycle implements Persi
      */
     @Override
     public void doProcessRetriedEvents(final Iterable<? extends EventEntryModelDao> retried) {
-        Iterator<? extends EventEntryModelDao> it = retried.iterator();
-        while (it.hasNext()) {
-            BusEventModelDao cur = (BusEventModelDao) it.next();
-            busCallableCallback.updateRetriedEvents(cur);
-        }
+        busCallableCallback.updateRetriedEvents(ImmutableList.<BusEventModelDao>copyOf(Iterables.filter(retried, BusEventModelDao.class)));
     }
 
     @Override
@@ -289,15 +340,25 @@ public class DefaultPersistentBus extends DefaultQueueLifecycle implements Persi
     public void post(final BusEvent event) throws EventBusException {
         try {
             if (isInitialized.get()) {
-                final String json = objectMapper.writeValueAsString(event);
+                final String json = eventCodec.encode(event);
                 final BusEventModelDao entry = new BusEventModelDao(CreatorName.get(), clock.getUTCNow(), event.getClass().getName(), json,
                                                                     event.getUserToken(), event.getSearchKey1(), event.getSearchKey2());
                 // 写数据库，并存到缓存中
-                dao.insertEntry(entry);
+                if (groupCommitWriter != null) {
+                    // Block until the writer thread has committed the entry
+                    groupCommitWriter.submit(entry).get(GROUP_COMMIT_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                } else {
+                    dao.insertEntry(entry);
+                }
 
             } else {
                 log.warn("Attempting to post event " + event + " in a non initialized bus");
             }
+        } catch (final InterruptedException e) {
+            log.warn("Interrupted while posting BusEvent " + event, e);
+            Thread.currentThread().interrupt();
+        } catch (final TimeoutException e) {
+            log.error("Timed out waiting for the group commit of BusEvent " + event + ", the event may or may not have been persisted", e);
         } catch (final Exception e) {
             log.error("Failed to post BusEvent " + event, e);
         }
@@ -312,8 +373,8 @@ public class DefaultPersistentBus extends DefaultQueueLifecycle implements Persi
 
         final String json;
         try {
-            json = objectMapper.writeValueAsString(event);
-        } catch (final JsonProcessingException e) {
+            json = eventCodec.encode(event);
+        } catch (final IOException e) {
             log.warn("Unable to serialize event " + event, e);
             return;
         }
@@ -338,6 +399,73 @@ public class DefaultPersistentBus extends DefaultQueueLifecycle implements Persi
         InTransaction.execute(dbi, connection, handler, PersistentBusSqlDao.class);
     }
 
+    /**
+     * 批量发布消息到队列 (single transaction, JDBC batch insert)
+     * @param events to be posted
+     * @throws EventBusException
+     */
+    @Override
+    public void post(final Iterable<? extends BusEvent> events) throws EventBusException {
+        try {
+            if (isInitialized.get()) {
+                final List<BusEventModelDao> entries = toBusEventModelDaos(events);
+                dao.insertEntries(entries);
+            } else {
+                log.warn("Attempting to post events " + events + " in a non initialized bus");
+            }
+        } catch (final Exception e) {
+            log.error("Failed to post BusEvents " + events, e);
+        }
+    }
+
+    @Override
+    public void postFromTransaction(final Iterable<? extends BusEvent> events, final Connection connection) throws EventBusException {
+        if (!isInitialized.get()) {
+            log.warn("Attempting to post events " + events + " in a non initialized bus");
+            return;
+        }
+
+        final List<BusEventModelDao> entries = toBusEventModelDaos(events);
+        if (entries.isEmpty()) {
+            return;
+        }
+
+        final InTransaction.InTransactionHandler<PersistentBusSqlDao, Void> handler = new InTransaction.InTransactionHandler<PersistentBusSqlDao, Void>() {
+
+            @Override
+            public Void withSqlDao(final PersistentBusSqlDao transactional) {
+                dao.insertEntriesFromTransaction(transactional, entries);
+                return null;
+            }
+        };
+
+        InTransaction.execute(dbi, connection, handler, PersistentBusSqlDao.class);
+    }
+
+    // Events which cannot be serialized are skipped, as in postFromTransaction(BusEvent, Connection)
+    private List<BusEventModelDao> toBusEventModelDaos(final Iterable<? extends BusEvent> events) {
+        final DateTime now = clock.getUTCNow();
+        final List<BusEventModelDao> entries = new ArrayList<BusEventModelDao>();
+        for (final BusEvent event : events) {
+            final String json;
+            try {
+                json = eventCodec.encode(event);
+            } catch (final IOException e) {
+                log.warn("Unable to serialize event " + event, e);
+                continue;
+            }
+
+            entries.add(new BusEventModelDao(CreatorName.get(),
+                                             now,
+                                             event.getClass().getName(),
+                                             json,
+                                             event.getUserToken(),
+                                             event.getSearchKey1(),
+                                             event.getSearchKey2()));
+        }
+        return entries;
+    }
+
     @Override
     public <T extends BusEvent> Iterable<BusEventWithMetadata<T>> getAvailableBusEventsForSearchKeys(final Long searchKey1, final Long searchKey2) {
         return getAvailableBusEventsForSearchKeysInternal((PersistentBusSqlDao) dao.getSqlDao(), null, searchKey1, searchKey2);
@@ -417,9 +545,52 @@ public class DefaultPersistentBus extends DefaultQueueLifecycle implements Persi
         return getHistoricalBusEventsForSearchKeysInternal((PersistentBusSqlDao) dao.getSqlDao(), minCreatedDate, null, searchKey2);
     }
 
+    @Override
+    public <T extends BusEvent> KeysetPage<BusEventWithMetadata<T>> getHistoricalBusEventsForSearchKey2(final DateTime minCreatedDate, final Long searchKey2, @Nullable final Long fromRecordId, final int limit) {
+        Preconditions.checkArgument(limit > 0, "limit should be positive, got %s", limit);
+        // Fetch one extra entry to know whether there is a next page
+        final List<BusEventModelDao> entries = ((PersistentBusSqlDao) dao.getSqlDao()).getHistoricalQueueEntriesForSearchKey2Page(minCreatedDate, searchKey2, fromRecordId == null ? 0L : fromRecordId, limit + 1, config.getHistoryTableName());
+        final List<BusEventWithMetadata<T>> page = new ArrayList<BusEventWithMetadata<T>>(Math.min(limit, entries.size()));
+        for (final BusEventModelDao entry : entries.subList(0, Math.min(limit, entries.size()))) {
+            page.add(this.<T>toBusEventWithMetadata(entry));
+        }
+        return new KeysetPage<BusEventWithMetadata<T>>(page, entries.size() > limit ? entries.get(limit).getRecordId() : null);
+    }
+
+    @Override
+    public <T extends BusEvent> ResultIterator<BusEventWithMetadata<T>> streamHistoricalBusEventsForSearchKey2(final DateTime minCreatedDate, final Long searchKey2) {
+        final ResultIterator<BusEventModelDao> entries = ((PersistentBusSqlDao) dao.getSqlDao()).getHistoricalQueueEntriesForSearchKey2(minCreatedDate, searchKey2, config.getHistoryTableName());
+        return new ResultIterator<BusEventWithMetadata<T>>() {
+            @Override
+            public void close() {
+                entries.close();
+            }
+
+            @Override
+            public boolean hasNext() {
+                return entries.hasNext();
+            }
+
+            @Override
+            public BusEventWithMetadata<T> next() {
+                return toBusEventWithMetadata(entries.next());
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
     @Override
     public long getNbReadyEntries(final DateTime maxCreatedDate) {
-        return dao.getNbReadyEntries(maxCreatedDate.toDate());
+        return dao.getExactNbReadyEntries(maxCreatedDate.toDate());
+    }
+
+    @Override
+    public long getApproximateNbReadyEntries() {
+        return dao.getApproximateNbReadyEntries();
     }
 
     @Override
@@ -431,7 +602,7 @@ public class DefaultPersistentBus extends DefaultQueueLifecycle implements Persi
     }
 
     /**
-     * 委派给guava eventBus
+     * 委派给 eventBusDelegate
      * @param event
      * @throws com.google.common.eventbus.EventBusException
      */
@@ -518,7 +689,7 @@ public class DefaultPersistentBus extends DefaultQueueLifecycle implements Persi
     }
 
     private <T extends BusEvent> BusEventWithMetadata<T> toBusEventWithMetadata(final BusEventModelDao entry) {
-        final T event = CallableCallbackBase.deserializeEvent(entry, objectMapper);
+        final T event = CallableCallbackBase.deserializeEvent(entry, eventCodec);
         return new BusEventWithMetadata<T>(entry.getRecordId(),
                                            entry.getUserToken(),
                                            entry.getCreatedDate(),
@@ -29,11 +29,12 @@ import org.killbill.bus.api.BusEvent;
 import org.killbill.bus.api.BusEventWithMetadata;
 import org.killbill.bus.api.PersistentBus;
 import org.killbill.bus.api.PersistentBusConfig;
+import org.killbill.bus.dispatching.IndexedEventBus;
+import org.killbill.queue.api.KeysetPage;
+import org.skife.jdbi.v2.ResultIterator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.google.common.eventbus.EventBusThatThrowsException;
-
 public class InMemoryPersistentBus implements PersistentBus {
 
     private static final Logger log = LoggerFactory.getLogger(InMemoryPersistentBus.class);
@@ -47,7 +48,7 @@ public class InMemoryPersistentBus implements PersistentBus {
         return true;
     }
 
-    public class EventBusDelegate extends EventBusThatThrowsException {
+    public class EventBusDelegate extends IndexedEventBus {
 
         public EventBusDelegate() {
             super("Bus");
@@ -105,6 +106,30 @@ public class InMemoryPersistentBus implements PersistentBus {
         }
     }
 
+    @Override
+    public void post(final Iterable<? extends BusEvent> events) throws EventBusException {
+        checkInitialized("post");
+        for (final BusEvent event : events) {
+            try {
+                delegate.postWithException(event);
+            } catch (final com.google.common.eventbus.EventBusException e) {
+                throw new EventBusException(e.getMessage(), e);
+            }
+        }
+    }
+
+    @Override
+    public void postFromTransaction(final Iterable<? extends BusEvent> events, final Connection connection) throws EventBusException {
+        checkInitialized("postFromTransaction");
+        for (final BusEvent event : events) {
+            try {
+                delegate.postWithException(event);
+            } catch (final com.google.common.eventbus.EventBusException e) {
+                throw new EventBusException(e.getMessage(), e);
+            }
+        }
+    }
+
     @Override
     public boolean initQueue() {
         if (config.isProcessingOff()) {
@@ -208,8 +233,23 @@ public class InMemoryPersistentBus implements PersistentBus {
         throw new UnsupportedOperationException("Guava doesn't expose the events to dispatch");
     }
 
+    @Override
+    public <T extends BusEvent> KeysetPage<BusEventWithMetadata<T>> getHistoricalBusEventsForSearchKey2(final DateTime minCreatedDate, final Long searchKey2, final Long fromRecordId, final int limit) {
+        throw new UnsupportedOperationException("Guava doesn't expose the events to dispatch");
+    }
+
+    @Override
+    public <T extends BusEvent> ResultIterator<BusEventWithMetadata<T>> streamHistoricalBusEventsForSearchKey2(final DateTime minCreatedDate, final Long searchKey2) {
+        throw new UnsupportedOperationException("Guava doesn't expose the events to dispatch");
+    }
+
     @Override
     public long getNbReadyEntries(final DateTime maxCreatedDate) {
         throw new UnsupportedOperationException("Guava doesn't expose the events to dispatch");
     }
+
+    @Override
+    public long getApproximateNbReadyEntries() {
+        throw new UnsupportedOperationException("Guava doesn't expose the events to dispatch");
+    }
 }
@@ -20,8 +20,12 @@ package org.killbill.bus.api;
 
 import java.sql.Connection;
 
+import javax.annotation.Nullable;
+
 import org.joda.time.DateTime;
+import org.killbill.queue.api.KeysetPage;
 import org.killbill.queue.api.QueueLifecycle;
+import org.skife.jdbi.v2.ResultIterator;
 
 /**
  * When an Iterable is returned, the client must iterate through all results to close the DB connection.
@@ -87,6 +91,25 @@ public interface PersistentBus extends QueueLifecycle {
      */
     void postFromTransaction(BusEvent event, Connection connection) throws EventBusException;
 
+    /**
+     * Post a batch of events asynchronously.
+     * All events are persisted on disk within a single transaction, using a JDBC batch insert
+     *
+     * @param events to be posted
+     * @throws EventBusException if bus not been started yet
+     */
+    void post(Iterable<? extends BusEvent> events) throws EventBusException;
+
+    /**
+     * Post a batch of events from within a transaction.
+     * Guarantees that the events are persisted on disk from within the same transaction, using a JDBC batch insert
+     *
+     * @param events     to be posted
+     * @param connection current connection
+     * @throws EventBusException if bus not been started yet
+     */
+    void postFromTransaction(Iterable<? extends BusEvent> events, Connection connection) throws EventBusException;
+
     /**
      * Retrieve all available bus events matching that search key
      *
@@ -186,6 +209,27 @@ public interface PersistentBus extends QueueLifecycle {
      */
     <T extends BusEvent> Iterable<BusEventWithMetadata<T>> getHistoricalBusEventsForSearchKey2(DateTime minCreatedDate, Long searchKey2);
 
+    /**
+     * Retrieve one page of historical bus events matching that search key, ordered by record_id
+     *
+     * @param minCreatedDate created_date cutoff, to limit the search
+     * @param searchKey2     the value for key2
+     * @param fromRecordId   the cursor returned by the previous page (KeysetPage#getNextRecordId), or null for the first page
+     * @param limit          the max number of entries in the page, must be positive
+     * @return a page of BusEventWithMetadata objects matching the search
+     */
+    <T extends BusEvent> KeysetPage<BusEventWithMetadata<T>> getHistoricalBusEventsForSearchKey2(DateTime minCreatedDate, Long searchKey2, @Nullable Long fromRecordId, int limit);
+
+    /**
+     * Stream all historical bus events matching that search key: rows are fetched from the database as the iterator is consumed.
+     * The iterator holds a database connection and must be closed if it isn't fully consumed.
+     *
+     * @param minCreatedDate created_date cutoff, to limit the search
+     * @param searchKey2     the value for key2
+     * @return an iterator of BusEventWithMetadata objects matching the search
+     */
+    <T extends BusEvent> ResultIterator<BusEventWithMetadata<T>> streamHistoricalBusEventsForSearchKey2(DateTime minCreatedDate, Long searchKey2);
+
     /**
      * Count the number of bus entries ready to be processed
      *
@@ -193,4 +237,11 @@ public interface PersistentBus extends QueueLifecycle {
      * @return the number of ready entries
      */
     long getNbReadyEntries(final DateTime maxCreatedDate);
+
+    /**
+     * Approximate number of bus entries ready to be processed, maintained in memory: cheap enough to be polled by health checks
+     *
+     * @return the approximate number of ready entries
+     */
+    long getApproximateNbReadyEntries();
 }
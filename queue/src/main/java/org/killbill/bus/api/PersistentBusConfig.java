@@ -50,6 +50,14 @@ public abstract class PersistentBusConfig implements PersistentQueueConfig {
     @Description("Max number of bus events to fetch from the database at once (only valid in 'STICKY_EVENTS')")
     public abstract int getMaxInFlightEntries();
 
+    @Override
+    @Config("org.killbill.persistent.bus.${instanceName}.inflight.capacity")
+    @Default("0")
+    @Description("Max number of bus events kept in memory, the others are left in the database and fetched once the inflightQ drains (0 means unbounded, only valid in 'STICKY_EVENTS')")
+    public int getInflightQueueCapacity() {
+        return PersistentQueueConfig.super.getInflightQueueCapacity();
+    }
+
     @Override
     @Config("org.killbill.persistent.bus.${instanceName}.claimed")
     @Default("10")
@@ -68,12 +76,44 @@ public abstract class PersistentBusConfig implements PersistentQueueConfig {
     @Description("Claim time")
     public abstract TimeSpan getClaimedTime();
 
+    @Override
+    @Config("org.killbill.persistent.bus.${instanceName}.claim.skipLocked")
+    @Default("false")
+    @Description("Whether to fetch and claim entries using SELECT ... FOR UPDATE SKIP LOCKED (requires MySQL 8+ or PostgreSQL 9.5+, only valid in 'polling mode')")
+    public boolean isSkipLockedClaimEnabled() {
+        return PersistentQueueConfig.super.isSkipLockedClaimEnabled();
+    }
+
     @Override
     @Config("org.killbill.persistent.bus.${instanceName}.sleep")
     @Default("3000")
     @Description("Time in milliseconds to sleep between runs (only valid in STICKY_POLLING, POLLING)")
     public abstract long getPollingSleepTimeMs();
 
+    @Override
+    @Config("org.killbill.persistent.bus.${instanceName}.wakeup.mode")
+    @Default("NONE")
+    @Description("How dispatcher threads are woken up for new entries, the sleep time becoming a backstop timeout (only valid in STICKY_POLLING, POLLING)")
+    public QueueWakeupMode getWakeupMode() {
+        return PersistentQueueConfig.super.getWakeupMode();
+    }
+
+    @Override
+    @Config("org.killbill.persistent.bus.${instanceName}.sleep.adaptive")
+    @Default("false")
+    @Description("Whether to back off exponentially (up to sleep.max) on empty polls, and to poll again right away after a full batch (only valid in STICKY_POLLING, POLLING)")
+    public boolean isAdaptivePollingEnabled() {
+        return PersistentQueueConfig.super.isAdaptivePollingEnabled();
+    }
+
+    @Override
+    @Config("org.killbill.persistent.bus.${instanceName}.sleep.max")
+    @Default("30000")
+    @Description("Max time in milliseconds to sleep between runs when adaptive polling is enabled (only valid in STICKY_POLLING, POLLING)")
+    public long getMaxPollingSleepTimeMs() {
+        return PersistentQueueConfig.super.getMaxPollingSleepTimeMs();
+    }
+
     @Override
     @Config("org.killbill.persistent.bus.${instanceName}.off")
     @Default("false")
@@ -86,6 +126,22 @@ public abstract class PersistentBusConfig implements PersistentQueueConfig {
     @Description("Max number of dispatch threads to use")
     public abstract int geMaxDispatchThreads();
 
+    @Override
+    @Config("org.killbill.persistent.bus.${instanceName}.dispatch.mode")
+    @Default("POOL")
+    @Description("How bus events are dispatched to the handlers: POOL, KEY_PARTITIONED (nbThreads serial lanes, keeping the order of events with the same search keys) or VIRTUAL_THREADS")
+    public DispatchMode getDispatchMode() {
+        return PersistentQueueConfig.super.getDispatchMode();
+    }
+
+    @Override
+    @Config("org.killbill.persistent.bus.${instanceName}.dispatch.maxConcurrency")
+    @Default("1000")
+    @Description("Max number of bus events dispatched concurrently (only valid in VIRTUAL_THREADS dispatch mode)")
+    public int getMaxDispatchConcurrency() {
+        return PersistentQueueConfig.super.getMaxDispatchConcurrency();
+    }
+
     @Override
     @Config("org.killbill.persistent.bus.${instanceName}.lifecycle.dispatch.nbThreads")
     @Default("1")
@@ -98,12 +154,36 @@ public abstract class PersistentBusConfig implements PersistentQueueConfig {
     @Description("Max number of lifecycle complete threads to use")
     public abstract int geNbLifecycleCompleteThreads();
 
+    @Override
+    @Config("org.killbill.persistent.bus.${instanceName}.lifecycle.complete.batchSize")
+    @Default("100")
+    @Description("Max number of completed entries moved to history in a single transaction")
+    public int getMaxCompletedEntriesBatchSize() {
+        return PersistentQueueConfig.super.getMaxCompletedEntriesBatchSize();
+    }
+
+    @Override
+    @Config("org.killbill.persistent.bus.${instanceName}.lifecycle.complete.maxDelayMs")
+    @Default("0")
+    @Description("How long the lifecycle complete threads wait for more completed entries when less than a full batch is pending")
+    public long getCompletedEntriesMaxDelayMs() {
+        return PersistentQueueConfig.super.getCompletedEntriesMaxDelayMs();
+    }
+
     @Override
     @Config("org.killbill.persistent.bus.${instanceName}.queue.capacity")
     @Default("30000")
     @Description("Size of the inflight queue (only valid in STICKY_EVENTS mode)")
     public abstract int getEventQueueCapacity();
 
+    @Override
+    @Config("org.killbill.persistent.bus.${instanceName}.eventEncoding")
+    @Default("JSON")
+    @Description("How events are encoded in the event_json column: JSON, DEFLATE or SMILE_DEFLATE. Nodes running a version without that encoding can't decode such rows: only enable it once every node has been upgraded")
+    public EventEncoding getEventEncoding() {
+        return PersistentQueueConfig.super.getEventEncoding();
+    }
+
     @Override
     @Config("org.killbill.persistent.bus.${instanceName}.tableName")
     @Default("bus_events")
@@ -133,4 +213,112 @@ public abstract class PersistentBusConfig implements PersistentQueueConfig {
     @Default("3m")
     @Description("Reaper schedule period")
     public abstract TimeSpan getReapSchedule();
+
+    @Override
+    @Config("org.killbill.persistent.bus.${instanceName}.keepCompletedEntriesInPlace")
+    @Default("false")
+    @Description("Whether completed entries should only be marked in place (processing_state), the archiver moving them to the history table later on")
+    public boolean isKeepCompletedEntriesInPlace() {
+        return PersistentQueueConfig.super.isKeepCompletedEntriesInPlace();
+    }
+
+    @Override
+    @Config("org.killbill.persistent.bus.${instanceName}.archiver.chunkSize")
+    @Default("1000")
+    @Description("Size of the record_id range moved to the history table per archiver transaction")
+    public int getArchiverChunkSize() {
+        return PersistentQueueConfig.super.getArchiverChunkSize();
+    }
+
+    @Override
+    @Config("org.killbill.persistent.bus.${instanceName}.archiver.maxRowsPerSecond")
+    @Default("5000")
+    @Description("Max number of rows per second moved to the history table by the archiver")
+    public int getArchiverMaxRowsPerSecond() {
+        return PersistentQueueConfig.super.getArchiverMaxRowsPerSecond();
+    }
+
+    @Override
+    @Config("org.killbill.persistent.bus.${instanceName}.archiver.schedule")
+    @Default("10s")
+    @Description("Archiver schedule period (only valid when keepCompletedEntriesInPlace is set)")
+    public TimeSpan getArchiverSchedule() {
+        return PersistentQueueConfig.super.getArchiverSchedule();
+    }
+
+    @Override
+    @Config("org.killbill.persistent.bus.${instanceName}.history.partitioning.enabled")
+    @Default("false")
+    @Description("Whether the history table is partitioned by month on created_date (see ddl_history_partitioned_*.sql), old partitions being dropped by the retention service")
+    public boolean isHistoryPartitioningEnabled() {
+        return PersistentQueueConfig.super.isHistoryPartitioningEnabled();
+    }
+
+    @Override
+    @Config("org.killbill.persistent.bus.${instanceName}.history.retention")
+    @Default("365d")
+    @Description("How long history entries are kept: a monthly partition is dropped once all its entries are older than that")
+    public TimeSpan getHistoryRetention() {
+        return PersistentQueueConfig.super.getHistoryRetention();
+    }
+
+    @Override
+    @Config("org.killbill.persistent.bus.${instanceName}.history.partitionsAhead")
+    @Default("2")
+    @Description("Number of monthly history partitions created in advance")
+    public int getHistoryPartitionsAhead() {
+        return PersistentQueueConfig.super.getHistoryPartitionsAhead();
+    }
+
+    @Override
+    @Config("org.killbill.persistent.bus.${instanceName}.history.retentionSchedule")
+    @Default("1h")
+    @Description("History retention service schedule period")
+    public TimeSpan getHistoryRetentionSchedule() {
+        return PersistentQueueConfig.super.getHistoryRetentionSchedule();
+    }
+
+    @Override
+    @Config("org.killbill.persistent.bus.${instanceName}.readyCount.reconcileInterval")
+    @Default("30s")
+    @Description("How often the in-memory approximate number of ready entries is reconciled against the database")
+    public TimeSpan getReadyCountReconcileInterval() {
+        return PersistentQueueConfig.super.getReadyCountReconcileInterval();
+    }
+
+    @Override
+    @Config("org.killbill.persistent.bus.${instanceName}.readyCount.maxExactQueriesPerSecond")
+    @Default("10")
+    @Description("Max number of exact ready entries count queries (getNbReadyEntries) per second, callers being throttled above that")
+    public int getMaxExactReadyCountQueriesPerSecond() {
+        return PersistentQueueConfig.super.getMaxExactReadyCountQueriesPerSecond();
+    }
+
+    @Config("org.killbill.persistent.bus.${instanceName}.groupCommit.enabled")
+    @Default("false")
+    @Description("Whether non transactional posts should be inserted by a single writer thread, grouping several entries per transaction")
+    public boolean isGroupCommitEnabled() {
+        return false;
+    }
+
+    @Config("org.killbill.persistent.bus.${instanceName}.groupCommit.maxEntries")
+    @Default("100")
+    @Description("Max number of entries inserted per group commit transaction")
+    public int getGroupCommitMaxEntries() {
+        return 100;
+    }
+
+    @Config("org.killbill.persistent.bus.${instanceName}.groupCommit.maxDelayMicros")
+    @Default("1000")
+    @Description("Max time (in microseconds) an entry waits for other entries before the group commit transaction is issued")
+    public long getGroupCommitMaxDelayMicros() {
+        return 1000L;
+    }
+
+    @Config("org.killbill.persistent.bus.${instanceName}.fanOut.nbThreads")
+    @Default("0")
+    @Description("Size of the pool running the handlers annotated with @ParallelFanOut concurrently (0 to run all handlers sequentially)")
+    public int getFanOutThreads() {
+        return 0;
+    }
 }
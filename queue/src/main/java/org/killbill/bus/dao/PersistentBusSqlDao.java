@@ -28,6 +28,7 @@ import org.joda.time.DateTime;
 import org.killbill.commons.jdbi.statement.SmartFetchSize;
 import org.killbill.commons.jdbi.template.KillBillSqlDaoStringTemplate;
 import org.killbill.queue.dao.QueueSqlDao;
+import org.skife.jdbi.v2.ResultIterator;
 import org.skife.jdbi.v2.sqlobject.Bind;
 import org.skife.jdbi.v2.sqlobject.SqlQuery;
 import org.skife.jdbi.v2.sqlobject.customizers.Define;
@@ -130,7 +131,17 @@ public interface PersistentBusSqlDao extends QueueSqlDao<BusEventModelDao> {
      */
     @SqlQuery
     @SmartFetchSize(shouldStream = true)
-    public Iterator<BusEventModelDao> getHistoricalQueueEntriesForSearchKey2(@Bind("minCreatedDate") final DateTime minCreatedDate,
+    public ResultIterator<BusEventModelDao> getHistoricalQueueEntriesForSearchKey2(@Bind("minCreatedDate") final DateTime minCreatedDate,
+                                                                                   @Bind("searchKey2") final Long searchKey2,
+                                                                                   @Define("historyTableName") final String historyTableName);
+
+    /**
+     * Keyset paginated version of getHistoricalQueueEntriesForSearchKey2: entries with record_id >= fromRecordId, ordered by record_id
+     */
+    @SqlQuery
+    public List<BusEventModelDao> getHistoricalQueueEntriesForSearchKey2Page(@Bind("minCreatedDate") final DateTime minCreatedDate,
                                                                              @Bind("searchKey2") final Long searchKey2,
+                                                                             @Bind("fromRecordId") final long fromRecordId,
+                                                                             @Bind("max") final int max,
                                                                              @Define("historyTableName") final String historyTableName);
 }
@@ -0,0 +1,431 @@
+/*
+ * Copyright 2014-2019 Groupon, Inc
+ * Copyright 2014-2019 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.bus.dispatching;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.killbill.bus.api.ParallelFanOut;
+import org.killbill.commons.concurrent.Executors;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.slf4j.MDC;
+
+import com.google.common.eventbus.AllowConcurrentEvents;
+import com.google.common.eventbus.DeadEvent;
+import com.google.common.eventbus.EventBusException;
+import com.google.common.eventbus.Subscribe;
+import com.google.common.reflect.TypeToken;
+
+//
+// Replacement for EventBusThatThrowsException, which doesn't rely on Guava internals:
+// - Handlers are the methods annotated with @Subscribe (and optionally @AllowConcurrentEvents), as for the Guava EventBus
+// - Each handler is invoked through a MethodHandle bound to its target
+// - The handlers for a given event class (including the ones registered for its super types) are computed once, and cached
+//   as an array: posting an event doesn't allocate anything, unless a handler throws
+// - Registrations are copy-on-write: register/unregister build a new snapshot, posts are never blocked
+//
+// Semantics are the ones of EventBusThatThrowsException: all handlers are invoked, in registration order, and the first exception
+// (wrapped into an InvocationTargetException) is re-thrown once they all ran.
+//
+// Handlers annotated with @ParallelFanOut are submitted to the fan-out pool (if configured), while the other ones run in the posting thread:
+// postWithException returns once all of them completed, and the first exception is the one of the first failed handler in registration order.
+//
+public class IndexedEventBus {
+
+    private static final Logger log = LoggerFactory.getLogger(IndexedEventBus.class);
+
+    private static final Handler[] NO_HANDLERS = new Handler[0];
+    private static final MethodType HANDLER_TYPE = MethodType.methodType(void.class, Object.class);
+
+    private final String identifier;
+    private final int nbFanOutThreads;
+    private final Object registrationLock = new Object();
+
+    private volatile Snapshot snapshot;
+    // Only set when started with nbFanOutThreads > 0
+    private volatile ExecutorService fanOutExecutor;
+
+    public IndexedEventBus(final String identifier) {
+        this(identifier, 0);
+    }
+
+    public IndexedEventBus(final String identifier, final int nbFanOutThreads) {
+        this.identifier = identifier;
+        this.nbFanOutThreads = nbFanOutThreads;
+        this.snapshot = new Snapshot(new LinkedHashMap<Class<?>, Handler[]>());
+    }
+
+    public synchronized void start() {
+        if (nbFanOutThreads > 0 && fanOutExecutor == null) {
+            fanOutExecutor = Executors.newFixedThreadPool(nbFanOutThreads, identifier + "-fan-out-th");
+        }
+    }
+
+    public synchronized void stop() {
+        final ExecutorService executor = fanOutExecutor;
+        fanOutExecutor = null;
+        if (executor != null) {
+            executor.shutdown();
+            try {
+                executor.awaitTermination(5, TimeUnit.SECONDS);
+            } catch (final InterruptedException e) {
+                log.info("{}: Stop sequence has been interrupted", identifier);
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    public void register(final Object target) {
+        final List<Handler> newHandlers = findHandlers(target);
+        synchronized (registrationLock) {
+            final Map<Class<?>, Handler[]> handlersByType = new LinkedHashMap<Class<?>, Handler[]>(snapshot.handlersByType);
+            for (final Handler handler : newHandlers) {
+                final Handler[] existing = handlersByType.get(handler.eventType);
+                if (existing == null) {
+                    handlersByType.put(handler.eventType, new Handler[]{handler});
+                } else if (indexOf(existing, handler) < 0) {
+                    final Handler[] updated = Arrays.copyOf(existing, existing.length + 1);
+                    updated[existing.length] = handler;
+                    handlersByType.put(handler.eventType, updated);
+                }
+            }
+            snapshot = new Snapshot(handlersByType);
+        }
+    }
+
+    public void unregister(final Object target) {
+        final List<Handler> handlersToRemove = findHandlers(target);
+        synchronized (registrationLock) {
+            final Map<Class<?>, Handler[]> handlersByType = new LinkedHashMap<Class<?>, Handler[]>(snapshot.handlersByType);
+            for (final Handler handler : handlersToRemove) {
+                final Handler[] existing = handlersByType.get(handler.eventType);
+                final int idx = existing == null ? -1 : indexOf(existing, handler);
+                if (idx < 0) {
+                    throw new IllegalArgumentException("missing event subscriber for an annotated method. Is " + target + " registered?");
+                }
+                if (existing.length == 1) {
+                    handlersByType.remove(handler.eventType);
+                } else {
+                    final Handler[] updated = new Handler[existing.length - 1];
+                    System.arraycopy(existing, 0, updated, 0, idx);
+                    System.arraycopy(existing, idx + 1, updated, idx, existing.length - idx - 1);
+                    handlersByType.put(handler.eventType, updated);
+                }
+            }
+            snapshot = new Snapshot(handlersByType);
+        }
+    }
+
+    public boolean hasSubscribers(final Class<?> eventClass) {
+        return snapshot.getHandlers(eventClass).handlers.length > 0;
+    }
+
+    public void postWithException(final Object event) throws EventBusException {
+        final HandlersForEventClass handlersForEventClass = snapshot.getHandlers(event.getClass());
+        final Handler[] handlers = handlersForEventClass.handlers;
+        if (handlers.length == 0) {
+            if (!(event instanceof DeadEvent)) {
+                // The event had no subscribers and was not itself a DeadEvent
+                postDeadEvent(new DeadEvent(this, event));
+            }
+            return;
+        }
+
+        final ExecutorService executor = fanOutExecutor;
+        final Throwable firstException;
+        if (executor == null || !handlersForEventClass.hasParallelHandlers) {
+            firstException = invokeSequentially(handlers, event);
+        } else {
+            firstException = invokeWithFanOut(executor, handlers, event);
+        }
+
+        if (firstException != null) {
+            // Wrapping for legacy reasons
+            throw new EventBusException(new InvocationTargetException(firstException));
+        }
+    }
+
+    // Same as the plain EventBus#post used by EventBusThatThrowsException: exceptions thrown by DeadEvent handlers are only logged,
+    // they don't fail (or retry) an event which had no subscriber in the first place
+    private void postDeadEvent(final DeadEvent deadEvent) {
+        for (final Handler handler : snapshot.getHandlers(DeadEvent.class).handlers) {
+            invokeHandler(handler, deadEvent);
+        }
+    }
+
+    private Throwable invokeSequentially(final Handler[] handlers, final Object event) {
+        Throwable firstException = null;
+        for (final Handler handler : handlers) {
+            final Throwable t = invokeHandler(handler, event);
+            // By convention, re-throw the very first exception
+            if (t != null && firstException == null) {
+                firstException = t;
+            }
+        }
+        return firstException;
+    }
+
+    private Throwable invokeWithFanOut(final ExecutorService executor, final Handler[] handlers, final Object event) {
+        // Handlers running in the fan-out pool log with the same context (e.g. kb.userToken) as the posting thread
+        final Map<String, String> mdcContext = MDC.getCopyOfContextMap();
+        final Future<?>[] futures = new Future<?>[handlers.length];
+        for (int i = 0; i < handlers.length; i++) {
+            final Handler handler = handlers[i];
+            if (handler.isParallel) {
+                futures[i] = executor.submit(new Callable<Throwable>() {
+                    @Override
+                    public Throwable call() {
+                        if (mdcContext != null) {
+                            MDC.setContextMap(mdcContext);
+                        }
+                        try {
+                            return invokeHandler(handler, event);
+                        } finally {
+                            MDC.clear();
+                        }
+                    }
+                });
+            }
+        }
+
+        // Errors are only propagated once all handlers completed, as the event would otherwise be completed (or retried) while handlers are still running
+        Error firstError = null;
+        final Throwable[] exceptions = new Throwable[handlers.length];
+        for (int i = 0; i < handlers.length; i++) {
+            if (futures[i] == null && firstError == null) {
+                try {
+                    exceptions[i] = invokeHandler(handlers[i], event);
+                } catch (final Error e) {
+                    firstError = e;
+                }
+            }
+        }
+
+        boolean interrupted = false;
+        for (int i = 0; i < handlers.length; i++) {
+            if (futures[i] == null) {
+                continue;
+            }
+            while (true) {
+                try {
+                    exceptions[i] = (Throwable) futures[i].get();
+                    break;
+                } catch (final InterruptedException e) {
+                    // Wait for all handlers anyways, for the same reason
+                    interrupted = true;
+                } catch (final ExecutionException e) {
+                    // Errors thrown by the handler
+                    if (e.getCause() instanceof Error) {
+                        if (firstError == null) {
+                            firstError = (Error) e.getCause();
+                        }
+                    } else {
+                        exceptions[i] = e.getCause();
+                    }
+                    break;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (firstError != null) {
+            throw firstError;
+        }
+
+        for (final Throwable t : exceptions) {
+            if (t != null) {
+                return t;
+            }
+        }
+        return null;
+    }
+
+    private Throwable invokeHandler(final Handler handler, final Object event) {
+        try {
+            handler.invoke(event);
+            return null;
+        } catch (final Error e) {
+            // Same as Guava, errors are propagated as is
+            throw e;
+        } catch (final Throwable t) {
+            log.warn("{}: Exception thrown by subscriber method {} on subscriber {} when dispatching event {}",
+                     identifier, handler.method, handler.target, event, t);
+            return t;
+        }
+    }
+
+    public String getIdentifier() {
+        return identifier;
+    }
+
+    private static int indexOf(final Handler[] handlers, final Handler handler) {
+        for (int i = 0; i < handlers.length; i++) {
+            if (handlers[i].equals(handler)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static List<Handler> findHandlers(final Object target) {
+        // Keyed by method signature, so that overridden methods are only registered once (from the most specific class)
+        final Map<String, Method> methods = new LinkedHashMap<String, Method>();
+        for (final Class<?> clazz : TypeToken.of(target.getClass()).getTypes().rawTypes()) {
+            for (final Method method : clazz.getDeclaredMethods()) {
+                if (!method.isAnnotationPresent(Subscribe.class) || method.isSynthetic()) {
+                    continue;
+                }
+                final Class<?>[] parameterTypes = method.getParameterTypes();
+                if (parameterTypes.length != 1) {
+                    throw new IllegalArgumentException(String.format("Method %s has @Subscribe annotation but has %s parameters. Subscriber methods must have exactly 1 parameter.",
+                                                                     method, parameterTypes.length));
+                }
+                final String signature = method.getName() + Arrays.toString(parameterTypes);
+                if (!methods.containsKey(signature)) {
+                    methods.put(signature, method);
+                }
+            }
+        }
+
+        final List<Handler> handlers = new ArrayList<Handler>(methods.size());
+        for (final Method method : methods.values()) {
+            handlers.add(new Handler(target, method));
+        }
+        return handlers;
+    }
+
+    private static final class Snapshot {
+
+        // Handlers, by declared parameter type
+        private final Map<Class<?>, Handler[]> handlersByType;
+        // Handlers for a given event class, including the ones for its super types (lazily computed)
+        private final ConcurrentMap<Class<?>, HandlersForEventClass> handlersByEventClass;
+
+        private Snapshot(final Map<Class<?>, Handler[]> handlersByType) {
+            this.handlersByType = handlersByType;
+            this.handlersByEventClass = new ConcurrentHashMap<Class<?>, HandlersForEventClass>();
+        }
+
+        private HandlersForEventClass getHandlers(final Class<?> eventClass) {
+            HandlersForEventClass handlers = handlersByEventClass.get(eventClass);
+            if (handlers == null) {
+                handlers = computeHandlers(eventClass);
+                handlersByEventClass.putIfAbsent(eventClass, handlers);
+            }
+            return handlers;
+        }
+
+        private HandlersForEventClass computeHandlers(final Class<?> eventClass) {
+            final List<Handler> result = new ArrayList<Handler>();
+            for (final Class<?> type : TypeToken.of(eventClass).getTypes().rawTypes()) {
+                final Handler[] handlers = handlersByType.get(type);
+                if (handlers != null) {
+                    result.addAll(Arrays.asList(handlers));
+                }
+            }
+            return new HandlersForEventClass(result.isEmpty() ? NO_HANDLERS : result.toArray(new Handler[result.size()]));
+        }
+    }
+
+    private static final class HandlersForEventClass {
+
+        private final Handler[] handlers;
+        private final boolean hasParallelHandlers;
+
+        private HandlersForEventClass(final Handler[] handlers) {
+            this.handlers = handlers;
+            boolean parallel = false;
+            for (final Handler handler : handlers) {
+                parallel = parallel || handler.isParallel;
+            }
+            this.hasParallelHandlers = parallel;
+        }
+    }
+
+    private static final class Handler {
+
+        private final Object target;
+        private final Method method;
+        private final Class<?> eventType;
+        private final MethodHandle methodHandle;
+        private final boolean isThreadSafe;
+        private final boolean isParallel;
+
+        private Handler(final Object target, final Method method) {
+            this.target = target;
+            this.method = method;
+            this.eventType = method.getParameterTypes()[0];
+            this.isThreadSafe = method.isAnnotationPresent(AllowConcurrentEvents.class);
+            this.isParallel = method.isAnnotationPresent(ParallelFanOut.class);
+            try {
+                method.setAccessible(true);
+                this.methodHandle = MethodHandles.lookup()
+                                                 .unreflect(method)
+                                                 .bindTo(target)
+                                                 .asType(HANDLER_TYPE);
+            } catch (final IllegalAccessException e) {
+                throw new IllegalArgumentException("Unable to access subscriber method " + method, e);
+            }
+        }
+
+        private void invoke(final Object event) throws Throwable {
+            if (isThreadSafe) {
+                methodHandle.invokeExact(event);
+            } else {
+                // Same as Guava: handlers not marked with @AllowConcurrentEvents are invoked by one thread at a time
+                synchronized (this) {
+                    methodHandle.invokeExact(event);
+                }
+            }
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            final Handler handler = (Handler) o;
+            return target == handler.target && method.equals(handler.method);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(target) + method.hashCode();
+        }
+    }
+}
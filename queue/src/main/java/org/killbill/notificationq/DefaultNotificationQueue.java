@@ -22,7 +22,9 @@ import java.io.IOException;
 import java.sql.Connection;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Date;
 import java.util.Iterator;
+import java.util.List;
 import java.util.UUID;
 import java.util.concurrent.atomic.AtomicBoolean;
 
@@ -33,6 +35,7 @@ import org.killbill.CreatorName;
 import org.killbill.clock.Clock;
 import org.killbill.commons.profiling.Profiling;
 import org.killbill.commons.profiling.ProfilingFeature;
+import org.killbill.notificationq.api.FutureNotification;
 import org.killbill.notificationq.api.NotificationEvent;
 import org.killbill.notificationq.api.NotificationEventWithMetadata;
 import org.killbill.notificationq.api.NotificationQueue;
@@ -44,10 +47,14 @@ import org.killbill.notificationq.dao.NotificationSqlDao;
 import org.killbill.queue.DBBackedQueue;
 import org.killbill.queue.InTransaction;
 import org.killbill.queue.QueueObjectMapper;
+import org.killbill.queue.api.KeysetPage;
 import org.killbill.queue.api.PersistentQueueEntryLifecycleState;
+import org.killbill.queue.codec.DefaultEventCodec;
+import org.killbill.queue.codec.EventCodec;
 import org.killbill.queue.dao.QueueSqlDao;
 import org.killbill.queue.dispatching.CallableCallbackBase;
 import org.skife.jdbi.v2.DBI;
+import org.skife.jdbi.v2.ResultIterator;
 import org.skife.jdbi.v2.Transaction;
 import org.skife.jdbi.v2.TransactionStatus;
 import org.slf4j.Logger;
@@ -56,6 +63,7 @@ import org.slf4j.LoggerFactory;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.base.Function;
 import com.google.common.base.MoreObjects;
+import com.google.common.base.Preconditions;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Iterators;
 
@@ -74,7 +82,7 @@ public class DefaultNotificationQueue implements NotificationQueue {
     private final NotificationQueueHandler handler;
     // 队列服务 -- 用于创建删除通知队列
     private final NotificationQueueService notificationQueueService;
-    private final ObjectMapper objectMapper;
+    private final EventCodec eventCodec;
     private final Clock clock;
     // 通知队列配置信息
     private final NotificationQueueConfig config;
@@ -102,7 +110,7 @@ public class DefaultNotificationQueue implements NotificationQueue {
         this.handler = handler;
         this.dao = dao;
         this.notificationQueueService = notificationQueueService;
-        this.objectMapper = objectMapper;
+        this.eventCodec = new DefaultEventCodec(objectMapper, config.getEventEncoding());
         this.clock = clock;
         this.config = config;
         this.prof = new Profiling<Iterable<NotificationEventModelDao>, RuntimeException>();
@@ -113,20 +121,19 @@ public class DefaultNotificationQueue implements NotificationQueue {
      */
     @Override
     public void recordFutureNotification(final DateTime futureNotificationTime, final NotificationEvent event, final UUID userToken, final Long searchKey1, final Long searchKey2) throws IOException {
-        final String eventJson = objectMapper.writeValueAsString(event);
-        final UUID futureUserToken = UUID.randomUUID();
-        final Long searchKey2WithNull = MoreObjects.firstNonNull(searchKey2, new Long(0));
-        final NotificationEventModelDao notification = new NotificationEventModelDao(CreatorName.get(), clock.getUTCNow(), event.getClass().getName(), eventJson, userToken, searchKey1, searchKey2WithNull, futureUserToken, futureNotificationTime, getFullQName());
-        dao.insertEntry(notification);
+        recordFutureNotificationAndGetRecordId(futureNotificationTime, event, userToken, searchKey1, searchKey2);
+    }
+
+    @Override
+    public Long recordFutureNotificationAndGetRecordId(final DateTime futureNotificationTime, final NotificationEvent event, final UUID userToken, final Long searchKey1, final Long searchKey2) throws IOException {
+        final NotificationEventModelDao notification = toNotificationEventModelDao(clock.getUTCNow(), futureNotificationTime, event, userToken, searchKey1, searchKey2);
+        return dao.insertEntry(notification);
     }
 
     @Override
     public void recordFutureNotificationFromTransaction(final Connection connection, final DateTime futureNotificationTime, final NotificationEvent event,
                                                         final UUID userToken, final Long searchKey1, final Long searchKey2) throws IOException {
-        final String eventJson = objectMapper.writeValueAsString(event);
-        final UUID futureUserToken = UUID.randomUUID();
-        final Long searchKey2WithNull = MoreObjects.firstNonNull(searchKey2, 0L);
-        final NotificationEventModelDao notification = new NotificationEventModelDao(CreatorName.get(), clock.getUTCNow(), event.getClass().getName(), eventJson, userToken, searchKey1, searchKey2WithNull, futureUserToken, futureNotificationTime, getFullQName());
+        final NotificationEventModelDao notification = toNotificationEventModelDao(clock.getUTCNow(), futureNotificationTime, event, userToken, searchKey1, searchKey2);
 
         final InTransaction.InTransactionHandler<NotificationSqlDao, Void> handler = new InTransaction.InTransactionHandler<NotificationSqlDao, Void>() {
             @Override
@@ -138,9 +145,53 @@ public class DefaultNotificationQueue implements NotificationQueue {
         InTransaction.execute(dbi, connection, handler, NotificationSqlDao.class);
     }
 
+    @Override
+    public void recordFutureNotifications(final Iterable<FutureNotification> notifications) throws IOException {
+        final List<NotificationEventModelDao> entries = toNotificationEventModelDaos(notifications);
+        if (entries.isEmpty()) {
+            return;
+        }
+        dao.insertEntries(entries);
+    }
+
+    @Override
+    public void recordFutureNotificationsFromTransaction(final Connection connection, final Iterable<FutureNotification> notifications) throws IOException {
+        final List<NotificationEventModelDao> entries = toNotificationEventModelDaos(notifications);
+        if (entries.isEmpty()) {
+            return;
+        }
+
+        final InTransaction.InTransactionHandler<NotificationSqlDao, Void> handler = new InTransaction.InTransactionHandler<NotificationSqlDao, Void>() {
+            @Override
+            public Void withSqlDao(final NotificationSqlDao transactional) {
+                dao.insertEntriesFromTransaction(transactional, entries);
+                return null;
+            }
+        };
+        InTransaction.execute(dbi, connection, handler, NotificationSqlDao.class);
+    }
+
+    // All events are serialized before hitting the database, so that a serialization failure doesn't leave a partial batch behind
+    private List<NotificationEventModelDao> toNotificationEventModelDaos(final Iterable<FutureNotification> notifications) throws IOException {
+        final DateTime now = clock.getUTCNow();
+        final List<NotificationEventModelDao> entries = new ArrayList<NotificationEventModelDao>();
+        for (final FutureNotification notification : notifications) {
+            entries.add(toNotificationEventModelDao(now, notification.getEffectiveDate(), notification.getEvent(), notification.getUserToken(), notification.getSearchKey1(), notification.getSearchKey2()));
+        }
+        return entries;
+    }
+
+    private NotificationEventModelDao toNotificationEventModelDao(final DateTime now, final DateTime futureNotificationTime, final NotificationEvent event,
+                                                                  final UUID userToken, final Long searchKey1, final Long searchKey2) throws IOException {
+        final String eventJson = eventCodec.encode(event);
+        final UUID futureUserToken = UUID.randomUUID();
+        final Long searchKey2WithNull = MoreObjects.firstNonNull(searchKey2, 0L);
+        return new NotificationEventModelDao(CreatorName.get(), now, event.getClass().getName(), eventJson, userToken, searchKey1, searchKey2WithNull, futureUserToken, futureNotificationTime, getFullQName());
+    }
+
     @Override
     public void updateFutureNotification(final Long recordId, final NotificationEvent event, final Long searchKey1, final Long searchKey2) throws IOException {
-        final String eventJson = objectMapper.writeValueAsString(event);
+        final String eventJson = eventCodec.encode(event);
         final Long searchKey2WithNull = MoreObjects.firstNonNull(searchKey2, 0L);
         ((NotificationSqlDao) dao.getSqlDao()).updateEntry(recordId, eventJson, searchKey1, searchKey2WithNull, config.getTableName());
     }
@@ -153,7 +204,7 @@ public class DefaultNotificationQueue implements NotificationQueue {
                                                  final Long searchKey2) throws IOException {
 
 
-        final String eventJson = objectMapper.writeValueAsString(event);
+        final String eventJson = eventCodec.encode(event);
         final Long searchKey2WithNull = MoreObjects.firstNonNull(searchKey2, 0L);
         final InTransaction.InTransactionHandler<NotificationSqlDao, Void> handler = new InTransaction.InTransactionHandler<NotificationSqlDao, Void>() {
             @Override
@@ -246,6 +297,44 @@ public class DefaultNotificationQueue implements NotificationQueue {
         return getHistoricalNotificationsInternal((NotificationSqlDao) dao.getSqlDao(), minEffectiveDate, null, searchKey2);
     }
 
+    @Override
+    public <T extends NotificationEvent> KeysetPage<NotificationEventWithMetadata<T>> getHistoricalNotificationForSearchKey2(final DateTime minEffectiveDate, final Long searchKey2, @Nullable final Long fromRecordId, final int limit) {
+        Preconditions.checkArgument(limit > 0, "limit should be positive, got %s", limit);
+        // Fetch one extra entry to know whether there is a next page
+        final List<NotificationEventModelDao> entries = ((NotificationSqlDao) dao.getSqlDao()).getHistoricalQueueEntriesForSearchKey2Page(getFullQName(), minEffectiveDate, searchKey2, fromRecordId == null ? 0L : fromRecordId, limit + 1, config.getHistoryTableName());
+        final List<NotificationEventWithMetadata<T>> page = new ArrayList<NotificationEventWithMetadata<T>>(Math.min(limit, entries.size()));
+        for (final NotificationEventModelDao entry : entries.subList(0, Math.min(limit, entries.size()))) {
+            page.add(this.<T>toNotificationEventWithMetadata(entry));
+        }
+        return new KeysetPage<NotificationEventWithMetadata<T>>(page, entries.size() > limit ? entries.get(limit).getRecordId() : null);
+    }
+
+    @Override
+    public <T extends NotificationEvent> ResultIterator<NotificationEventWithMetadata<T>> streamHistoricalNotificationForSearchKey2(final DateTime minEffectiveDate, final Long searchKey2) {
+        final ResultIterator<NotificationEventModelDao> entries = ((NotificationSqlDao) dao.getSqlDao()).getHistoricalQueueEntriesForSearchKey2(getFullQName(), minEffectiveDate, searchKey2, config.getHistoryTableName());
+        return new ResultIterator<NotificationEventWithMetadata<T>>() {
+            @Override
+            public void close() {
+                entries.close();
+            }
+
+            @Override
+            public boolean hasNext() {
+                return entries.hasNext();
+            }
+
+            @Override
+            public NotificationEventWithMetadata<T> next() {
+                return toNotificationEventWithMetadata(entries.next());
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
     private <T extends NotificationEvent> Iterable<NotificationEventWithMetadata<T>> getFutureNotificationsInternal(final NotificationSqlDao transactionalDao, @Nullable final DateTime maxEffectiveDate, @Nullable final Long searchKey1, final Long searchKey2) {
         final Iterable<NotificationEventModelDao> entries = getFutureNotificationsInternalWithProfiling(transactionalDao, maxEffectiveDate, searchKey1, searchKey2);
         return toNotificationEventWithMetadata(entries);
@@ -320,14 +409,29 @@ public class DefaultNotificationQueue implements NotificationQueue {
     }
 
     private <T extends NotificationEvent> NotificationEventWithMetadata<T> toNotificationEventWithMetadata(final NotificationEventModelDao cur) {
-        final T event = CallableCallbackBase.deserializeEvent(cur, objectMapper);
+        final T event = CallableCallbackBase.deserializeEvent(cur, eventCodec);
         return new NotificationEventWithMetadata<T>(cur.getRecordId(), cur.getUserToken(), cur.getCreatedDate(), cur.getSearchKey1(), cur.getSearchKey2(), event,
                                                     cur.getFutureUserToken(), cur.getEffectiveDate(), cur.getQueueName());
     }
 
     @Override
     public long getNbReadyEntries(final DateTime maxCreatedDate) {
-        return dao.getNbReadyEntries(maxCreatedDate.toDate());
+        return dao.getExactNbReadyEntries(maxCreatedDate.toDate());
+    }
+
+    @Override
+    public boolean claimNotification(final Long recordId) {
+        final Date nextAvailable = clock.getUTCNow().plus(config.getClaimedTime().getMillis()).toDate();
+        return dao.getSqlDao().claimEntry(recordId, CreatorName.get(), nextAvailable, config.getTableName()) == 1;
+    }
+
+    @Override
+    public void releaseNotification(final Long recordId) {
+        final NotificationEventModelDao existing = dao.getSqlDao().getByRecordId(recordId, config.getTableName());
+        if (existing == null) {
+            return;
+        }
+        dao.getSqlDao().updateOnError(recordId, clock.getUTCNow().toDate(), existing.getErrorCount(), config.getTableName());
     }
 
     @Override
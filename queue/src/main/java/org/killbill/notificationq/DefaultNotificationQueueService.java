@@ -20,12 +20,14 @@ package org.killbill.notificationq;
 
 import java.util.Properties;
 
+import javax.annotation.Nullable;
 import javax.inject.Inject;
 import javax.inject.Named;
 import javax.sql.DataSource;
 
 import org.killbill.clock.Clock;
 import org.killbill.clock.DefaultClock;
+import org.killbill.commons.jdbi.notification.DatabaseTransactionNotificationApi;
 import org.killbill.notificationq.api.NotificationQueue;
 import org.killbill.notificationq.api.NotificationQueueConfig;
 import org.killbill.queue.InTransaction;
@@ -52,9 +54,20 @@ public class DefaultNotificationQueueService extends NotificationQueueServiceBas
      * @param config         queues configuration
      * @param metricRegistry DropWizard metrics registry instance
      */
+    public DefaultNotificationQueueService(final IDBI idbi, final Clock clock, final NotificationQueueConfig config, final MetricRegistry metricRegistry) {
+        this(idbi, clock, config, metricRegistry, null);
+    }
+
+    /**
+     * @param idbi                               a DBI instance from the killbill-jdbi jar
+     * @param clock                              a clock instance from the killbill-clock jar
+     * @param config                             queues configuration
+     * @param metricRegistry                     DropWizard metrics registry instance
+     * @param databaseTransactionNotificationApi transaction notifications from the killbill-jdbi jar (used by the IN_PROCESS and POSTGRESQL_NOTIFY wakeup modes)
+     */
     @Inject
-    public DefaultNotificationQueueService(@Named(QUEUE_NAME) final IDBI idbi, final Clock clock, final NotificationQueueConfig config, final MetricRegistry metricRegistry) {
-        super(clock, config, idbi, metricRegistry);
+    public DefaultNotificationQueueService(@Named(QUEUE_NAME) final IDBI idbi, final Clock clock, final NotificationQueueConfig config, final MetricRegistry metricRegistry, @Nullable final DatabaseTransactionNotificationApi databaseTransactionNotificationApi) {
+        super(clock, config, idbi, metricRegistry, databaseTransactionNotificationApi);
         this.dbi = (DBI) idbi;
     }
 
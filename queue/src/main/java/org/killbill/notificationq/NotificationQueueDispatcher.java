@@ -20,8 +20,9 @@ package org.killbill.notificationq;
 
 import java.lang.Thread.UncaughtExceptionHandler;
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
@@ -31,7 +32,11 @@ import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 
+import javax.annotation.Nullable;
+
+import org.joda.time.DateTime;
 import org.killbill.clock.Clock;
+import org.killbill.commons.jdbi.notification.DatabaseTransactionNotificationApi;
 import org.killbill.notificationq.api.NotificationEvent;
 import org.killbill.notificationq.api.NotificationQueue;
 import org.killbill.notificationq.api.NotificationQueueConfig;
@@ -42,17 +47,26 @@ import org.killbill.notificationq.dispatching.NotificationCallableCallback;
 import org.killbill.queue.DBBackedQueue;
 import org.killbill.queue.DBBackedQueue.ReadyEntriesWithMetrics;
 import org.killbill.queue.DBBackedQueueWithPolling;
+import org.killbill.queue.DefaultArchiver;
 import org.killbill.queue.DefaultQueueLifecycle;
+import org.killbill.queue.HashedTimingWheel;
+import org.killbill.queue.HistoryRetentionService;
 import org.killbill.queue.api.PersistentQueueConfig.PersistentQueueMode;
 import org.killbill.queue.dao.EventEntryModelDao;
+import org.killbill.queue.dao.QueueSqlDao;
 import org.killbill.queue.dispatching.BlockingRejectionExecutionHandler;
 import org.killbill.queue.dispatching.Dispatcher;
+import org.killbill.queue.wakeup.QueueWakeupSources;
 import org.skife.jdbi.v2.IDBI;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.codahale.metrics.Histogram;
 import com.codahale.metrics.MetricRegistry;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Predicate;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
 
 /**
  * 消息派发管理服务
@@ -62,6 +76,7 @@ public class NotificationQueueDispatcher extends DefaultQueueLifecycle {
     protected static final Logger log = LoggerFactory.getLogger(NotificationQueueDispatcher.class);
 
     public static final int CLAIM_TIME_MS = (5 * 60 * 1000); // 5 minutes
+    private static final int MAX_TIMING_WHEEL_SIZE = 65536;
     // 已处理事件总数
     private final AtomicLong nbProcessedEvents;
 
@@ -74,6 +89,11 @@ public class NotificationQueueDispatcher extends DefaultQueueLifecycle {
     protected final MetricRegistry metricRegistry;
 
     private final Map<String, Histogram> perQueueProcessingTime;
+    private final Map<String, Histogram> perQueueLag;
+    // Null unless fair scheduling is enabled
+    private final WeightedFairScheduler fairScheduler;
+    // Null unless a timing wheel horizon is configured
+    private final HashedTimingWheel timingWheel;
 
     // We could event have one per queue is required...
     private final Dispatcher<NotificationEvent, NotificationEventModelDao> dispatcher;
@@ -88,10 +108,17 @@ public class NotificationQueueDispatcher extends DefaultQueueLifecycle {
     private final NotificationCallableCallback notificationCallableCallback;
     // 挖掘机（轮询才会启动挖掘）
     private final NotificationReaper reaper;
+    private final DefaultArchiver archiver;
+    private final HistoryRetentionService historyRetentionService;
 
     // Package visibility on purpose
     NotificationQueueDispatcher(final Clock clock, final NotificationQueueConfig config, final IDBI dbi, final MetricRegistry metricRegistry) {
-        super(config.getTableName(), config, metricRegistry);
+        this(clock, config, dbi, metricRegistry, null);
+    }
+
+    // Package visibility on purpose
+    NotificationQueueDispatcher(final Clock clock, final NotificationQueueConfig config, final IDBI dbi, final MetricRegistry metricRegistry, @Nullable final DatabaseTransactionNotificationApi databaseTransactionNotificationApi) {
+        super(config.getTableName(), config, metricRegistry, QueueWakeupSources.create(config, dbi, databaseTransactionNotificationApi));
         final ThreadFactory notificationQThreadFactory = new ThreadFactory() {
             @Override
             public Thread newThread(final Runnable r) {
@@ -110,12 +137,66 @@ public class NotificationQueueDispatcher extends DefaultQueueLifecycle {
         this.clock = clock;
         this.config = config;
         this.nbProcessedEvents = new AtomicLong();
+        this.fairScheduler = config.isFairSchedulingEnabled() ? new WeightedFairScheduler(config) : null;
         // 数据库队列
-        this.dao = new DBBackedQueueWithPolling<NotificationEventModelDao>(clock, dbi, NotificationSqlDao.class, config, config.getTableName(), metricRegistry);
+        this.dao = new DBBackedQueueWithPolling<NotificationEventModelDao>(clock, dbi, NotificationSqlDao.class, config, config.getTableName(), metricRegistry, getWakeupSource(), databaseTransactionNotificationApi) {
+            @Override
+            protected boolean isReadyOnInsert(final NotificationEventModelDao entry) {
+                // Future notifications only become ready later on (counted on reconciliation). Based on the creation date rather than the
+                // current time, so that the same answer is given when the notification is claimed (see isCountedAsReady)
+                return !entry.getEffectiveDate().isAfter(entry.getCreatedDate());
+            }
+
+            @Override
+            protected List<NotificationEventModelDao> fetchReadyEntries(final Date now, final int maxEntries, @Nullable final String owner, final boolean skipLocked, final QueueSqlDao<NotificationEventModelDao> queueSqlDao) {
+                // Only claim notifications for queues started on this node: the others would stay claimed until reaped
+                final List<String> activeQueueNames = getActiveQueueNames();
+                if (activeQueueNames.isEmpty()) {
+                    return ImmutableList.<NotificationEventModelDao>of();
+                }
+                final NotificationSqlDao notificationSqlDao = (NotificationSqlDao) queueSqlDao;
+                if (fairScheduler != null) {
+                    return fetchReadyEntriesFairly(now, maxEntries, owner, skipLocked, notificationSqlDao, activeQueueNames);
+                }
+                return skipLocked ?
+                       notificationSqlDao.getReadyEntriesForQueueNamesSkipLocked(now, maxEntries, owner, activeQueueNames, config.getTableName()) :
+                       notificationSqlDao.getReadyEntriesForQueueNames(now, maxEntries, owner, activeQueueNames, config.getTableName());
+            }
+
+            @Override
+            protected void afterInsertFromTransaction(final List<NotificationEventModelDao> entries, final List<Long> recordIds) {
+                if (timingWheel == null) {
+                    return;
+                }
+                final long maxEffectiveDateMs = clock.getUTCNow().getMillis() + NotificationQueueDispatcher.this.config.getTimingWheelHorizon().getMillis();
+                for (int i = 0; i < entries.size(); i++) {
+                    final long effectiveDateMs = entries.get(i).getEffectiveDate().getMillis();
+                    if (effectiveDateMs <= maxEffectiveDateMs) {
+                        timingWheel.scheduleFromTransaction(recordIds.get(i), effectiveDateMs);
+                    }
+                }
+            }
+        };
+
+        final long timingWheelHorizonMs = config.getTimingWheelHorizon().getMillis();
+        if (timingWheelHorizonMs > 0) {
+            final long tickDurationMs = Math.max(1, config.getTimingWheelTickDuration().getMillis());
+            // One revolution covers the horizon
+            final int wheelSize = (int) Math.min(timingWheelHorizonMs / tickDurationMs + 1, MAX_TIMING_WHEEL_SIZE);
+            this.timingWheel = new HashedTimingWheel(config.getTableName() + "-timing-wheel", clock, tickDurationMs, wheelSize, config.getTimingWheelMaxEntries(), new HashedTimingWheel.ExpiryHandler() {
+                @Override
+                public void onExpired(final List<Long> recordIds) {
+                    dispatchDueNotifications(recordIds);
+                }
+            }, databaseTransactionNotificationApi);
+        } else {
+            this.timingWheel = null;
+        }
 
         this.queues = new TreeMap<String, NotificationQueue>();
 
         this.perQueueProcessingTime = new HashMap<String, Histogram>();
+        this.perQueueLag = new HashMap<String, Histogram>();
 
         this.metricRegistry = metricRegistry;
         this.isInitialized = new AtomicBoolean(false);
@@ -123,6 +204,10 @@ public class NotificationQueueDispatcher extends DefaultQueueLifecycle {
         this.activeQueues = 0;
         // 构建 reaper
         this.reaper = new NotificationReaper(this.dao, config, clock);
+        // Only started in keepCompletedEntriesInPlace mode
+        this.archiver = new DefaultArchiver(this.dao, config, "NotificationArchiver");
+        // Only started when the history table is partitioned
+        this.historyRetentionService = new HistoryRetentionService(dbi, config, clock, "NotificationHistoryRetention", "effective_date");
         // 构建回调对象
         this.notificationCallableCallback = new NotificationCallableCallback(this);
         // 构建 dispatcher
@@ -163,7 +248,12 @@ public class NotificationQueueDispatcher extends DefaultQueueLifecycle {
                 if (config.getPersistentQueueMode() == PersistentQueueMode.STICKY_POLLING) {
                     reaper.start();
                 }
+                archiver.start();
+                historyRetentionService.start();
                 super.startQueue();
+                if (timingWheel != null) {
+                    timingWheel.start();
+                }
                 isStarted = true;
                 return true;
             } else {
@@ -181,10 +271,18 @@ public class NotificationQueueDispatcher extends DefaultQueueLifecycle {
             //
             if (activeQueues == 0) {
                 isInitialized.set(false);
+                if (timingWheel != null) {
+                    timingWheel.stop();
+                }
                 reaper.stop();
+                archiver.stop();
+                historyRetentionService.stop();
                 super.stopQueue();
                 dispatcher.stop();
                 dao.close();
+                if (fairScheduler != null) {
+                    fairScheduler.reset();
+                }
                 isStarted = false;
             }
         }
@@ -197,32 +295,70 @@ public class NotificationQueueDispatcher extends DefaultQueueLifecycle {
 
     @Override
     public DispatchResultMetrics doDispatchEvents() {
+        dao.reconcileApproximateNbReadyEntriesIfNeeded();
         final List<NotificationEventModelDao> notifications = getReadyNotifications();
         if (notifications.isEmpty()) {
             return new DispatchResultMetrics(0, -1);
         }
         log.debug("Notifications from {} to process: {}", config.getTableName(), notifications);
 
-        for (final NotificationEventModelDao cur : notifications) {
-            // 派发事件
-            dispatcher.dispatch(cur);
-        }
+        dispatchNotifications(notifications);
         // No need to return time, this is easy to compute from caller
         return new DispatchResultMetrics(notifications.size(), -1);
     }
 
+    private void dispatchNotifications(final Iterable<NotificationEventModelDao> notifications) {
+        for (final NotificationEventModelDao cur : notifications) {
+            if (fairScheduler != null) {
+                fairScheduler.onDispatched(cur.getQueueName());
+            }
+            try {
+                // 派发事件
+                dispatcher.dispatch(cur);
+            } catch (final RuntimeException e) {
+                // Not submitted (e.g. RejectedExecutionException on shutdown): the notification won't be handled
+                onNotificationDone(cur);
+                throw e;
+            }
+        }
+    }
+
+    // Called by the timing wheel: the polling remains the safety net for anything not claimed here
+    @VisibleForTesting
+    void dispatchDueNotifications(final List<Long> recordIds) {
+        if (!isStarted) {
+            return;
+        }
+
+        final DateTime now = clock.getUTCNow();
+        final List<NotificationEventModelDao> notifications = ((DBBackedQueueWithPolling<NotificationEventModelDao>) dao).claimEntriesFromIds(recordIds, new Predicate<NotificationEventModelDao>() {
+            @Override
+            public boolean apply(final NotificationEventModelDao input) {
+                return !input.getEffectiveDate().isAfter(now) && getHandlerForActiveQueue(input.getQueueName()) != null;
+            }
+        });
+        if (!notifications.isEmpty()) {
+            log.debug("Due notifications from {} to process: {}", config.getTableName(), notifications);
+            dispatchNotifications(notifications);
+        }
+    }
+
+    // Releases the inflight slot of that notification (fair scheduling), taken in dispatchNotifications: called exactly once per dispatched
+    // notification, once it has been handled (see NotificationCallableCallback), or if it couldn't be handled at all
+    public void onNotificationDone(final NotificationEventModelDao notification) {
+        if (fairScheduler != null) {
+            fairScheduler.onDone(notification.getQueueName());
+        }
+    }
+
     @Override
     public void doProcessCompletedEvents(final Iterable<? extends EventEntryModelDao> completed) {
-        notificationCallableCallback.moveCompletedOrFailedEvents((Iterable<NotificationEventModelDao>) completed);
+        notificationCallableCallback.moveCompletedOrFailedEvents(ImmutableList.<NotificationEventModelDao>copyOf(Iterables.filter(completed, NotificationEventModelDao.class)));
     }
 
     @Override
     public void doProcessRetriedEvents(final Iterable<? extends EventEntryModelDao> retried) {
-        Iterator<? extends EventEntryModelDao> it = retried.iterator();
-        while (it.hasNext()) {
-            NotificationEventModelDao cur = (NotificationEventModelDao) it.next();
-            notificationCallableCallback.updateRetriedEvents(cur);
-        }
+        notificationCallableCallback.updateRetriedEvents(ImmutableList.<NotificationEventModelDao>copyOf(Iterables.filter(retried, NotificationEventModelDao.class)));
     }
 
     /**
@@ -239,20 +375,15 @@ public class NotificationQueueDispatcher extends DefaultQueueLifecycle {
         // - name would be too long (e.g entitlement-service:subscription-events-process-time -> ent-subscription-events-process-time)
         //
         final String[] parts = notification.getQueueName().split(":");
-        final String metricName = new StringBuilder(parts[0].substring(0, 3))
+        final String metricPrefix = new StringBuilder(parts[0].substring(0, 3))
                 .append("-")
-                .append(parts[1])
-                .append("-ProcessingTime").toString();
-
-        Histogram perQueueHistogramProcessingTime = perQueueProcessingTime.get(notification.getQueueName());
-        if (perQueueHistogramProcessingTime == null) {
-            synchronized (perQueueProcessingTime) {
-                if (!perQueueProcessingTime.containsKey(notification.getQueueName())) {
-                    perQueueProcessingTime.put(notification.getQueueName(), metricRegistry.histogram(MetricRegistry.name(NotificationQueueDispatcher.class, metricName)));
-                }
-                perQueueHistogramProcessingTime = perQueueProcessingTime.get(notification.getQueueName());
-            }
-        }
+                .append(parts[1]).toString();
+
+        final Histogram perQueueHistogramProcessingTime = getOrCreatePerQueueHistogram(perQueueProcessingTime, notification.getQueueName(), metricPrefix + "-ProcessingTime");
+
+        // How late the notification is processed compared to its effective date (ms)
+        final Histogram perQueueHistogramLag = getOrCreatePerQueueHistogram(perQueueLag, notification.getQueueName(), metricPrefix + "-Lag");
+        perQueueHistogramLag.update(Math.max(0, clock.getUTCNow().getMillis() - notification.getEffectiveDate().getMillis()));
 
         final long beforeProcessing = System.nanoTime();
         try {
@@ -269,6 +400,19 @@ public class NotificationQueueDispatcher extends DefaultQueueLifecycle {
         }
     }
 
+    private Histogram getOrCreatePerQueueHistogram(final Map<String, Histogram> perQueueHistograms, final String queueName, final String metricName) {
+        Histogram histogram = perQueueHistograms.get(queueName);
+        if (histogram == null) {
+            synchronized (perQueueHistograms) {
+                if (!perQueueHistograms.containsKey(queueName)) {
+                    perQueueHistograms.put(queueName, metricRegistry.histogram(MetricRegistry.name(NotificationQueueDispatcher.class, metricName)));
+                }
+                histogram = perQueueHistograms.get(queueName);
+            }
+        }
+        return histogram;
+    }
+
     /**
      * 获取queue绑定的处理器
      * @param compositeName
@@ -282,13 +426,42 @@ public class NotificationQueueDispatcher extends DefaultQueueLifecycle {
         return queue.getHandler();
     }
 
+    private List<NotificationEventModelDao> fetchReadyEntriesFairly(final Date now, final int maxEntries, @Nullable final String owner, final boolean skipLocked,
+                                                                   final NotificationSqlDao notificationSqlDao, final List<String> activeQueueNames) {
+        // Note that this issues one query per queue with a budget (instead of one for all the queues) on every poll
+        final Map<String, Integer> budgets = fairScheduler.nextRound(activeQueueNames, maxEntries);
+        final Map<String, List<NotificationEventModelDao>> entriesPerQueue = new LinkedHashMap<String, List<NotificationEventModelDao>>();
+        for (final Map.Entry<String, Integer> budget : budgets.entrySet()) {
+            final List<String> queueNames = ImmutableList.<String>of(budget.getKey());
+            final List<NotificationEventModelDao> entries = skipLocked ?
+                                                            notificationSqlDao.getReadyEntriesForQueueNamesSkipLocked(now, budget.getValue(), owner, queueNames, config.getTableName()) :
+                                                            notificationSqlDao.getReadyEntriesForQueueNames(now, budget.getValue(), owner, queueNames, config.getTableName());
+            fairScheduler.onFetched(budget.getKey(), budget.getValue(), entries.size());
+            entriesPerQueue.put(budget.getKey(), entries);
+        }
+        return fairScheduler.interleave(entriesPerQueue);
+    }
+
+    @VisibleForTesting
+    List<String> getActiveQueueNames() {
+        final List<String> activeQueueNames = new ArrayList<String>();
+        synchronized (queues) {
+            for (final Map.Entry<String, NotificationQueue> entry : queues.entrySet()) {
+                if (entry.getValue().isStarted()) {
+                    activeQueueNames.add(entry.getKey());
+                }
+            }
+        }
+        return activeQueueNames;
+    }
+
     private List<NotificationEventModelDao> getReadyNotifications() {
         final ReadyEntriesWithMetrics<NotificationEventModelDao> result = dao.getReadyEntries();
         final List<NotificationEventModelDao> input = result.getEntries();
         final List<NotificationEventModelDao> claimedNotifications = new ArrayList<NotificationEventModelDao>();
         for (final NotificationEventModelDao cur : input) {
 
-            // Skip non active queues...
+            // Skip non active queues (stopped since the entries were fetched)...
             final NotificationQueue queue = queues.get(cur.getQueueName());
             if (queue == null || !queue.isStarted()) {
                 continue;
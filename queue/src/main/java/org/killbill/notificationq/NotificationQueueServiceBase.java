@@ -21,7 +21,10 @@ package org.killbill.notificationq;
 import java.util.ArrayList;
 import java.util.List;
 
+import javax.annotation.Nullable;
+
 import org.killbill.clock.Clock;
+import org.killbill.commons.jdbi.notification.DatabaseTransactionNotificationApi;
 import org.killbill.notificationq.api.NotificationQueue;
 import org.killbill.notificationq.api.NotificationQueueConfig;
 import org.killbill.notificationq.api.NotificationQueueService;
@@ -33,7 +36,11 @@ import com.codahale.metrics.MetricRegistry;
 public abstract class NotificationQueueServiceBase extends NotificationQueueDispatcher implements NotificationQueueService {
 
     public NotificationQueueServiceBase(final Clock clock, final NotificationQueueConfig config, final IDBI dbi, final MetricRegistry metricRegistry) {
-        super(clock, config, dbi, metricRegistry);
+        this(clock, config, dbi, metricRegistry, null);
+    }
+
+    public NotificationQueueServiceBase(final Clock clock, final NotificationQueueConfig config, final IDBI dbi, final MetricRegistry metricRegistry, @Nullable final DatabaseTransactionNotificationApi databaseTransactionNotificationApi) {
+        super(clock, config, dbi, metricRegistry, databaseTransactionNotificationApi);
     }
 
     @Override
@@ -0,0 +1,196 @@
+/*
+ * Copyright 2014-2019 Groupon, Inc
+ * Copyright 2014-2019 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.notificationq;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.killbill.notificationq.api.NotificationQueueConfig;
+import org.killbill.notificationq.dao.NotificationEventModelDao;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Splitter;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableMap;
+
+//
+// Deficit round-robin across the notification queues sharing a NotificationQueueDispatcher, so that a backlog on one queue doesn't starve the others:
+// - Each round (i.e. poll), every active queue earns weight * quantum credits and can claim up to its credits, bounded by its max number
+//   of inflight entries; the total is bounded by maxEntriesClaimed, and the first queue served rotates from one round to the next
+// - A queue which has no more ready entries loses its remaining credits
+// - The claimed entries are then submitted to the Dispatcher interleaved by weight
+//
+public class WeightedFairScheduler {
+
+    private static final int DEFAULT_WEIGHT = 1;
+
+    private final Map<String, Integer> weights;
+    private final Map<String, Integer> maxInflightEntries;
+
+    // Guarded by this
+    private final Map<String, Long> deficits;
+    private long nbRounds;
+
+    private final Map<String, AtomicInteger> nbInflightEntries;
+
+    public WeightedFairScheduler(final NotificationQueueConfig config) {
+        this(parseQueueValues(config.getFairSchedulingWeights()), parseQueueValues(config.getFairSchedulingMaxInflightEntries()));
+    }
+
+    public WeightedFairScheduler(final Map<String, Integer> weights, final Map<String, Integer> maxInflightEntries) {
+        this.weights = ImmutableMap.copyOf(weights);
+        this.maxInflightEntries = ImmutableMap.copyOf(maxInflightEntries);
+        this.deficits = new HashMap<String, Long>();
+        this.nbRounds = 0;
+        this.nbInflightEntries = new ConcurrentHashMap<String, AtomicInteger>();
+    }
+
+    /**
+     * @param activeQueueNames queues started on this node
+     * @param maxEntries       max number of entries to claim in that round
+     * @return the max number of entries to claim per queue, in the order the queues should be served
+     */
+    public synchronized Map<String, Integer> nextRound(final List<String> activeQueueNames, final int maxEntries) {
+        final Map<String, Integer> budgets = new LinkedHashMap<String, Integer>();
+        if (activeQueueNames.isEmpty() || maxEntries <= 0) {
+            return budgets;
+        }
+
+        long totalWeight = 0;
+        for (final String queueName : activeQueueNames) {
+            totalWeight += getWeight(queueName);
+        }
+        final long quantum = Math.max(1, maxEntries / totalWeight);
+
+        int remaining = maxEntries;
+        final int first = (int) (nbRounds++ % activeQueueNames.size());
+        for (int i = 0; i < activeQueueNames.size(); i++) {
+            final String queueName = activeQueueNames.get((first + i) % activeQueueNames.size());
+            final long queueQuantum = getWeight(queueName) * quantum;
+            // Credits not used because of the caps are kept for one more round only, to avoid bursts
+            final Long curDeficit = deficits.get(queueName);
+            final long deficit = Math.min((curDeficit == null ? 0 : curDeficit) + queueQuantum, 2 * queueQuantum);
+            deficits.put(queueName, deficit);
+
+            int budget = (int) Math.min(deficit, remaining);
+            final Integer maxInflight = maxInflightEntries.get(queueName);
+            if (maxInflight != null && maxInflight > 0) {
+                budget = Math.min(budget, Math.max(0, maxInflight - getNbInflightEntries(queueName)));
+            }
+            if (budget > 0) {
+                budgets.put(queueName, budget);
+                remaining -= budget;
+            }
+        }
+        return budgets;
+    }
+
+    public synchronized void onFetched(final String queueName, final int budget, final int nbFetched) {
+        final Long deficit = deficits.get(queueName);
+        if (deficit == null || nbFetched < budget) {
+            // Nothing left for that queue
+            deficits.put(queueName, 0L);
+        } else {
+            deficits.put(queueName, Math.max(0, deficit - nbFetched));
+        }
+    }
+
+    /**
+     * @param entriesPerQueue entries claimed for each queue, in the order returned by nextRound
+     * @return the entries to dispatch, interleaved by weight (e.g. 2 entries of a queue with weight 2, then 1 entry of a queue with weight 1, ...)
+     */
+    public List<NotificationEventModelDao> interleave(final Map<String, List<NotificationEventModelDao>> entriesPerQueue) {
+        final List<NotificationEventModelDao> result = new ArrayList<NotificationEventModelDao>();
+        final Map<String, Iterator<NotificationEventModelDao>> iterators = new LinkedHashMap<String, Iterator<NotificationEventModelDao>>();
+        for (final Map.Entry<String, List<NotificationEventModelDao>> entry : entriesPerQueue.entrySet()) {
+            iterators.put(entry.getKey(), entry.getValue().iterator());
+        }
+
+        boolean hasMore = true;
+        while (hasMore) {
+            hasMore = false;
+            for (final Map.Entry<String, Iterator<NotificationEventModelDao>> entry : iterators.entrySet()) {
+                final Iterator<NotificationEventModelDao> iterator = entry.getValue();
+                for (int i = 0; i < getWeight(entry.getKey()) && iterator.hasNext(); i++) {
+                    result.add(iterator.next());
+                }
+                hasMore = hasMore || iterator.hasNext();
+            }
+        }
+        return result;
+    }
+
+    public void onDispatched(final String queueName) {
+        AtomicInteger counter = nbInflightEntries.get(queueName);
+        if (counter == null) {
+            nbInflightEntries.putIfAbsent(queueName, new AtomicInteger());
+            counter = nbInflightEntries.get(queueName);
+        }
+        counter.incrementAndGet();
+    }
+
+    public void onDone(final String queueName) {
+        final AtomicInteger counter = nbInflightEntries.get(queueName);
+        if (counter == null) {
+            return;
+        }
+        int cur;
+        do {
+            cur = counter.get();
+        } while (cur > 0 && !counter.compareAndSet(cur, cur - 1));
+    }
+
+    public int getNbInflightEntries(final String queueName) {
+        final AtomicInteger counter = nbInflightEntries.get(queueName);
+        return counter == null ? 0 : counter.get();
+    }
+
+    public synchronized void reset() {
+        deficits.clear();
+        nbRounds = 0;
+        nbInflightEntries.clear();
+    }
+
+    private int getWeight(final String queueName) {
+        final Integer weight = weights.get(queueName);
+        return weight == null || weight <= 0 ? DEFAULT_WEIGHT : weight;
+    }
+
+    // Format: svc1:queue1=value1,svc2:queue2=value2
+    @VisibleForTesting
+    static Map<String, Integer> parseQueueValues(final String spec) {
+        final Map<String, Integer> result = new HashMap<String, Integer>();
+        if (Strings.isNullOrEmpty(spec)) {
+            return result;
+        }
+        for (final String queueValue : Splitter.on(',').trimResults().omitEmptyStrings().split(spec)) {
+            final int separator = queueValue.lastIndexOf('=');
+            if (separator <= 0 || separator == queueValue.length() - 1) {
+                throw new IllegalArgumentException(String.format("Invalid queue value '%s', expected <svc>:<queue>=<value>", queueValue));
+            }
+            result.put(queueValue.substring(0, separator).trim(), Integer.valueOf(queueValue.substring(separator + 1).trim()));
+        }
+        return result;
+    }
+}
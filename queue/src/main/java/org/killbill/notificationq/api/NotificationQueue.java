@@ -22,9 +22,13 @@ import java.io.IOException;
 import java.sql.Connection;
 import java.util.UUID;
 
+import javax.annotation.Nullable;
+
 import org.joda.time.DateTime;
 import org.killbill.notificationq.api.NotificationQueueService.NotificationQueueHandler;
+import org.killbill.queue.api.KeysetPage;
 import org.killbill.queue.api.QueueLifecycle;
+import org.skife.jdbi.v2.ResultIterator;
 
 
 /**
@@ -62,6 +66,19 @@ public interface NotificationQueue extends QueueLifecycle {
                                   final Long searchKey2)
             throws IOException;
 
+    /**
+     * Same as recordFutureNotification, but returns the record id of the new notification (e.g. to remove it later on)
+     *
+     * @return the record id of the notification
+     * @throws IOException if the serialization of the event fails
+     */
+    Long recordFutureNotificationAndGetRecordId(final DateTime futureNotificationTime,
+                                                final NotificationEvent eventJson,
+                                                final UUID userToken,
+                                                final Long searchKey1,
+                                                final Long searchKey2)
+            throws IOException;
+
     /**
      * @param connection             the transaction that should be used to record the event
      * @param futureNotificationTime the time at which the notification is ready
@@ -79,6 +96,26 @@ public interface NotificationQueue extends QueueLifecycle {
                                                  final Long searchKey2)
             throws IOException;
 
+    /**
+     * Record a batch of notifications using a JDBC batch insert (single transaction)
+     *
+     * @param notifications the notifications to record
+     * @throws IOException if the serialization of one of the events fails (nothing is recorded)
+     */
+    void recordFutureNotifications(final Iterable<FutureNotification> notifications)
+            throws IOException;
+
+    /**
+     * Record a batch of notifications using a JDBC batch insert
+     *
+     * @param connection    the transaction that should be used to record the events
+     * @param notifications the notifications to record
+     * @throws IOException if the serialization of one of the events fails (nothing is recorded)
+     */
+    void recordFutureNotificationsFromTransaction(final Connection connection,
+                                                  final Iterable<FutureNotification> notifications)
+            throws IOException;
+
 
     void updateFutureNotification(final Long recordId,
                                   final NotificationEvent eventJson,
@@ -190,6 +227,27 @@ public interface NotificationQueue extends QueueLifecycle {
      */
     <T extends NotificationEvent> Iterable<NotificationEventWithMetadata<T>> getHistoricalNotificationForSearchKey2(final DateTime minEffectiveDate, final Long searchKey2);
 
+    /**
+     * Retrieve one page of historical notifications associated with that queue and matching that search key, ordered by record_id
+     *
+     * @param minEffectiveDate effective_date cutoff, to limit the search
+     * @param searchKey2 the value for key2
+     * @param fromRecordId the cursor returned by the previous page (KeysetPage#getNextRecordId), or null for the first page
+     * @param limit the max number of entries in the page, must be positive
+     * @return a page of NotificationEventWithMetadata objects matching the search
+     */
+    <T extends NotificationEvent> KeysetPage<NotificationEventWithMetadata<T>> getHistoricalNotificationForSearchKey2(final DateTime minEffectiveDate, final Long searchKey2, @Nullable final Long fromRecordId, final int limit);
+
+    /**
+     * Stream all historical notifications associated with that queue and matching that search key: rows are fetched from the database
+     * as the iterator is consumed. The iterator holds a database connection and must be closed if it isn't fully consumed.
+     *
+     * @param minEffectiveDate effective_date cutoff, to limit the search
+     * @param searchKey2 the value for key2
+     * @return an iterator of NotificationEventWithMetadata objects matching the search
+     */
+    <T extends NotificationEvent> ResultIterator<NotificationEventWithMetadata<T>> streamHistoricalNotificationForSearchKey2(final DateTime minEffectiveDate, final Long searchKey2);
+
     /**
      * Count the number of notifications ready to be processed
      *
@@ -198,6 +256,23 @@ public interface NotificationQueue extends QueueLifecycle {
      */
     long getNbReadyEntries(final DateTime maxEffectiveDate);
 
+    /**
+     * Claim the notification, so that it doesn't get dispatched by the queue (e.g. because it is processed somewhere else).
+     * As for any claimed entry, if it is neither released nor removed, only the reaper eventually makes it available again:
+     * the reaper only runs in STICKY_POLLING mode, so in POLLING mode the notification stays claimed.
+     *
+     * @param recordId the recordId
+     * @return true if the notification was claimed, false if it has already been claimed or processed
+     */
+    boolean claimNotification(final Long recordId);
+
+    /**
+     * Release a notification claimed with claimNotification, so that it gets dispatched by the queue as usual
+     *
+     * @param recordId the recordId
+     */
+    void releaseNotification(final Long recordId);
+
     /**
      * Move the notification to history table and mark it as 'removed'
      *
@@ -52,6 +52,14 @@ public abstract class NotificationQueueConfig implements PersistentQueueConfig {
     @Description("Max number of bus events to fetch from the database at once (only valid in 'STICKY_EVENTS')")
     public abstract int getMaxInFlightEntries();
 
+    @Override
+    @Config("org.killbill.notificationq.${instanceName}.inflight.capacity")
+    @Default("0")
+    @Description("Max number of notifications kept in memory, the others are left in the database and fetched once the inflightQ drains (0 means unbounded, only valid in 'STICKY_EVENTS')")
+    public int getInflightQueueCapacity() {
+        return PersistentQueueConfig.super.getInflightQueueCapacity();
+    }
+
     @Override
     @Config("org.killbill.notificationq.${instanceName}.claimed")
     @Default("10")
@@ -70,12 +78,44 @@ public abstract class NotificationQueueConfig implements PersistentQueueConfig {
     @Description("Claim time")
     public abstract TimeSpan getClaimedTime();
 
+    @Override
+    @Config("org.killbill.notificationq.${instanceName}.claim.skipLocked")
+    @Default("false")
+    @Description("Whether to fetch and claim entries using SELECT ... FOR UPDATE SKIP LOCKED (requires MySQL 8+ or PostgreSQL 9.5+)")
+    public boolean isSkipLockedClaimEnabled() {
+        return PersistentQueueConfig.super.isSkipLockedClaimEnabled();
+    }
+
     @Override
     @Config("org.killbill.notificationq.${instanceName}.sleep")
     @Default("3000")
     @Description("Time in milliseconds to sleep between runs")
     public abstract long getPollingSleepTimeMs();
 
+    @Override
+    @Config("org.killbill.notificationq.${instanceName}.wakeup.mode")
+    @Default("NONE")
+    @Description("How dispatcher threads are woken up for new entries, the sleep time becoming a backstop timeout")
+    public QueueWakeupMode getWakeupMode() {
+        return PersistentQueueConfig.super.getWakeupMode();
+    }
+
+    @Override
+    @Config("org.killbill.notificationq.${instanceName}.sleep.adaptive")
+    @Default("false")
+    @Description("Whether to back off exponentially (up to sleep.max) on empty polls, and to poll again right away after a full batch")
+    public boolean isAdaptivePollingEnabled() {
+        return PersistentQueueConfig.super.isAdaptivePollingEnabled();
+    }
+
+    @Override
+    @Config("org.killbill.notificationq.${instanceName}.sleep.max")
+    @Default("30000")
+    @Description("Max time in milliseconds to sleep between runs when adaptive polling is enabled")
+    public long getMaxPollingSleepTimeMs() {
+        return PersistentQueueConfig.super.getMaxPollingSleepTimeMs();
+    }
+
     @Override
     @Config("org.killbill.notificationq.${instanceName}.notification.off")
     @Default("false")
@@ -88,6 +128,22 @@ public abstract class NotificationQueueConfig implements PersistentQueueConfig {
     @Description("Number of threads to use")
     public abstract int geMaxDispatchThreads();
 
+    @Override
+    @Config("org.killbill.notificationq.${instanceName}.dispatch.mode")
+    @Default("POOL")
+    @Description("How notifications are dispatched to the handlers: POOL, KEY_PARTITIONED (nbThreads serial lanes, keeping the order of events with the same search keys) or VIRTUAL_THREADS")
+    public DispatchMode getDispatchMode() {
+        return PersistentQueueConfig.super.getDispatchMode();
+    }
+
+    @Override
+    @Config("org.killbill.notificationq.${instanceName}.dispatch.maxConcurrency")
+    @Default("1000")
+    @Description("Max number of notifications dispatched concurrently (only valid in VIRTUAL_THREADS dispatch mode)")
+    public int getMaxDispatchConcurrency() {
+        return PersistentQueueConfig.super.getMaxDispatchConcurrency();
+    }
+
     @Override
     @Config("org.killbill.notificationq.${instanceName}.lifecycle.dispatch.nbThreads")
     @Default("1")
@@ -100,12 +156,36 @@ public abstract class NotificationQueueConfig implements PersistentQueueConfig {
     @Description("Max number of lifecycle complete threads to use")
     public abstract int geNbLifecycleCompleteThreads();
 
+    @Override
+    @Config("org.killbill.notificationq.${instanceName}.lifecycle.complete.batchSize")
+    @Default("100")
+    @Description("Max number of completed entries moved to history in a single transaction")
+    public int getMaxCompletedEntriesBatchSize() {
+        return PersistentQueueConfig.super.getMaxCompletedEntriesBatchSize();
+    }
+
+    @Override
+    @Config("org.killbill.notificationq.${instanceName}.lifecycle.complete.maxDelayMs")
+    @Default("0")
+    @Description("How long the lifecycle complete threads wait for more completed entries when less than a full batch is pending")
+    public long getCompletedEntriesMaxDelayMs() {
+        return PersistentQueueConfig.super.getCompletedEntriesMaxDelayMs();
+    }
+
     @Override
     @Config("org.killbill.notificationq.${instanceName}.queue.capacity")
     @Default("100")
     @Description("Capacity for the worker queue")
     public abstract int getEventQueueCapacity();
 
+    @Override
+    @Config("org.killbill.notificationq.${instanceName}.eventEncoding")
+    @Default("JSON")
+    @Description("How events are encoded in the event_json column: JSON, DEFLATE or SMILE_DEFLATE. Nodes running a version without that encoding can't decode such rows: only enable it once every node has been upgraded")
+    public EventEncoding getEventEncoding() {
+        return PersistentQueueConfig.super.getEventEncoding();
+    }
+
     @Override
     @Config("org.killbill.notificationq.${instanceName}.tableName")
     @Default("notifications")
@@ -135,4 +215,140 @@ public abstract class NotificationQueueConfig implements PersistentQueueConfig {
     @Default("3m")
     @Description("Reaper schedule period")
     public abstract TimeSpan getReapSchedule();
+
+    @Override
+    @Config("org.killbill.notificationq.${instanceName}.keepCompletedEntriesInPlace")
+    @Default("false")
+    @Description("Whether completed entries should only be marked in place (processing_state), the archiver moving them to the history table later on")
+    public boolean isKeepCompletedEntriesInPlace() {
+        return PersistentQueueConfig.super.isKeepCompletedEntriesInPlace();
+    }
+
+    @Override
+    @Config("org.killbill.notificationq.${instanceName}.archiver.chunkSize")
+    @Default("1000")
+    @Description("Size of the record_id range moved to the history table per archiver transaction")
+    public int getArchiverChunkSize() {
+        return PersistentQueueConfig.super.getArchiverChunkSize();
+    }
+
+    @Override
+    @Config("org.killbill.notificationq.${instanceName}.archiver.maxRowsPerSecond")
+    @Default("5000")
+    @Description("Max number of rows per second moved to the history table by the archiver")
+    public int getArchiverMaxRowsPerSecond() {
+        return PersistentQueueConfig.super.getArchiverMaxRowsPerSecond();
+    }
+
+    @Override
+    @Config("org.killbill.notificationq.${instanceName}.archiver.schedule")
+    @Default("10s")
+    @Description("Archiver schedule period (only valid when keepCompletedEntriesInPlace is set)")
+    public TimeSpan getArchiverSchedule() {
+        return PersistentQueueConfig.super.getArchiverSchedule();
+    }
+
+    @Override
+    @Config("org.killbill.notificationq.${instanceName}.history.partitioning.enabled")
+    @Default("false")
+    @Description("Whether the history table is partitioned by month on effective_date (see ddl_history_partitioned_*.sql), old partitions being dropped by the retention service")
+    public boolean isHistoryPartitioningEnabled() {
+        return PersistentQueueConfig.super.isHistoryPartitioningEnabled();
+    }
+
+    @Override
+    @Config("org.killbill.notificationq.${instanceName}.history.retention")
+    @Default("365d")
+    @Description("How long history entries are kept: a monthly partition is dropped once all its entries are older than that")
+    public TimeSpan getHistoryRetention() {
+        return PersistentQueueConfig.super.getHistoryRetention();
+    }
+
+    @Override
+    @Config("org.killbill.notificationq.${instanceName}.history.partitionsAhead")
+    @Default("2")
+    @Description("Number of monthly history partitions created in advance")
+    public int getHistoryPartitionsAhead() {
+        return PersistentQueueConfig.super.getHistoryPartitionsAhead();
+    }
+
+    @Override
+    @Config("org.killbill.notificationq.${instanceName}.history.retentionSchedule")
+    @Default("1h")
+    @Description("History retention service schedule period")
+    public TimeSpan getHistoryRetentionSchedule() {
+        return PersistentQueueConfig.super.getHistoryRetentionSchedule();
+    }
+
+    @Override
+    @Config("org.killbill.notificationq.${instanceName}.readyCount.reconcileInterval")
+    @Default("30s")
+    @Description("How often the in-memory approximate number of ready entries is reconciled against the database")
+    public TimeSpan getReadyCountReconcileInterval() {
+        return PersistentQueueConfig.super.getReadyCountReconcileInterval();
+    }
+
+    @Override
+    @Config("org.killbill.notificationq.${instanceName}.readyCount.maxExactQueriesPerSecond")
+    @Default("10")
+    @Description("Max number of exact ready entries count queries (getNbReadyEntries) per second, callers being throttled above that")
+    public int getMaxExactReadyCountQueriesPerSecond() {
+        return PersistentQueueConfig.super.getMaxExactReadyCountQueriesPerSecond();
+    }
+
+    @Config("org.killbill.notificationq.${instanceName}.fairScheduling.enabled")
+    @Default("false")
+    @Description("Whether ready notifications are claimed and dispatched per queue, in weighted (deficit) round-robin, instead of in one effective_date ordered batch (note: each poll then runs one query per active queue)")
+    public boolean isFairSchedulingEnabled() {
+        return false;
+    }
+
+    @Config("org.killbill.notificationq.${instanceName}.fairScheduling.weights")
+    @Default("")
+    @Description("Per queue weights, e.g. payment-service:payment-queue=4,invoice-service:retry-queue=1 (queues not listed have a weight of 1)")
+    public String getFairSchedulingWeights() {
+        return "";
+    }
+
+    @Config("org.killbill.notificationq.${instanceName}.fairScheduling.maxInflightEntries")
+    @Default("")
+    @Description("Per queue max number of notifications dispatched but not handled yet, e.g. invoice-service:retry-queue=5 (queues not listed are not capped)")
+    public String getFairSchedulingMaxInflightEntries() {
+        return "";
+    }
+
+    @Config("org.killbill.notificationq.${instanceName}.timingWheel.horizon")
+    @Default("0s")
+    @Description("Notifications committed on this node and due within that horizon are dispatched from an in-memory timing wheel when they come due, instead of on the next poll (0 to disable)")
+    public TimeSpan getTimingWheelHorizon() {
+        return new TimeSpan("0s");
+    }
+
+    @Config("org.killbill.notificationq.${instanceName}.timingWheel.tickDuration")
+    @Default("100ms")
+    @Description("Timing wheel tick duration, i.e. max delay between the effective date and the dispatch of a notification")
+    public TimeSpan getTimingWheelTickDuration() {
+        return new TimeSpan("100ms");
+    }
+
+    @Config("org.killbill.notificationq.${instanceName}.timingWheel.maxEntries")
+    @Default("10000")
+    @Description("Max number of notifications in the timing wheel, additional ones being picked up by the polling")
+    public int getTimingWheelMaxEntries() {
+        return 10000;
+    }
+
+    @Config("org.killbill.notificationq.${instanceName}.retry.local.threshold")
+    @Default("0s")
+    @Description("Retries (RetryableService) due within that delay are attempted in memory instead of going through the retry notification queue (0 to disable, requires STICKY_POLLING mode)")
+    public TimeSpan getLocalRetryThreshold() {
+        return new TimeSpan("0s");
+    }
+
+    @Config("org.killbill.notificationq.${instanceName}.retry.local.markerGracePeriod")
+    @Default("5m")
+    @Description("Delay after the retry date after which a local retry which didn't complete happens from the retry notification queue (should be larger than the processing time of the handler)")
+    public TimeSpan getLocalRetryMarkerGracePeriod() {
+        return new TimeSpan("5m");
+    }
 }
@@ -18,16 +18,23 @@
 
 package org.killbill.notificationq.dao;
 
+import java.util.Collection;
+import java.util.Date;
 import java.util.Iterator;
+import java.util.List;
+
+import javax.annotation.Nullable;
 
 import org.joda.time.DateTime;
 import org.killbill.commons.jdbi.statement.SmartFetchSize;
 import org.killbill.commons.jdbi.template.KillBillSqlDaoStringTemplate;
 import org.killbill.queue.dao.QueueSqlDao;
+import org.skife.jdbi.v2.ResultIterator;
 import org.skife.jdbi.v2.sqlobject.Bind;
 import org.skife.jdbi.v2.sqlobject.SqlQuery;
 import org.skife.jdbi.v2.sqlobject.SqlUpdate;
 import org.skife.jdbi.v2.sqlobject.customizers.Define;
+import org.skife.jdbi.v2.unstable.BindIn;
 
 /**
  *
@@ -36,6 +43,40 @@ import org.skife.jdbi.v2.sqlobject.customizers.Define;
 @KillBillSqlDaoStringTemplate
 public interface NotificationSqlDao extends QueueSqlDao<NotificationEventModelDao> {
 
+    /**
+     * Same as getReadyEntries, restricted to the given queue names (i.e. the queues started on this node),
+     * so that we don't claim notifications we would not be able to dispatch.
+     *
+     *     select
+     *       <allTableFields()>
+     *     from notifications
+     *     where
+     *       queue_name in ('svc:queue1', 'svc:queue2')
+     *       and effective_date <= '2020-07-27 07:29:44'
+     *       and processing_state = 'AVAILABLE'
+     *     order by
+     *       <readyOrderByClause()>
+     *     limit :max
+     *
+     * @param queueNames must not be empty
+     */
+    @SqlQuery
+    List<NotificationEventModelDao> getReadyEntriesForQueueNames(@Bind("now") Date now,
+                                                                 @Bind("max") int max,
+                                                                 @Nullable @Define("owner") String owner,
+                                                                 @BindIn("queue_names") final Collection<String> queueNames,
+                                                                 @Define("tableName") final String tableName);
+
+    /**
+     * Same as getReadyEntriesForQueueNames, with FOR UPDATE SKIP LOCKED (see getReadyEntriesSkipLocked)
+     */
+    @SqlQuery
+    List<NotificationEventModelDao> getReadyEntriesForQueueNamesSkipLocked(@Bind("now") Date now,
+                                                                           @Bind("max") int max,
+                                                                           @Nullable @Define("owner") String owner,
+                                                                           @BindIn("queue_names") final Collection<String> queueNames,
+                                                                           @Define("tableName") final String tableName);
+
     @SqlQuery
     @SmartFetchSize(shouldStream = true)
     Iterator<NotificationEventModelDao> getReadyQueueEntriesForSearchKeys(@Bind("queueName") String queueName,
@@ -89,9 +130,20 @@ public interface NotificationSqlDao extends QueueSqlDao<NotificationEventModelDa
 
     @SqlQuery
     @SmartFetchSize(shouldStream = true)
-    Iterator<NotificationEventModelDao> getHistoricalQueueEntriesForSearchKey2(@Bind("queueName") String queueName,
+    ResultIterator<NotificationEventModelDao> getHistoricalQueueEntriesForSearchKey2(@Bind("queueName") String queueName,
+                                                                                     @Bind("minEffectiveDate") final DateTime minEffectiveDate,
+                                                                                     @Bind("searchKey2") final Long searchKey2,
+                                                                                     @Define("historyTableName") final String historyTableName);
+
+    /**
+     * Keyset paginated version of getHistoricalQueueEntriesForSearchKey2: entries with record_id >= fromRecordId, ordered by record_id
+     */
+    @SqlQuery
+    List<NotificationEventModelDao> getHistoricalQueueEntriesForSearchKey2Page(@Bind("queueName") String queueName,
                                                                                @Bind("minEffectiveDate") final DateTime minEffectiveDate,
                                                                                @Bind("searchKey2") final Long searchKey2,
+                                                                               @Bind("fromRecordId") final long fromRecordId,
+                                                                               @Bind("max") final int max,
                                                                                @Define("historyTableName") final String historyTableName);
 
     @SqlUpdate
@@ -36,7 +36,7 @@ public class NotificationCallableCallback extends CallableCallbackBase<Notificat
     private final NotificationQueueDispatcher parent;
 
     public NotificationCallableCallback(final NotificationQueueDispatcher parent) {
-        super(parent.getDao(), parent.getClock(), parent.getConfig(), parent.getObjectMapper());
+        super(parent.getDao(), parent.getClock(), parent.getConfig(), parent.getEventCodec());
         this.parent = parent;
     }
 
@@ -48,16 +48,31 @@ public class NotificationCallableCallback extends CallableCallbackBase<Notificat
      */
     @Override
     public void dispatch(final NotificationEvent event, final NotificationEventModelDao modelDao) throws NotificationQueueException {
-        // 获取 modelDao#queueName 绑定的消息处理器
-        final NotificationQueueService.NotificationQueueHandler handler = parent.getHandlerForActiveQueue(modelDao.getQueueName());
-        if (handler == null) {
-            // Will increment errorCount and eventually move to history table.
-            throw new IllegalStateException(String.format("Cannot find handler for notification: queue = %s, record_id = %s",
-                    modelDao.getQueueName(),
-                    modelDao.getRecordId()));
+        try {
+            // 获取 modelDao#queueName 绑定的消息处理器
+            final NotificationQueueService.NotificationQueueHandler handler = parent.getHandlerForActiveQueue(modelDao.getQueueName());
+            if (handler == null) {
+                // Will increment errorCount and eventually move to history table.
+                throw new IllegalStateException(String.format("Cannot find handler for notification: queue = %s, record_id = %s",
+                        modelDao.getQueueName(),
+                        modelDao.getRecordId()));
+            }
+            // 委托给消息派发器
+            parent.handleNotificationWithMetrics(handler, modelDao, event);
+        } finally {
+            // Handled (successfully or not)
+            parent.onNotificationDone(modelDao);
         }
-        // 委托给消息派发器
-        parent.handleNotificationWithMetrics(handler, modelDao, event);
+    }
+
+    @Override
+    public NotificationEvent deserialize(final NotificationEventModelDao modelDao) {
+        final NotificationEvent event = super.deserialize(modelDao);
+        if (event == null) {
+            // The entry won't be dispatched
+            parent.onNotificationDone(modelDao);
+        }
+        return event;
     }
 
     @Override
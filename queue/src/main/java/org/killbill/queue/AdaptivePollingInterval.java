@@ -0,0 +1,72 @@
+/*
+ * Copyright 2014-2019 Groupon, Inc
+ * Copyright 2014-2019 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.queue;
+
+import org.killbill.queue.api.PersistentQueueConfig;
+
+//
+// Computes how long the dispatcher threads should sleep between two polls:
+// - When disabled, this is always getPollingSleepTimeMs()
+// - When enabled, the interval doubles (up to getMaxPollingSleepTimeMs()) for each consecutive empty poll, goes back
+//   to getPollingSleepTimeMs() when some entries were found, and drops to 0 when a full batch was claimed (there is likely more work waiting).
+// The empty poll streak is per dispatcher thread: each thread must use its own instance.
+//
+public class AdaptivePollingInterval {
+
+    private final boolean isEnabled;
+    private final long minSleepTimeMs;
+    private final long maxSleepTimeMs;
+    private final int fullBatchSize;
+
+    private long curSleepTimeMs;
+
+    public AdaptivePollingInterval(final PersistentQueueConfig config) {
+        this(config.isAdaptivePollingEnabled(), config.getPollingSleepTimeMs(), config.getMaxPollingSleepTimeMs(), config.getMaxEntriesClaimed());
+    }
+
+    public AdaptivePollingInterval(final boolean isEnabled, final long minSleepTimeMs, final long maxSleepTimeMs, final int fullBatchSize) {
+        this.isEnabled = isEnabled;
+        this.minSleepTimeMs = minSleepTimeMs;
+        this.maxSleepTimeMs = Math.max(minSleepTimeMs, maxSleepTimeMs);
+        this.fullBatchSize = fullBatchSize;
+        this.curSleepTimeMs = minSleepTimeMs;
+    }
+
+    /**
+     * @param nbEntries number of entries dispatched during the last poll
+     * @return the time to sleep before the next poll
+     */
+    public synchronized long onDispatch(final int nbEntries) {
+        if (!isEnabled) {
+            return minSleepTimeMs;
+        }
+
+        if (nbEntries == 0) {
+            curSleepTimeMs = Math.min(maxSleepTimeMs, Math.max(minSleepTimeMs, curSleepTimeMs * 2));
+        } else if (nbEntries >= fullBatchSize) {
+            curSleepTimeMs = 0;
+        } else {
+            curSleepTimeMs = minSleepTimeMs;
+        }
+        return curSleepTimeMs;
+    }
+
+    public synchronized long getCurrentSleepTimeMs() {
+        return curSleepTimeMs;
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2014-2019 Groupon, Inc
+ * Copyright 2014-2019 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.queue;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+//
+// Multi-producer queue feeding the lifecycle complete threads, which consume entries in batches:
+// - Producers (the dispatch threads) never block: entries go into a lock-free queue, the lock is only taken to wake up an idle consumer
+// - A consumer returns a full batch right away when enough entries are pending (backlog), otherwise it waits for up to maxDelay
+//   after the first entry showed up, so that entries accumulate into a larger transaction
+//
+public class CompletionBatchingQueue<E> {
+
+    private final ConcurrentLinkedQueue<E> queue;
+    private final AtomicInteger size;
+    private final AtomicInteger nbWaiters;
+    private final int maxBatchSize;
+    private final long maxDelayNanos;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmptyOrFull = lock.newCondition();
+
+    public CompletionBatchingQueue(final int maxBatchSize, final long maxDelay, final TimeUnit unit) {
+        this.queue = new ConcurrentLinkedQueue<E>();
+        this.size = new AtomicInteger(0);
+        this.nbWaiters = new AtomicInteger(0);
+        this.maxBatchSize = Math.max(1, maxBatchSize);
+        this.maxDelayNanos = unit.toNanos(Math.max(0, maxDelay));
+    }
+
+    public void add(final E entry) {
+        queue.offer(entry);
+        final int newSize = size.incrementAndGet();
+        // Only the first entry (to start the batch) and a full batch are worth waking up a consumer
+        if ((newSize == 1 || newSize >= maxBatchSize) && nbWaiters.get() > 0) {
+            lock.lock();
+            try {
+                // Consumers may wait for different conditions (first entry or full batch)
+                notEmptyOrFull.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Waits for the next batch and moves it into target.
+     *
+     * @param target      where to add the entries
+     * @param idleTimeout how long to wait for a first entry
+     * @param unit        unit for idleTimeout
+     * @return the number of entries added to target (0 if the idle timeout expired)
+     */
+    public int drainBatch(final Collection<? super E> target, final long idleTimeout, final TimeUnit unit) throws InterruptedException {
+        if (size.get() < maxBatchSize) {
+            if (!awaitSize(1, unit.toNanos(idleTimeout))) {
+                return 0;
+            }
+            // Some entries are there: give a chance to other ones to join the batch
+            awaitSize(maxBatchSize, maxDelayNanos);
+        }
+        return drainTo(target, maxBatchSize);
+    }
+
+    public int drainTo(final Collection<? super E> target, final int maxElements) {
+        int n = 0;
+        E entry;
+        while (n < maxElements && (entry = queue.poll()) != null) {
+            size.decrementAndGet();
+            target.add(entry);
+            n++;
+        }
+        return n;
+    }
+
+    public int size() {
+        return size.get();
+    }
+
+    public boolean isEmpty() {
+        return size.get() == 0;
+    }
+
+    private boolean awaitSize(final int expectedSize, final long timeoutNanos) throws InterruptedException {
+        if (size.get() >= expectedSize) {
+            return true;
+        }
+        if (timeoutNanos <= 0) {
+            return false;
+        }
+
+        lock.lockInterruptibly();
+        try {
+            // Only registered once the lock is held: an interrupted lockInterruptibly must not leave a phantom waiter behind
+            nbWaiters.incrementAndGet();
+            long remainingNanos = timeoutNanos;
+            // The size is re-checked after registering as a waiter, so a concurrent add cannot be missed
+            while (size.get() < expectedSize) {
+                if (remainingNanos <= 0) {
+                    return false;
+                }
+                remainingNanos = notEmptyOrFull.awaitNanos(remainingNanos);
+            }
+            return true;
+        } finally {
+            nbWaiters.decrementAndGet();
+            lock.unlock();
+        }
+    }
+}
@@ -28,9 +28,12 @@ import java.util.List;
 import java.util.UUID;
 import java.util.concurrent.TimeUnit;
 
+import javax.annotation.Nullable;
+
 import org.joda.time.DateTime;
 import org.killbill.CreatorName;
 import org.killbill.clock.Clock;
+import org.killbill.commons.jdbi.notification.DatabaseTransactionNotificationApi;
 import org.killbill.commons.profiling.Profiling;
 import org.killbill.commons.profiling.ProfilingFeature;
 import org.killbill.queue.api.PersistentQueueConfig;
@@ -47,11 +50,14 @@ import org.skife.jdbi.v2.tweak.HandleCallback;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.codahale.metrics.Gauge;
 import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.Timer;
 import com.google.common.base.Function;
+import com.google.common.base.Supplier;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
+import com.google.common.util.concurrent.RateLimiter;
 
 /**
  * This class abstract the interaction with the database tables which store the persistent entries for the bus events or
@@ -94,8 +100,16 @@ public abstract class DBBackedQueue<T extends EventEntryModelDao> {
     protected final Timer rawDeleteEntriesTime;
     // Time to move one entry (delete from table + insert into history) 将单个实体转移到历史记录表的时间
     protected final Timer rawDeleteEntryTime;
+    // Time to archive a chunk of completed entries (keepCompletedEntriesInPlace mode)
+    protected final Timer rawArchiveEntriesTime;
 
     protected final Profiling<Long, RuntimeException> prof;
+    protected final Profiling<List<Long>, RuntimeException> batchProf;
+
+    // Approximate number of ready entries, see ReadyEntriesCounter
+    protected final ReadyEntriesCounter readyEntriesCounter;
+    // Throttles the exact count(*) queries issued on behalf of the API
+    private final RateLimiter exactReadyCountRateLimiter;
 
     public DBBackedQueue(final Clock clock,
                          final IDBI dbi,
@@ -103,12 +117,23 @@ public abstract class DBBackedQueue<T extends EventEntryModelDao> {
                          final PersistentQueueConfig config,
                          final String dbBackedQId,
                          final MetricRegistry metricRegistry) {
+        this(clock, dbi, sqlDaoClass, config, dbBackedQId, metricRegistry, null);
+    }
+
+    public DBBackedQueue(final Clock clock,
+                         final IDBI dbi,
+                         final Class<? extends QueueSqlDao<T>> sqlDaoClass,
+                         final PersistentQueueConfig config,
+                         final String dbBackedQId,
+                         final MetricRegistry metricRegistry,
+                         @Nullable final DatabaseTransactionNotificationApi databaseTransactionNotificationApi) {
         this.dbi = dbi;
         this.sqlDaoClass = sqlDaoClass;
         this.sqlDao = dbi.onDemand(sqlDaoClass);
         this.config = config;
         this.clock = clock;
         this.prof = new Profiling<Long, RuntimeException>();
+        this.batchProf = new Profiling<List<Long>, RuntimeException>();
 
         this.rawGetEntriesTime = metricRegistry.timer(MetricRegistry.name(DBBackedQueue.class, dbBackedQId, "rawGetEntriesTime"));
         this.rawInsertEntryTime = metricRegistry.timer(MetricRegistry.name(DBBackedQueue.class, dbBackedQId, "rawInsertEntryTime"));
@@ -116,8 +141,24 @@ public abstract class DBBackedQueue<T extends EventEntryModelDao> {
         this.rawClaimEntryTime = metricRegistry.timer(MetricRegistry.name(DBBackedQueue.class, dbBackedQId, "rawClaimEntryTime"));
         this.rawDeleteEntriesTime = metricRegistry.timer(MetricRegistry.name(DBBackedQueue.class, dbBackedQId, "rawDeleteEntriesTime"));
         this.rawDeleteEntryTime = metricRegistry.timer(MetricRegistry.name(DBBackedQueue.class, dbBackedQId, "rawDeleteEntryTime"));
+        this.rawArchiveEntriesTime = metricRegistry.timer(MetricRegistry.name(DBBackedQueue.class, dbBackedQId, "rawArchiveEntriesTime"));
 
         this.DB_QUEUE_LOG_ID = "DBBackedQueue-" + dbBackedQId;
+
+        this.readyEntriesCounter = new ReadyEntriesCounter(databaseTransactionNotificationApi, new Supplier<Long>() {
+            @Override
+            public Long get() {
+                return getNbReadyEntries();
+            }
+        }, config.getReadyCountReconcileInterval().getMillis());
+        this.exactReadyCountRateLimiter = RateLimiter.create(Math.max(1, config.getMaxExactReadyCountQueriesPerSecond()));
+
+        metricRegistry.register(MetricRegistry.name(DBBackedQueue.class, dbBackedQId, "readyEntries", "approximate"), new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return getApproximateNbReadyEntries();
+            }
+        });
     }
 
     public static class ReadyEntriesWithMetrics<T extends EventEntryModelDao> {
@@ -153,8 +194,16 @@ public abstract class DBBackedQueue<T extends EventEntryModelDao> {
      * 插入数据到 bus_events
      * @param transactional
      * @param entry
+     * @return the record id of the new entry (0 if it could not be inserted)
      */
-    public abstract void insertEntryFromTransaction(final QueueSqlDao<T> transactional, final T entry);
+    public abstract Long insertEntryFromTransaction(final QueueSqlDao<T> transactional, final T entry);
+
+    /**
+     * 批量插入数据到 bus_events (JDBC batch insert)
+     * @param transactional
+     * @param entries
+     */
+    public abstract void insertEntriesFromTransaction(final QueueSqlDao<T> transactional, final List<T> entries);
 
     /**
      * 更新错误次数
@@ -162,13 +211,28 @@ public abstract class DBBackedQueue<T extends EventEntryModelDao> {
      */
     public abstract void updateOnError(final T entry);
 
+    /**
+     * 批量更新错误次数 (single transaction)
+     * @param entries
+     */
+    public abstract void updateOnError(final List<T> entries);
+
     protected abstract void insertReapedEntriesFromTransaction(final QueueSqlDao<T> transactional, final List<T> entriesLeftBehind, final DateTime now);
 
-    public void insertEntry(final T entry) {
+    public Long insertEntry(final T entry) {
+        return executeTransaction(new Transaction<Long, QueueSqlDao<T>>() {
+            @Override
+            public Long inTransaction(final QueueSqlDao<T> transactional, final TransactionStatus status) {
+                return insertEntryFromTransaction(transactional, entry);
+            }
+        });
+    }
+
+    public void insertEntries(final List<T> entries) {
         executeTransaction(new Transaction<Void, QueueSqlDao<T>>() {
             @Override
             public Void inTransaction(final QueueSqlDao<T> transactional, final TransactionStatus status) {
-                insertEntryFromTransaction(transactional, entry);
+                insertEntriesFromTransaction(transactional, entries);
                 return null;
             }
         });
@@ -200,8 +264,13 @@ public abstract class DBBackedQueue<T extends EventEntryModelDao> {
             log.debug("{} Moving entry into history: recordId={}, className={}, json={}", DB_QUEUE_LOG_ID, entry.getRecordId(), entry.getClassName(), entry.getEventJson());
 
             long ini = System.nanoTime();
-            transactional.insertEntry(entry, config.getHistoryTableName());
-            transactional.removeEntry(entry.getRecordId(), config.getTableName());
+            if (config.isKeepCompletedEntriesInPlace()) {
+                // The archiver will move the entry to the history table later on
+                transactional.updateEntriesProcessingState(ImmutableList.<T>of(entry), config.getTableName());
+            } else {
+                transactional.insertEntry(entry, config.getHistoryTableName());
+                transactional.removeEntry(entry.getRecordId(), config.getTableName());
+            }
             rawDeleteEntryTime.update(System.nanoTime() - ini, TimeUnit.NANOSECONDS);
 
         } catch (final Exception e) {
@@ -242,6 +311,14 @@ public abstract class DBBackedQueue<T extends EventEntryModelDao> {
             log.debug("{} Moving entry into history: recordId={}, className={}, json={}", DB_QUEUE_LOG_ID, cur.getRecordId(), cur.getClassName(), cur.getEventJson());
         }
 
+        if (config.isKeepCompletedEntriesInPlace()) {
+            // The archiver will move the entries to the history table later on
+            long ini = System.nanoTime();
+            transactional.updateEntriesProcessingState(entries, config.getTableName());
+            rawDeleteEntriesTime.update(System.nanoTime() - ini, TimeUnit.NANOSECONDS);
+            return;
+        }
+
         final Iterable<Long> toBeRemovedRecordIds = Iterables.<T, Long>transform(entries, new Function<T, Long>() {
             @Override
             public Long apply(final T input) {
@@ -254,11 +331,98 @@ public abstract class DBBackedQueue<T extends EventEntryModelDao> {
         rawDeleteEntriesTime.update(System.nanoTime() - ini, TimeUnit.NANOSECONDS);
     }
 
+    public Long getMinRecordId() {
+        return sqlDao.getMinRecordId(config.getTableName());
+    }
+
+    public Long getMaxRecordId() {
+        return sqlDao.getMaxRecordId(config.getTableName());
+    }
+
+    /**
+     * Moves (at most maxEntries) completed entries with record_id in [fromRecordId, toRecordId] to the history table (keepCompletedEntriesInPlace mode)
+     *
+     * @return the record_ids archived (in ascending order)
+     */
+    public List<Long> archiveCompletedEntries(final long fromRecordId, final long toRecordId, final int maxEntries) {
+        return executeTransaction(new Transaction<List<Long>, QueueSqlDao<T>>() {
+            @Override
+            public List<Long> inTransaction(final QueueSqlDao<T> transactional, final TransactionStatus status) throws Exception {
+                // The archiver runs on every node: lock the rows, so that they are copied to the history table only once
+                final List<T> entries = config.isSkipLockedClaimEnabled() ?
+                                        transactional.getCompletedEntriesInRangeSkipLocked(fromRecordId, toRecordId, maxEntries, config.getTableName()) :
+                                        transactional.getCompletedEntriesInRangeForUpdate(fromRecordId, toRecordId, maxEntries, config.getTableName());
+                if (entries.isEmpty()) {
+                    return ImmutableList.<Long>of();
+                }
+
+                final List<Long> recordIds = new ArrayList<Long>(entries.size());
+                for (final T entry : entries) {
+                    recordIds.add(entry.getRecordId());
+                }
+
+                long ini = System.nanoTime();
+                transactional.insertEntries(entries, config.getHistoryTableName());
+                transactional.removeEntries(recordIds, config.getTableName());
+                rawArchiveEntriesTime.update(System.nanoTime() - ini, TimeUnit.NANOSECONDS);
+
+                log.debug("{} Archived {} entries, recordIds=[{}, {}]", DB_QUEUE_LOG_ID, entries.size(), recordIds.get(0), recordIds.get(recordIds.size() - 1));
+                return recordIds;
+            }
+        });
+    }
+
     protected long getNbReadyEntries() {
         final Date now = clock.getUTCNow().toDate();
         return getNbReadyEntries(now);
     }
 
+    /**
+     * Cheap, approximate version of getNbReadyEntries(), maintained in memory and reconciled periodically against the database
+     */
+    public long getApproximateNbReadyEntries() {
+        return readyEntriesCounter.getApproximateCount();
+    }
+
+    /**
+     * Reconciles getApproximateNbReadyEntries() against the database if due (see getReadyCountReconcileInterval()), called by the dispatcher threads
+     */
+    public void reconcileApproximateNbReadyEntriesIfNeeded() {
+        readyEntriesCounter.reconcileIfNeeded();
+    }
+
+    /**
+     * Same as getNbReadyEntries(Date), but callers are throttled to getMaxExactReadyCountQueriesPerSecond()
+     */
+    public long getExactNbReadyEntries(final Date now) {
+        exactReadyCountRateLimiter.acquire();
+        return getNbReadyEntries(now);
+    }
+
+    /**
+     * Whether a newly inserted entry should be counted as ready (e.g. notifications in the future aren't)
+     */
+    protected boolean isReadyOnInsert(final T entry) {
+        return true;
+    }
+
+    /**
+     * Whether a claimed (or completed) entry is part of the approximate count: either it was ready on insert, or it was made available again after an error
+     */
+    protected boolean isCountedAsReady(final T entry) {
+        return isReadyOnInsert(entry) || (entry.getErrorCount() != null && entry.getErrorCount() > 0);
+    }
+
+    protected int getNbCountedAsReady(final Iterable<T> entries) {
+        int result = 0;
+        for (final T entry : entries) {
+            if (isCountedAsReady(entry)) {
+                result++;
+            }
+        }
+        return result;
+    }
+
     /**
      * 获取bus_events表中处于ready状态数据的总数
      * @param now
@@ -284,6 +448,9 @@ public abstract class DBBackedQueue<T extends EventEntryModelDao> {
                 final Long lastInsertId = transactional.insertEntry(entry, config.getTableName());
                 if (lastInsertId > 0) {
                     log.debug("{} Inserting entry: lastInsertId={}, entry={}", DB_QUEUE_LOG_ID, lastInsertId, entry);
+                    if (isReadyOnInsert(entry)) {
+                        readyEntriesCounter.onEntriesInsertedFromTransaction(1);
+                    }
                 } else {
                     log.warn("{} Error inserting entry: lastInsertId={}, entry={}", DB_QUEUE_LOG_ID, lastInsertId, entry);
                 }
@@ -295,6 +462,33 @@ public abstract class DBBackedQueue<T extends EventEntryModelDao> {
         });
     }
 
+    protected List<Long> safeInsertEntries(final QueueSqlDao<T> transactional, final List<T> entries) {
+        return batchProf.executeWithProfiling(ProfilingFeature.ProfilingFeatureType.DAO, "QueueSqlDao:insertEntries", new Profiling.WithProfilingCallback<List<Long>, RuntimeException>() {
+
+            @Override
+            public List<Long> execute() throws RuntimeException {
+                final long init = System.nanoTime();
+                final List<Long> lastInsertIds = transactional.insertEntries(entries, config.getTableName());
+                if (lastInsertIds.size() == entries.size()) {
+                    log.debug("{} Inserting entries: lastInsertIds={}, entries={}", DB_QUEUE_LOG_ID, lastInsertIds, entries);
+                    int nbReadyEntries = 0;
+                    for (final T entry : entries) {
+                        if (isReadyOnInsert(entry)) {
+                            nbReadyEntries++;
+                        }
+                    }
+                    readyEntriesCounter.onEntriesInsertedFromTransaction(nbReadyEntries);
+                } else {
+                    log.warn("{} Error inserting entries: lastInsertIds={}, entries={}", DB_QUEUE_LOG_ID, lastInsertIds, entries);
+                }
+
+                rawInsertEntryTime.update(System.nanoTime() - init, TimeUnit.NANOSECONDS);
+
+                return lastInsertIds;
+            }
+        });
+    }
+
     // It is a good idea to monitor reapEntries in logs as these entries should rarely happen
 
     /**
@@ -17,10 +17,8 @@
 
 package org.killbill.queue;
 
-import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Arrays;
 import java.util.List;
-import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -48,6 +46,7 @@ import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
 import com.google.common.eventbus.AllowConcurrentEvents;
 import com.google.common.eventbus.Subscribe;
+import com.google.common.primitives.Longs;
 
 public class DBBackedQueueWithInflightQueue<T extends EventEntryModelDao> extends DBBackedQueue<T> {
 
@@ -60,7 +59,24 @@ public class DBBackedQueueWithInflightQueue<T extends EventEntryModelDao> extend
     // 如果 inflightEvents 中没有event，最多再等待100毫秒
     private static final long INFLIGHT_POLLING_TIMEOUT_MSEC = 100;
     // 事务已经提交的record_id会保存在这个队列里面
-    private final LinkedBlockingQueue<Long> inflightEvents;
+    private final LongRingBuffer inflightEvents;
+
+    //
+    // Bounded mode (getInflightQueueCapacity() > 0): when the inflightQ is full, new recordIds are dropped from memory (the entries
+    // are still in the database) and we keep track of the lowest dropped recordId. Once the inflightQ drains below the low-water mark,
+    // the dispatcher thread refills it from the database using that recordId as a keyset cursor.
+    //
+    // To avoid dispatching an entry twice (e.g. the refill query also sees entries which are in the inflightQ or being dispatched), we track
+    // the recordIds which are either in the inflightQ or being dispatched, until they are moved to the history table.
+    //
+    // Note that in this mode, entries refilled from the database may be dispatched after more recent entries.
+    //
+    private final int capacity;
+    private final int lowWaterMark;
+    private final LongHashSet inflightOrDispatchedIds;
+    private final Object spillLock = new Object();
+    // Lowest recordId which was dropped from memory since the last refill, null if none
+    private Long spillFromRecordId;
 
     private final DatabaseTransactionNotificationApi databaseTransactionNotificationApi;
 
@@ -72,6 +88,8 @@ public class DBBackedQueueWithInflightQueue<T extends EventEntryModelDao> extend
     private final int queueId;
     // 缓存队列，在数据写入到数据库的时候，会将id存放到这里，事务提交的时候，将id转移到 inflightEvents
     private final TransientInflightQRowIdCache transientInflightQRowIdCache;
+    // Per dispatcher thread buffer for the recordIds drained from the inflightQ, reused across getReadyEntries calls
+    private final ThreadLocal<long[]> drainedRecordIdsBuffer = new ThreadLocal<long[]>();
 
     public DBBackedQueueWithInflightQueue(final Clock clock,
                                           final IDBI dbi,
@@ -80,13 +98,23 @@ public class DBBackedQueueWithInflightQueue<T extends EventEntryModelDao> extend
                                           final String dbBackedQId,
                                           final MetricRegistry metricRegistry,
                                           final DatabaseTransactionNotificationApi databaseTransactionNotificationApi) {
-        super(clock, dbi, sqlDaoClass, config, dbBackedQId, metricRegistry);
+        super(clock, dbi, sqlDaoClass, config, dbBackedQId, metricRegistry, databaseTransactionNotificationApi);
 
         Preconditions.checkArgument(config.getMinInFlightEntries() <= config.getMaxInFlightEntries());
 
         this.queueId = QUEUE_ID_CNT.incrementAndGet();
-        // We use an unboundedQ - the risk of running OUtOfMemory exists for a very large number of entries showing a more systematic problem...
-        this.inflightEvents = new LinkedBlockingQueue<Long>();
+        this.capacity = config.getInflightQueueCapacity();
+        if (capacity > 0) {
+            this.inflightEvents = new LongRingBuffer(capacity);
+            this.lowWaterMark = Math.max(1, capacity / 2);
+            this.inflightOrDispatchedIds = new LongHashSet(capacity);
+        } else {
+            // We use an unboundedQ - the risk of running OUtOfMemory exists for a very large number of entries showing a more systematic problem...
+            this.inflightEvents = new LongRingBuffer();
+            this.lowWaterMark = 0;
+            this.inflightOrDispatchedIds = null;
+        }
+        this.spillFromRecordId = null;
 
         this.databaseTransactionNotificationApi = databaseTransactionNotificationApi;
         // 事务提交的时候通知
@@ -106,6 +134,7 @@ public class DBBackedQueueWithInflightQueue<T extends EventEntryModelDao> extend
     @Override
     public void initialize() {
 
+        readyEntriesCounter.start();
         initializeInflightQueue();
         log.info("{} Initialized with queueId={}, mode={}",
                  DB_QUEUE_LOG_ID, queueId, config.getPersistentQueueMode());
@@ -113,16 +142,17 @@ public class DBBackedQueueWithInflightQueue<T extends EventEntryModelDao> extend
 
     @Override
     public void close() {
+        readyEntriesCounter.stop();
         databaseTransactionNotificationApi.unregisterForNotification(this);
     }
 
 
     @Override
-    public void insertEntryFromTransaction(final QueueSqlDao<T> transactional, final T entry) {
+    public Long insertEntryFromTransaction(final QueueSqlDao<T> transactional, final T entry) {
         final Long lastInsertId = safeInsertEntry(transactional, entry);
         if (lastInsertId == 0) {
             log.warn("{} Failed to insert entry, lastInsertedId={}", DB_QUEUE_LOG_ID, lastInsertId);
-            return;
+            return lastInsertId;
         }
 
         // The current thread is in the middle of  a transaction and this is the only times it knows about the recordId for the queue event;
@@ -130,34 +160,42 @@ public class DBBackedQueueWithInflightQueue<T extends EventEntryModelDao> extend
         // and insert the recordId into a blockingQ that is highly optimized to dispatch events.
         // 先存到缓存中，当事务提交的时候，立即转移到 inflightEvents
         transientInflightQRowIdCache.addRowId(lastInsertId);
+        return lastInsertId;
     }
 
-    /**
-     * 从inflightEvents 取值 并存到 result中
-     * @param result
-     * @return
-     */
-    private long pollEntriesFromInflightQ(final List<Long> result) {
+    @Override
+    public void insertEntriesFromTransaction(final QueueSqlDao<T> transactional, final List<T> entries) {
+        if (entries.isEmpty()) {
+            return;
+        }
 
-        long pollSleepTime = 0;
-        inflightEvents.drainTo(result, config.getMaxInFlightEntries());
-        if (result.isEmpty()) {
-            try {
-                long beforePollTime = System.nanoTime();
-                // We block until we see the first entry or reach the timeout (in which case we will rerun the doDispatchEvents() loop and come back here).
-                final Long entryId = inflightEvents.poll(INFLIGHT_POLLING_TIMEOUT_MSEC, TimeUnit.MILLISECONDS);
-                // Maybe there was at least one entry and we did not sleep at all, in which case this time is close to 0.
-                pollSleepTime = System.nanoTime() - beforePollTime;
-                if (entryId != null) {
-                    result.add(entryId);
-                }
-            } catch (final InterruptedException e) {
-                Thread.currentThread().interrupt();
-                log.warn("{} Got interrupted", DB_QUEUE_LOG_ID);
-                return 0;
+        final List<Long> lastInsertIds = safeInsertEntries(transactional, entries);
+        // Same as insertEntryFromTransaction: all ids are moved to the inflightQ when the transaction commits
+        for (final Long lastInsertId : lastInsertIds) {
+            if (lastInsertId == null || lastInsertId == 0) {
+                log.warn("{} Failed to insert entry, lastInsertedId={}", DB_QUEUE_LOG_ID, lastInsertId);
+                continue;
             }
+            transientInflightQRowIdCache.addRowId(lastInsertId);
+        }
+    }
+
+    /**
+     * 阻塞等待 inflightEvents 中有数据
+     * @return the time spent waiting
+     */
+    private long awaitEntriesFromInflightQ() {
+        try {
+            long beforePollTime = System.nanoTime();
+            // We block until we see the first entry or reach the timeout (in which case we will rerun the doDispatchEvents() loop and come back here).
+            inflightEvents.awaitNotEmpty(INFLIGHT_POLLING_TIMEOUT_MSEC, TimeUnit.MILLISECONDS);
+            // Maybe there was at least one entry and we did not sleep at all, in which case this time is close to 0.
+            return System.nanoTime() - beforePollTime;
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.warn("{} Got interrupted", DB_QUEUE_LOG_ID);
+            return TimeUnit.MILLISECONDS.toNanos(INFLIGHT_POLLING_TIMEOUT_MSEC);
         }
-        return pollSleepTime;
     }
 
     /**
@@ -171,15 +209,26 @@ public class DBBackedQueueWithInflightQueue<T extends EventEntryModelDao> extend
         final long ini = System.nanoTime();
         long pollSleepTime = 0;
 
+        if (inflightOrDispatchedIds != null) {
+            refillInflightQueueIfNeeded();
+        }
+
         // 存放 inflightEvents 中的数据
-        final List<Long> recordIds = new ArrayList<Long>(config.getMaxInFlightEntries());
+        final long[] drainedRecordIds = getDrainedRecordIdsBuffer();
+        int nbRecordIds = 0;
         do {
-            pollSleepTime += pollEntriesFromInflightQ(recordIds);
-        } while (recordIds.size() < config.getMinInFlightEntries() && pollSleepTime < INFLIGHT_POLLING_TIMEOUT_MSEC);
+            final int nbDrained = inflightEvents.drainTo(drainedRecordIds, nbRecordIds, drainedRecordIds.length - nbRecordIds);
+            nbRecordIds += nbDrained;
+            if (nbDrained == 0) {
+                pollSleepTime += awaitEntriesFromInflightQ();
+            }
+        } while (nbRecordIds < config.getMinInFlightEntries() && pollSleepTime < TimeUnit.MILLISECONDS.toNanos(INFLIGHT_POLLING_TIMEOUT_MSEC));
 
 
         List<T> entries = ImmutableList.<T>of();
-        if (!recordIds.isEmpty()) {
+        if (nbRecordIds > 0) {
+            // Ids are only boxed here, to bind them into the query
+            final List<Long> recordIds = Longs.asList(Arrays.copyOf(drainedRecordIds, nbRecordIds));
             log.debug("{} fetchReadyEntriesFromIds: {}", DB_QUEUE_LOG_ID, recordIds);
             // 通过ID从bus_events中查找数据
             entries = executeQuery(new Query<List<T>, QueueSqlDao<T>>() {
@@ -192,6 +241,19 @@ public class DBBackedQueueWithInflightQueue<T extends EventEntryModelDao> extend
                     return result;
                 }
             });
+
+            if (inflightOrDispatchedIds != null && entries.size() < recordIds.size()) {
+                // Entries which are not in the table anymore (e.g. reaped) won't be dispatched
+                final LongHashSet foundIds = new LongHashSet(entries.size());
+                for (final T entry : entries) {
+                    foundIds.add(entry.getRecordId());
+                }
+                for (int i = 0; i < nbRecordIds; i++) {
+                    if (!foundIds.contains(drainedRecordIds[i])) {
+                        inflightOrDispatchedIds.remove(drainedRecordIds[i]);
+                    }
+                }
+            }
         }
         return new ReadyEntriesWithMetrics<T>(entries, (System.nanoTime() - ini) - pollSleepTime);
 
@@ -210,7 +272,25 @@ public class DBBackedQueueWithInflightQueue<T extends EventEntryModelDao> extend
                 // 再次进入缓存,因为事件已经发布成功，处理失败后应该是进入inflightEvents 而不是 transientInflightQRowIdCache，
                 // 如果进入到 transientInflightQRowIdCache 就会变成 dead event 没人处理，因为没有触发事务提交事件 transientInflightQRowIdCache 中的缓存不会被移到inflightEvents中
                 //transientInflightQRowIdCache.addRowId(entry.getRecordId());
-                inflightEvents.add(entry.getRecordId());
+                requeueInflightEntry(entry.getRecordId());
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public void updateOnError(final List<T> entries) {
+        if (entries.isEmpty()) {
+            return;
+        }
+        executeTransaction(new Transaction<Void, QueueSqlDao<T>>() {
+            @Override
+            public Void inTransaction(final QueueSqlDao<T> transactional, final TransactionStatus status) throws Exception {
+                transactional.updateEntriesOnError(entries, clock.getUTCNow().toDate(), config.getTableName());
+                // Same as updateOnError(T): back to the inflightQ
+                for (final T entry : entries) {
+                    requeueInflightEntry(entry.getRecordId());
+                }
                 return null;
             }
         });
@@ -223,10 +303,36 @@ public class DBBackedQueueWithInflightQueue<T extends EventEntryModelDao> extend
             entry.setProcessingState(PersistentQueueEntryLifecycleState.AVAILABLE);
             entry.setCreatingOwner(CreatorName.get());
             entry.setProcessingOwner(null);
+            if (inflightOrDispatchedIds != null) {
+                inflightOrDispatchedIds.remove(entry.getRecordId());
+            }
             insertEntryFromTransaction(transactional, entry);
         }
     }
 
+    @Override
+    public void moveEntryToHistory(final T entry) {
+        super.moveEntryToHistory(entry);
+        // Entries are never claimed in this mode: they stay ready until completed
+        if (isCountedAsReady(entry)) {
+            readyEntriesCounter.onEntriesClaimed(1);
+        }
+        if (inflightOrDispatchedIds != null) {
+            inflightOrDispatchedIds.remove(entry.getRecordId());
+        }
+    }
+
+    @Override
+    public void moveEntriesToHistory(final Iterable<T> entries) {
+        super.moveEntriesToHistory(entries);
+        readyEntriesCounter.onEntriesClaimed(getNbCountedAsReady(entries));
+        if (inflightOrDispatchedIds != null) {
+            for (final T entry : entries) {
+                inflightOrDispatchedIds.remove(entry.getRecordId());
+            }
+        }
+    }
+
     /**
      * 将 threadlocal 中缓存的event转移到 inflightEvents
      * @param event
@@ -247,14 +353,15 @@ public class DBBackedQueueWithInflightQueue<T extends EventEntryModelDao> extend
 
         try {
             // Add entry in the inflightQ and clear threadlocal Case 2、将缓存中的ID移到阻塞队列中
-            final Iterator<Long> entries = transientInflightQRowIdCache.iterator();
-            while (entries.hasNext()) {
-                final Long entry = entries.next();
+            final long[] entries = transientInflightQRowIdCache.getRowIds();
+            final int nbEntries = transientInflightQRowIdCache.getNbRowIds();
+            for (int i = 0; i < nbEntries; i++) {
+                final long entry = entries[i];
                 // 将threadlocal 中缓存的event转移到 inflightEvents
-                final boolean result = inflightEvents.offer(entry);
+                final boolean result = offerNewInflightEntry(entry);
                 if (result) {
                     log.debug("{} Inserting entry {} into inflightQ", DB_QUEUE_LOG_ID, entry);
-                } else {
+                } else if (inflightOrDispatchedIds == null) {
                     log.warn("{} Inflight Q overflowed....", DB_QUEUE_LOG_ID, entry);
                 }
             }
@@ -263,16 +370,100 @@ public class DBBackedQueueWithInflightQueue<T extends EventEntryModelDao> extend
         }
     }
 
+    private long[] getDrainedRecordIdsBuffer() {
+        long[] result = drainedRecordIdsBuffer.get();
+        if (result == null || result.length != config.getMaxInFlightEntries()) {
+            result = new long[config.getMaxInFlightEntries()];
+            drainedRecordIdsBuffer.set(result);
+        }
+        return result;
+    }
+
     @VisibleForTesting
     public int getInflightQSize() {
         return inflightEvents.size();
     }
 
+    // Returns false if the entry was not added to the inflightQ (in bounded mode, it will be fetched from the database later)
+    private boolean offerNewInflightEntry(final long recordId) {
+        if (inflightOrDispatchedIds == null) {
+            return inflightEvents.offer(recordId);
+        }
+
+        if (!inflightOrDispatchedIds.add(recordId)) {
+            // Already in the inflightQ or being dispatched (e.g. fetched by a refill before we were notified of the commit)
+            return false;
+        }
+        if (!inflightEvents.offer(recordId)) {
+            inflightOrDispatchedIds.remove(recordId);
+            spillInflightEntry(recordId);
+            return false;
+        }
+        return true;
+    }
+
+    // Add back an entry which is already tracked (retry)
+    private void requeueInflightEntry(final long recordId) {
+        if (!inflightEvents.offer(recordId)) {
+            inflightOrDispatchedIds.remove(recordId);
+            spillInflightEntry(recordId);
+        }
+    }
+
+    private void spillInflightEntry(final long recordId) {
+        synchronized (spillLock) {
+            if (spillFromRecordId == null || recordId < spillFromRecordId) {
+                spillFromRecordId = recordId;
+            }
+        }
+        log.debug("{} InflightQ full, leaving entry {} in the database", DB_QUEUE_LOG_ID, recordId);
+    }
+
+    private void refillInflightQueueIfNeeded() {
+        if (inflightEvents.size() >= lowWaterMark) {
+            return;
+        }
+
+        final Long fromRecordId;
+        synchronized (spillLock) {
+            fromRecordId = spillFromRecordId;
+            spillFromRecordId = null;
+        }
+        if (fromRecordId == null) {
+            return;
+        }
+
+        final int maxEntries = capacity - inflightEvents.size();
+        final List<Long> existingIds;
+        try {
+            existingIds = ((PersistentBusSqlDao) sqlDao).getReadyEntryIds(clock.getUTCNow().toDate(), fromRecordId, maxEntries, CreatorName.get(), config.getTableName());
+        } catch (final RuntimeException e) {
+            // Try again next time
+            spillInflightEntry(fromRecordId);
+            throw e;
+        }
+
+        int nbRefilled = 0;
+        for (final Long recordId : existingIds) {
+            if (offerNewInflightEntry(recordId)) {
+                nbRefilled++;
+            }
+        }
+        if (existingIds.size() == maxEntries) {
+            // There may be more entries left in the database
+            spillInflightEntry(existingIds.get(existingIds.size() - 1) + 1);
+        }
+        log.debug("{} Refilled {} entries into inflightQ from recordId {}", DB_QUEUE_LOG_ID, nbRefilled, fromRecordId);
+    }
+
     //
     // Hide the ThreadLocal logic required for inflightQ algorithm in that class and export an easy to use interface.
     //
     private static class TransientInflightQRowIdCache {
 
+        // Most transactions insert a single entry
+        private static final int INITIAL_ROW_IDS_CAPACITY = 4;
+
         private final ThreadLocal<RowRef> rowRefThreadLocal = new ThreadLocal<RowRef>();
         private final int queueId;
 
@@ -285,7 +476,7 @@ public class DBBackedQueueWithInflightQueue<T extends EventEntryModelDao> extend
             return (entry != null && entry.queueId == queueId);
         }
 
-        public void addRowId(final Long rowId) {
+        public void addRowId(final long rowId) {
             RowRef entry = rowRefThreadLocal.get();
             if (entry == null) {
                 entry = new RowRef(queueId);
@@ -298,29 +489,37 @@ public class DBBackedQueueWithInflightQueue<T extends EventEntryModelDao> extend
             rowRefThreadLocal.remove();
         }
 
-        public Iterator<Long> iterator() {
+        // Only the first getNbRowIds() elements are valid
+        public long[] getRowIds() {
+            final RowRef entry = rowRefThreadLocal.get();
+            Preconditions.checkNotNull(entry);
+            return entry.rowIds;
+        }
+
+        public int getNbRowIds() {
             final RowRef entry = rowRefThreadLocal.get();
             Preconditions.checkNotNull(entry);
-            return entry.iterator();
+            return entry.nbRowIds;
         }
 
         // Internal structure to keep track of recordId per queue
         private final class RowRef {
 
             private final int queueId;
-            private final List<Long> rowIds;
+            private long[] rowIds;
+            private int nbRowIds;
 
             public RowRef(final int queueId) {
                 this.queueId = queueId;
-                this.rowIds = new ArrayList<Long>();
+                this.rowIds = new long[INITIAL_ROW_IDS_CAPACITY];
+                this.nbRowIds = 0;
             }
 
             public void addRowId(final long rowId) {
-                rowIds.add(rowId);
-            }
-
-            public Iterator<Long> iterator() {
-                return rowIds.iterator();
+                if (nbRowIds == rowIds.length) {
+                    rowIds = Arrays.copyOf(rowIds, 2 * rowIds.length);
+                }
+                rowIds[nbRowIds++] = rowId;
             }
         }
     }
@@ -331,19 +530,34 @@ public class DBBackedQueueWithInflightQueue<T extends EventEntryModelDao> extend
     private void initializeInflightQueue() {
 
         inflightEvents.clear();
+        if (inflightOrDispatchedIds != null) {
+            inflightOrDispatchedIds.clear();
+            synchronized (spillLock) {
+                spillFromRecordId = null;
+            }
+        }
 
         int totalEntries = 0;
         long fromRecordId = -1;
         do {
+            final int maxEntries = capacity > 0 ? Math.min(MAX_FETCHED_RECORDS_ID, capacity - totalEntries) : MAX_FETCHED_RECORDS_ID;
+            if (maxEntries <= 0) {
+                // Bounded mode: the remaining entries will be fetched once the inflightQ drains
+                spillInflightEntry(fromRecordId);
+                break;
+            }
+
             // 查找数据库中已经准备好的数据
-            final List<Long> existingIds = ((PersistentBusSqlDao) sqlDao).getReadyEntryIds(clock.getUTCNow().toDate(), fromRecordId, MAX_FETCHED_RECORDS_ID, CreatorName.get(), config.getTableName());
+            final List<Long> existingIds = ((PersistentBusSqlDao) sqlDao).getReadyEntryIds(clock.getUTCNow().toDate(), fromRecordId, maxEntries, CreatorName.get(), config.getTableName());
             if (existingIds.isEmpty()) {
                 break;
             }
 
-            inflightEvents.addAll(existingIds);
+            for (final Long recordId : existingIds) {
+                offerNewInflightEntry(recordId);
+            }
             totalEntries += existingIds.size();
-            if (existingIds.size() < MAX_FETCHED_RECORDS_ID) {
+            if (existingIds.size() < maxEntries) {
                 break;
             }
             fromRecordId = existingIds.get(existingIds.size() - 1) + 1;
@@ -22,14 +22,18 @@ import java.util.Date;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
 
+import javax.annotation.Nullable;
+
 import org.joda.time.DateTime;
 import org.killbill.CreatorName;
 import org.killbill.clock.Clock;
+import org.killbill.commons.jdbi.notification.DatabaseTransactionNotificationApi;
 import org.killbill.queue.api.PersistentQueueConfig;
 import org.killbill.queue.api.PersistentQueueConfig.PersistentQueueMode;
 import org.killbill.queue.api.PersistentQueueEntryLifecycleState;
 import org.killbill.queue.dao.EventEntryModelDao;
 import org.killbill.queue.dao.QueueSqlDao;
+import org.killbill.queue.wakeup.QueueWakeupSource;
 import org.skife.jdbi.v2.IDBI;
 import org.skife.jdbi.v2.Transaction;
 import org.skife.jdbi.v2.TransactionStatus;
@@ -47,35 +51,110 @@ import com.google.common.collect.Iterables;
  */
 public class DBBackedQueueWithPolling<T extends EventEntryModelDao> extends DBBackedQueue<T> {
 
+    // Optional, signalled when new entries are inserted to wake up the dispatcher threads
+    private final QueueWakeupSource wakeupSource;
+    // See getReadyEntries
+    private final Object batchClaimLock = new Object();
+
     public DBBackedQueueWithPolling(final Clock clock,
                                     final IDBI dbi,
                                     final Class<? extends QueueSqlDao<T>> sqlDaoClass,
                                     final PersistentQueueConfig config,
                                     final String dbBackedQId,
                                     final MetricRegistry metricRegistry) {
-        super(clock, dbi, sqlDaoClass, config, dbBackedQId, metricRegistry);
+        this(clock, dbi, sqlDaoClass, config, dbBackedQId, metricRegistry, null);
+    }
+
+    public DBBackedQueueWithPolling(final Clock clock,
+                                    final IDBI dbi,
+                                    final Class<? extends QueueSqlDao<T>> sqlDaoClass,
+                                    final PersistentQueueConfig config,
+                                    final String dbBackedQId,
+                                    final MetricRegistry metricRegistry,
+                                    @Nullable final QueueWakeupSource wakeupSource) {
+        this(clock, dbi, sqlDaoClass, config, dbBackedQId, metricRegistry, wakeupSource, null);
+    }
+
+    public DBBackedQueueWithPolling(final Clock clock,
+                                    final IDBI dbi,
+                                    final Class<? extends QueueSqlDao<T>> sqlDaoClass,
+                                    final PersistentQueueConfig config,
+                                    final String dbBackedQId,
+                                    final MetricRegistry metricRegistry,
+                                    @Nullable final QueueWakeupSource wakeupSource,
+                                    @Nullable final DatabaseTransactionNotificationApi databaseTransactionNotificationApi) {
+        super(clock, dbi, sqlDaoClass, config, dbBackedQId, metricRegistry, databaseTransactionNotificationApi);
+        this.wakeupSource = wakeupSource;
     }
 
     @Override
     public void initialize() {
+        readyEntriesCounter.start();
         log.info("{} Initialized  mode={}",
                  DB_QUEUE_LOG_ID, config.getPersistentQueueMode());
     }
 
     @Override
     public void close() {
+        readyEntriesCounter.stop();
     }
 
 
     @Override
-    public void insertEntryFromTransaction(final QueueSqlDao<T> transactional, final T entry) {
-        safeInsertEntry(transactional, entry);
+    public Long insertEntryFromTransaction(final QueueSqlDao<T> transactional, final T entry) {
+        final Long recordId = safeInsertEntry(transactional, entry);
+        if (recordId != null && recordId > 0) {
+            afterInsertFromTransaction(ImmutableList.<T>of(entry), ImmutableList.<Long>of(recordId));
+        }
+        // Future entries (e.g. notifications) are picked up by polling (or the timing wheel) when they become ready
+        if (wakeupSource != null && isReadyOnInsert(entry)) {
+            wakeupSource.onEntryInsertedFromTransaction(transactional);
+        }
+        return recordId;
+    }
+
+    @Override
+    public void insertEntriesFromTransaction(final QueueSqlDao<T> transactional, final List<T> entries) {
+        if (entries.isEmpty()) {
+            return;
+        }
+        final List<Long> recordIds = safeInsertEntries(transactional, entries);
+        if (recordIds.size() == entries.size()) {
+            afterInsertFromTransaction(entries, recordIds);
+        }
+        if (wakeupSource != null && Iterables.any(entries, new Predicate<T>() {
+            @Override
+            public boolean apply(final T entry) {
+                return isReadyOnInsert(entry);
+            }
+        })) {
+            wakeupSource.onEntryInsertedFromTransaction(transactional);
+        }
+    }
+
+    // Overridden by queues which need the record ids of the inserted entries (the transaction may not be committed yet)
+    protected void afterInsertFromTransaction(final List<T> entries, final List<Long> recordIds) {
     }
 
     @Override
     public ReadyEntriesWithMetrics<T> getReadyEntries() {
         final long ini = System.nanoTime();
-        final List<T> claimedEntries = executeTransaction(new Transaction<List<T>, QueueSqlDao<T>>() {
+        final List<T> claimedEntries;
+        if (config.getPersistentQueueMode() == PersistentQueueMode.STICKY_POLLING && !config.isSkipLockedClaimEnabled()) {
+            // Without SKIP LOCKED, the lifecycle dispatch threads of this node would race on the same candidates: as they all claim with
+            // the same owner, a partial batch claim couldn't tell its own entries apart from the ones of the other threads
+            synchronized (batchClaimLock) {
+                claimedEntries = fetchAndClaimReadyEntries();
+            }
+        } else {
+            claimedEntries = fetchAndClaimReadyEntries();
+        }
+        readyEntriesCounter.onEntriesClaimed(getNbCountedAsReady(claimedEntries));
+        return new ReadyEntriesWithMetrics<T>(claimedEntries, System.nanoTime() - ini);
+    }
+
+    private List<T> fetchAndClaimReadyEntries() {
+        return executeTransaction(new Transaction<List<T>, QueueSqlDao<T>>() {
             @Override
             public List<T> inTransaction(final QueueSqlDao<T> queueSqlDao, final TransactionStatus status) throws Exception {
                 final DateTime now = clock.getUTCNow();
@@ -91,7 +170,35 @@ public class DBBackedQueueWithPolling<T extends EventEntryModelDao> extends DBBa
                 return claimedEntries;
             }
         });
-        return new ReadyEntriesWithMetrics<T>(claimedEntries, System.nanoTime() - ini);
+    }
+
+    /**
+     * Claims the given entries (e.g. entries known to be due), skipping the ones already claimed or processed and the ones not ready
+     *
+     * @return the entries claimed by this node
+     */
+    public List<T> claimEntriesFromIds(final List<Long> recordIds, final Predicate<T> isReady) {
+        if (recordIds.isEmpty()) {
+            return ImmutableList.of();
+        }
+
+        final List<T> claimedEntries = executeTransaction(new Transaction<List<T>, QueueSqlDao<T>>() {
+            @Override
+            public List<T> inTransaction(final QueueSqlDao<T> queueSqlDao, final TransactionStatus status) throws Exception {
+                final List<T> candidates = ImmutableList.<T>copyOf(Iterables.<T>filter(queueSqlDao.getEntriesFromIds(recordIds, config.getTableName()), new Predicate<T>() {
+                    @Override
+                    public boolean apply(final T input) {
+                        return input.getProcessingState() == PersistentQueueEntryLifecycleState.AVAILABLE &&
+                               input.getProcessingOwner() == null &&
+                               isReady.apply(input);
+                    }
+                }));
+                // Claimed one by one: losing the race against the polling is expected here
+                return sequentialClaimEntries(clock.getUTCNow(), candidates, queueSqlDao);
+            }
+        });
+        readyEntriesCounter.onEntriesClaimed(getNbCountedAsReady(claimedEntries));
+        return claimedEntries;
     }
 
     @Override
@@ -103,6 +210,22 @@ public class DBBackedQueueWithPolling<T extends EventEntryModelDao> extends DBBa
                 return null;
             }
         });
+        readyEntriesCounter.onEntriesAvailable(1);
+    }
+
+    @Override
+    public void updateOnError(final List<T> entries) {
+        if (entries.isEmpty()) {
+            return;
+        }
+        executeTransaction(new Transaction<Void, QueueSqlDao<T>>() {
+            @Override
+            public Void inTransaction(final QueueSqlDao<T> transactional, final TransactionStatus status) throws Exception {
+                transactional.updateEntriesOnError(entries, clock.getUTCNow().toDate(), config.getTableName());
+                return null;
+            }
+        });
+        readyEntriesCounter.onEntriesAvailable(entries.size());
     }
 
     @Override
@@ -121,12 +244,25 @@ public class DBBackedQueueWithPolling<T extends EventEntryModelDao> extends DBBa
     private List<T> fetchReadyEntries(final DateTime now, final int maxEntries, final QueueSqlDao<T> queueSqlDao) {
         final String owner = config.getPersistentQueueMode() == PersistentQueueMode.POLLING ? null : CreatorName.get();
         final long ini = System.nanoTime();
-        final List<T> result = queueSqlDao.getReadyEntries(now.toDate(), maxEntries, owner, config.getTableName());
+        final List<T> result = fetchReadyEntries(now.toDate(), maxEntries, owner, config.isSkipLockedClaimEnabled(), queueSqlDao);
         rawGetEntriesTime.update(System.nanoTime() - ini, TimeUnit.NANOSECONDS);
         return result;
     }
 
+    // Overridden by queues which can narrow down the ready entries further (e.g. notification queues started on this node)
+    protected List<T> fetchReadyEntries(final Date now, final int maxEntries, @Nullable final String owner, final boolean skipLocked, final QueueSqlDao<T> queueSqlDao) {
+        return skipLocked ?
+               queueSqlDao.getReadyEntriesSkipLocked(now, maxEntries, owner, config.getTableName()) :
+               queueSqlDao.getReadyEntries(now, maxEntries, owner, config.getTableName());
+    }
+
     private List<T> claimEntries(final DateTime now, final List<T> candidates, final QueueSqlDao<T> queueSqlDao) {
+        // With SKIP LOCKED, the candidates are row-locked by our transaction: no other node can claim them concurrently,
+        // so we can claim the whole batch in one statement, even in (non sticky) POLLING mode.
+        if (config.isSkipLockedClaimEnabled()) {
+            return batchClaimEntries(now, candidates, queueSqlDao);
+        }
+
         switch (config.getPersistentQueueMode()) {
             case POLLING:
                 return sequentialClaimEntries(now, candidates, queueSqlDao);
@@ -158,29 +294,16 @@ public class DBBackedQueueWithPolling<T extends EventEntryModelDao> extends DBBa
         final int resultCount = queueSqlDao.claimEntries(recordIds, owner, nextAvailable, config.getTableName());
         rawClaimEntriesTime.update(System.nanoTime() - ini, TimeUnit.NANOSECONDS);
 
-        // We should ALWAYS see the same number since we are in STICKY_POLLING mode and there is only one thread claiming entries.
-        // We keep the 2 cases below for safety (code was written when this was MT-threaded), and we log with warn (will eventually remove it in the future)
+        // The update count can be lower than the number of candidates, e.g. when some of them were removed since they were fetched:
+        // only return the entries this node actually owns (see getReadyEntries for the concurrent claims by the dispatch threads)
         if (resultCount == candidates.size()) {
             log.debug("{} batchClaimEntries claimed (recordIds={}, now={}, nextAvailable={}, owner={}): {}",
                       DB_QUEUE_LOG_ID, recordIds, now, nextAvailable, owner, candidates);
             return candidates;
         } else {
+            log.debug("{} batchClaimEntries only claimed {}/{} entries (recordIds={}, now={}, nextAvailable={}, owner={})",
+                      DB_QUEUE_LOG_ID, resultCount, candidates.size(), recordIds, now, nextAvailable, owner);
             final List<T> maybeClaimedEntries = queueSqlDao.getEntriesFromIds(ImmutableList.copyOf(recordIds), config.getTableName());
-            final StringBuilder stringBuilder = new StringBuilder();
-            for (int i = 0; i < maybeClaimedEntries.size(); i++) {
-                final T eventEntryModelDao = maybeClaimedEntries.get(i);
-                if (i > 0) {
-                    stringBuilder.append(",");
-                }
-                stringBuilder.append("[recordId=").append(eventEntryModelDao.getRecordId())
-                             .append(",processingState=").append(eventEntryModelDao.getProcessingState())
-                             .append(",processingOwner=").append(eventEntryModelDao.getProcessingOwner())
-                             .append(",processingAvailableDate=").append(eventEntryModelDao.getNextAvailableDate())
-                             .append("]");
-            }
-            log.warn("{} batchClaimEntries only claimed partial entries {}/{} (now={}, nextAvailable={}, owner={}): {}",
-                     DB_QUEUE_LOG_ID, resultCount, candidates.size(), now, nextAvailable, owner, stringBuilder.toString());
-
             final Iterable<T> claimed = Iterables.<T>filter(maybeClaimedEntries, new Predicate<T>() {
                 @Override
                 public boolean apply(final T input) {
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2014-2019 Groupon, Inc
+ * Copyright 2014-2019 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.queue;
+
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.killbill.commons.concurrent.Executors;
+import org.killbill.queue.api.PersistentQueueConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.RateLimiter;
+
+//
+// Background archiver for the keepCompletedEntriesInPlace mode: completion only updates processing_state in place, and this
+// archiver later moves the completed entries to the history table, in chunks walking the record_id range of the table.
+// Each chunk is moved in its own transaction and the whole process is throttled by getArchiverMaxRowsPerSecond().
+//
+public class DefaultArchiver {
+
+    private static final Logger log = LoggerFactory.getLogger(DefaultArchiver.class);
+
+    private final DBBackedQueue<?> dao;
+    private final PersistentQueueConfig config;
+    private final AtomicBoolean isStarted;
+    private final String threadScheduledExecutorName;
+    private final RateLimiter rateLimiter;
+
+    private ScheduledFuture<?> archiveEntriesHandle;
+    private ScheduledExecutorService scheduler;
+
+    public DefaultArchiver(final DBBackedQueue<?> dao, final PersistentQueueConfig config, final String threadScheduledExecutorName) {
+        this.dao = dao;
+        this.config = config;
+        this.isStarted = new AtomicBoolean(false);
+        this.threadScheduledExecutorName = threadScheduledExecutorName;
+        this.rateLimiter = RateLimiter.create(Math.max(1, config.getArchiverMaxRowsPerSecond()));
+    }
+
+    public void start() {
+        if (!config.isKeepCompletedEntriesInPlace() || !isStarted.compareAndSet(false, true)) {
+            return;
+        }
+
+        final long schedulePeriodMillis = config.getArchiverSchedule().getMillis();
+        log.info("{}: Starting... chunkSize={}, maxRowsPerSecond={}, schedulePeriodMillis={}",
+                 threadScheduledExecutorName, config.getArchiverChunkSize(), config.getArchiverMaxRowsPerSecond(), schedulePeriodMillis);
+
+        final Runnable archiveEntries = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    archiveEntries();
+                } catch (final Exception e) {
+                    // Don't let the exception cancel the next executions
+                    log.warn("{}: Failed to archive entries", threadScheduledExecutorName, e);
+                }
+            }
+        };
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(threadScheduledExecutorName);
+        archiveEntriesHandle = scheduler.scheduleWithFixedDelay(archiveEntries, schedulePeriodMillis, schedulePeriodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        if (!isStarted.compareAndSet(true, false)) {
+            return;
+        }
+
+        log.info("{}: Shutdown...", threadScheduledExecutorName);
+        if (!archiveEntriesHandle.isCancelled() || !archiveEntriesHandle.isDone()) {
+            archiveEntriesHandle.cancel(true);
+        }
+
+        if (!scheduler.isShutdown()) {
+            scheduler.shutdown();
+            try {
+                scheduler.awaitTermination(5, TimeUnit.SECONDS);
+            } catch (final InterruptedException e) {
+                log.info("{} stop sequence has been interrupted", threadScheduledExecutorName);
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    public boolean isStarted() {
+        return isStarted.get();
+    }
+
+    /**
+     * Walks the table from its lowest record_id up to the highest record_id known when the run started
+     * (entries inserted afterwards will be looked at on the next run).
+     *
+     * @return the number of entries moved to the history table
+     */
+    @VisibleForTesting
+    public long archiveEntries() {
+        final Long minRecordId = dao.getMinRecordId();
+        final Long maxRecordId = dao.getMaxRecordId();
+        if (minRecordId == null || maxRecordId == null) {
+            return 0;
+        }
+
+        final int chunkSize = Math.max(1, config.getArchiverChunkSize());
+        long nbArchived = 0;
+        long fromRecordId = minRecordId;
+        while (fromRecordId <= maxRecordId && !Thread.currentThread().isInterrupted()) {
+            final List<Long> archivedRecordIds = dao.archiveCompletedEntries(fromRecordId, maxRecordId, chunkSize);
+            if (archivedRecordIds.isEmpty()) {
+                // No completed entry left in the range
+                break;
+            }
+
+            nbArchived += archivedRecordIds.size();
+            fromRecordId = archivedRecordIds.get(archivedRecordIds.size() - 1) + 1;
+            rateLimiter.acquire(archivedRecordIds.size());
+        }
+
+        if (nbArchived > 0) {
+            log.debug("{}: Archived {} entries", threadScheduledExecutorName, nbArchived);
+        }
+        return nbArchived;
+    }
+}
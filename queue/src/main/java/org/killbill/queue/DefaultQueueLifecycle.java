@@ -18,14 +18,20 @@ package org.killbill.queue;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 
+import javax.annotation.Nullable;
+
 import org.killbill.commons.concurrent.Executors;
 import org.killbill.queue.api.PersistentQueueConfig;
 import org.killbill.queue.api.QueueLifecycle;
+import org.killbill.queue.codec.DefaultEventCodec;
+import org.killbill.queue.codec.EventCodec;
 import org.killbill.queue.dao.EventEntryModelDao;
+import org.killbill.queue.wakeup.QueueWakeupSource;
 import org.skife.jdbi.v2.exceptions.DBIException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -46,15 +52,12 @@ public abstract class DefaultQueueLifecycle implements QueueLifecycle {
 
     private static final long MAX_SLEEP_TIME_MS = 100;
 
-    // Max size of the batch we allow，一批次最多可以处理的事件数量
-    private static final int MAX_COMPLETED_ENTRIES = 15;
-
-
     protected final String svcQName;
     protected final ObjectMapper objectMapper;
+    protected final EventCodec eventCodec;
     protected final PersistentQueueConfig config;
     // 已完成或错误的实体，定时器会处理
-    private final LinkedBlockingQueue<EventEntryModelDao> completedOrFailedEvents;
+    private final CompletionBatchingQueue<EventEntryModelDao> completedOrFailedEvents;
     // 需要重试的实体，定时器会处理
     private final LinkedBlockingQueue<EventEntryModelDao> retriedEvents;
     // Time to dispatch entries to Dispatcher threads
@@ -66,19 +69,31 @@ public abstract class DefaultQueueLifecycle implements QueueLifecycle {
     // Nb of entries completed at each loop
     private final Histogram completeEntries;
     private final boolean isStickyEvent;
+    // Optional, when specified the dispatcher threads block on it instead of sleeping between polls
+    private final QueueWakeupSource wakeupSource;
+    // Time to sleep between polls (only valid in STICKY_POLLING, POLLING), one per dispatcher thread as each one tracks its own empty polls
+    private final List<AdaptivePollingInterval> pollingIntervals;
     private volatile boolean isProcessingEvents;
     // Deferred in start sequence to allow for restart, which is not possible after the shutdown (mostly for test purpose)
     private ExecutorService executor;
 
     public DefaultQueueLifecycle(final String svcQName, final PersistentQueueConfig config, final MetricRegistry metricRegistry) {
-        this(svcQName, config, metricRegistry, QueueObjectMapper.get());
+        this(svcQName, config, metricRegistry, (QueueWakeupSource) null);
     }
-    private DefaultQueueLifecycle(final String svcQName, final PersistentQueueConfig config, final MetricRegistry metricRegistry, final ObjectMapper objectMapper) {
+
+    public DefaultQueueLifecycle(final String svcQName, final PersistentQueueConfig config, final MetricRegistry metricRegistry, @Nullable final QueueWakeupSource wakeupSource) {
+        this(svcQName, config, metricRegistry, QueueObjectMapper.get(), wakeupSource);
+    }
+
+    private DefaultQueueLifecycle(final String svcQName, final PersistentQueueConfig config, final MetricRegistry metricRegistry, final ObjectMapper objectMapper, @Nullable final QueueWakeupSource wakeupSource) {
         this.svcQName = svcQName;
+        this.wakeupSource = wakeupSource;
+        this.pollingIntervals = new CopyOnWriteArrayList<AdaptivePollingInterval>();
         this.config = config;
         this.isProcessingEvents = false;
         this.objectMapper = objectMapper;
-        this.completedOrFailedEvents = new LinkedBlockingQueue<>();
+        this.eventCodec = new DefaultEventCodec(objectMapper, config.getEventEncoding());
+        this.completedOrFailedEvents = new CompletionBatchingQueue<>(config.getMaxCompletedEntriesBatchSize(), config.getCompletedEntriesMaxDelayMs(), TimeUnit.MILLISECONDS);
         this.retriedEvents = new LinkedBlockingQueue<>();
         this.isStickyEvent = config.getPersistentQueueMode() == PersistentQueueConfig.PersistentQueueMode.STICKY_EVENTS;
 
@@ -94,6 +109,18 @@ public abstract class DefaultQueueLifecycle implements QueueLifecycle {
                 return completedOrFailedEvents.size();
             }
         });
+
+        metricRegistry.register(MetricRegistry.name(DefaultQueueLifecycle.class, svcQName, "pollingSleepTimeMs"), new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                // Longest sleep time across the dispatcher threads
+                long sleepTimeMs = 0;
+                for (final AdaptivePollingInterval pollingInterval : pollingIntervals) {
+                    sleepTimeMs = Math.max(sleepTimeMs, pollingInterval.getCurrentSleepTimeMs());
+                }
+                return sleepTimeMs;
+            }
+        });
     }
 
     @Override
@@ -105,9 +132,15 @@ public abstract class DefaultQueueLifecycle implements QueueLifecycle {
         log.info("{}: Starting...", svcQName);
 
         isProcessingEvents = true;
+        if (wakeupSource != null) {
+            wakeupSource.start();
+        }
         // 初始化线程池
+        pollingIntervals.clear();
         for (int i = 0; i < config.geNbLifecycleDispatchThreads(); i++) {
-            executor.execute(new DispatcherRunnable());
+            final AdaptivePollingInterval pollingInterval = new AdaptivePollingInterval(config);
+            pollingIntervals.add(pollingInterval);
+            executor.execute(new DispatcherRunnable(pollingInterval));
         }
 
         for (int i = 0; i < config.geNbLifecycleCompleteThreads(); i++) {
@@ -126,6 +159,9 @@ public abstract class DefaultQueueLifecycle implements QueueLifecycle {
         } catch (final InterruptedException e) {
             log.info("{}: Stop sequence has been interrupted", svcQName);
         } finally {
+            if (wakeupSource != null) {
+                wakeupSource.stop();
+            }
             int remainingCompleted = completedOrFailedEvents.size();
             int remainingRetried = retriedEvents.size();
             if (remainingCompleted > 0 || remainingRetried > 0) {
@@ -156,6 +192,14 @@ public abstract class DefaultQueueLifecycle implements QueueLifecycle {
         return objectMapper;
     }
 
+    public EventCodec getEventCodec() {
+        return eventCodec;
+    }
+
+    protected QueueWakeupSource getWakeupSource() {
+        return wakeupSource;
+    }
+
     public static class DispatchResultMetrics {
 
         private final int nbEntries;
@@ -197,19 +241,10 @@ public abstract class DefaultQueueLifecycle implements QueueLifecycle {
                         @Override
                         public void callback() throws InterruptedException {
                             long ini = System.nanoTime();
-                            long pollSleepTime = 0;
-                            final List<EventEntryModelDao> completed = new ArrayList<>(MAX_COMPLETED_ENTRIES);
-                            // Step 1、获取本批次处理的数据
-                            completedOrFailedEvents.drainTo(completed, MAX_COMPLETED_ENTRIES);
-                            if (completed.isEmpty()) {
-                                long beforePollTime = System.nanoTime();
-                                // 延时等待获取数据
-                                final EventEntryModelDao entry = completedOrFailedEvents.poll(MAX_SLEEP_TIME_MS, TimeUnit.MILLISECONDS);
-                                pollSleepTime = System.nanoTime() - beforePollTime;
-                                if (entry != null) {
-                                    completed.add(entry);
-                                }
-                            }
+                            final List<EventEntryModelDao> completed = new ArrayList<>();
+                            // Step 1、获取本批次处理的数据: a full batch right away if there is a backlog, otherwise wait for (more) entries
+                            completedOrFailedEvents.drainBatch(completed, MAX_SLEEP_TIME_MS, TimeUnit.MILLISECONDS);
+                            final long pollSleepTime = System.nanoTime() - ini;
 
                             if (!completed.isEmpty()) {
                                 // Step 2、处理已完成事件（移到历史表中）
@@ -249,6 +284,12 @@ public abstract class DefaultQueueLifecycle implements QueueLifecycle {
     // 定时器读取数据库事件，将其派发到订阅端
     private final class DispatcherRunnable implements Runnable {
 
+        private final AdaptivePollingInterval pollingInterval;
+
+        private DispatcherRunnable(final AdaptivePollingInterval pollingInterval) {
+            this.pollingInterval = pollingInterval;
+        }
+
         @Override
         public void run() {
 
@@ -269,10 +310,10 @@ public abstract class DefaultQueueLifecycle implements QueueLifecycle {
                         public void callback() throws InterruptedException {
                             final long beforeLoop = System.nanoTime();
                             // 最终调用的是doDispatchEvents()
-                            dispatchEvents();
+                            final int nbEntries = dispatchEvents();
                             final long afterLoop = System.nanoTime();
 
-                            sleepSporadically((afterLoop - beforeLoop) / ONE_MILLION);
+                            sleepSporadically(nbEntries, (afterLoop - beforeLoop) / ONE_MILLION);
                         }
                     });
                 }
@@ -286,7 +327,7 @@ public abstract class DefaultQueueLifecycle implements QueueLifecycle {
         }
 
 
-        private void dispatchEvents() {
+        private int dispatchEvents() {
 
             long ini = System.nanoTime();
             // 委派给 doDispatchEvents()
@@ -297,18 +338,25 @@ public abstract class DefaultQueueLifecycle implements QueueLifecycle {
             } else {
                 dispatchTime.update(System.nanoTime() - ini, TimeUnit.NANOSECONDS);
             }
+            return metricsResult.getNbEntries();
         }
 
-        private void sleepSporadically(final long loopTimeMsec) throws InterruptedException {
+        private void sleepSporadically(final int nbDispatchedEntries, final long loopTimeMsec) throws InterruptedException {
             if (isStickyEvent) {
                 // In this mode, the main thread does not sleep, but blocks on the inflightQ to minimize latency.
                 return;
             }
 
-            long remainingSleepTime = config.getPollingSleepTimeMs() - loopTimeMsec;
-            while (remainingSleepTime > 0) {
+            // When a wake-up source is configured, the polling sleep time is only a backstop (e.g. for entries inserted by other nodes,
+            // retries or future notifications): we go back to the database as soon as new work is signalled.
+            long remainingSleepTime = pollingInterval.onDispatch(nbDispatchedEntries) - loopTimeMsec;
+            while (remainingSleepTime > 0 && isProcessingEvents) {
                 final long curSleepTime = remainingSleepTime > MAX_SLEEP_TIME_MS ? MAX_SLEEP_TIME_MS : remainingSleepTime;
-                Thread.sleep(curSleepTime);
+                if (wakeupSource == null) {
+                    Thread.sleep(curSleepTime);
+                } else if (wakeupSource.awaitWork(curSleepTime, TimeUnit.MILLISECONDS)) {
+                    return;
+                }
                 remainingSleepTime -= curSleepTime;
             }
         }
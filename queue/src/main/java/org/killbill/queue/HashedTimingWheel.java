@@ -0,0 +1,254 @@
+/*
+ * Copyright 2014-2019 Groupon, Inc
+ * Copyright 2014-2019 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.queue;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.annotation.Nullable;
+
+import org.killbill.clock.Clock;
+import org.killbill.commons.concurrent.Executors;
+import org.killbill.commons.jdbi.notification.DatabaseTransactionEvent;
+import org.killbill.commons.jdbi.notification.DatabaseTransactionEventType;
+import org.killbill.commons.jdbi.notification.DatabaseTransactionNotificationApi;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.eventbus.AllowConcurrentEvents;
+import com.google.common.eventbus.Subscribe;
+
+//
+// Hashed timing wheel of record ids, used to dispatch entries committed on this node right when they come due, instead of on the next poll:
+// - Each bucket covers tickDurationMs; an entry lands in bucket (deadline / tickDurationMs) % wheelSize and expires once the clock
+//   has moved past its tick, i.e. at most tickDurationMs late
+// - Similar to the inflightQ algorithm (STICKY_EVENTS), entries scheduled from a transaction are only added on commit
+// - Nothing is persisted: entries lost (restart, wheel full, expiry handler failure) are simply picked up by the regular polling
+//
+public class HashedTimingWheel {
+
+    private static final Logger log = LoggerFactory.getLogger(HashedTimingWheel.class);
+
+    public interface ExpiryHandler {
+
+        void onExpired(List<Long> recordIds);
+    }
+
+    private static final class Timeout {
+
+        private final long recordId;
+        private final long deadlineTick;
+
+        private Timeout(final long recordId, final long deadlineTick) {
+            this.recordId = recordId;
+            this.deadlineTick = deadlineTick;
+        }
+    }
+
+    private final String name;
+    private final Clock clock;
+    private final long tickDurationMs;
+    private final int maxEntries;
+    private final ExpiryHandler expiryHandler;
+    @Nullable
+    private final DatabaseTransactionNotificationApi databaseTransactionNotificationApi;
+    private final AtomicBoolean isStarted;
+
+    // Guarded by this
+    private final List<Timeout>[] buckets;
+    private long currentTick;
+    private int nbEntries;
+
+    // Entries scheduled by the current thread, in a transaction which has not been committed/rolled back yet
+    private final ThreadLocal<List<long[]>> pendingEntries = new ThreadLocal<List<long[]>>();
+
+    private ScheduledExecutorService ticker;
+
+    @SuppressWarnings("unchecked")
+    public HashedTimingWheel(final String name,
+                             final Clock clock,
+                             final long tickDurationMs,
+                             final int wheelSize,
+                             final int maxEntries,
+                             final ExpiryHandler expiryHandler,
+                             @Nullable final DatabaseTransactionNotificationApi databaseTransactionNotificationApi) {
+        this.name = name;
+        this.clock = clock;
+        this.tickDurationMs = Math.max(1, tickDurationMs);
+        this.maxEntries = maxEntries;
+        this.expiryHandler = expiryHandler;
+        this.databaseTransactionNotificationApi = databaseTransactionNotificationApi;
+        this.isStarted = new AtomicBoolean(false);
+        this.buckets = new List[Math.max(1, wheelSize)];
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new LinkedList<Timeout>();
+        }
+        this.currentTick = clock.getUTCNow().getMillis() / this.tickDurationMs;
+        this.nbEntries = 0;
+    }
+
+    public void start() {
+        if (!isStarted.compareAndSet(false, true)) {
+            return;
+        }
+
+        synchronized (this) {
+            currentTick = clock.getUTCNow().getMillis() / tickDurationMs;
+        }
+        if (databaseTransactionNotificationApi != null) {
+            databaseTransactionNotificationApi.registerForNotification(this);
+        }
+
+        ticker = Executors.newSingleThreadScheduledExecutor(name);
+        ticker.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    expireEntries();
+                } catch (final Exception e) {
+                    // Don't let the exception cancel the next executions
+                    log.warn("{}: Failed to dispatch expired entries", name, e);
+                }
+            }
+        }, tickDurationMs, tickDurationMs, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        if (!isStarted.compareAndSet(true, false)) {
+            return;
+        }
+
+        if (databaseTransactionNotificationApi != null) {
+            databaseTransactionNotificationApi.unregisterForNotification(this);
+        }
+
+        ticker.shutdown();
+        try {
+            ticker.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (final InterruptedException e) {
+            log.info("{} stop sequence has been interrupted", name);
+            Thread.currentThread().interrupt();
+        }
+
+        synchronized (this) {
+            for (final List<Timeout> bucket : buckets) {
+                bucket.clear();
+            }
+            nbEntries = 0;
+        }
+    }
+
+    public boolean isStarted() {
+        return isStarted.get();
+    }
+
+    /**
+     * Schedules the entry once the current transaction commits (right away when there is no transaction notification)
+     */
+    public void scheduleFromTransaction(final long recordId, final long deadlineMs) {
+        if (!isStarted.get()) {
+            return;
+        }
+        if (databaseTransactionNotificationApi == null) {
+            schedule(recordId, deadlineMs);
+            return;
+        }
+
+        List<long[]> pending = pendingEntries.get();
+        if (pending == null) {
+            pending = new ArrayList<long[]>();
+            pendingEntries.set(pending);
+        }
+        pending.add(new long[]{recordId, deadlineMs});
+    }
+
+    /**
+     * @return false if the wheel is full (the entry will be picked up by the regular polling)
+     */
+    public synchronized boolean schedule(final long recordId, final long deadlineMs) {
+        if (nbEntries >= maxEntries) {
+            return false;
+        }
+        // Entries already due are expired on the next tick
+        final long deadlineTick = Math.max(deadlineMs / tickDurationMs, currentTick);
+        buckets[(int) (deadlineTick % buckets.length)].add(new Timeout(recordId, deadlineTick));
+        nbEntries++;
+        return true;
+    }
+
+    public synchronized int getNbEntries() {
+        return nbEntries;
+    }
+
+    @VisibleForTesting
+    public void expireEntries() {
+        final List<Long> expiredRecordIds = advance(clock.getUTCNow().getMillis());
+        if (!expiredRecordIds.isEmpty()) {
+            expiryHandler.onExpired(expiredRecordIds);
+        }
+    }
+
+    // Expires all the buckets whose tick is over
+    @VisibleForTesting
+    synchronized List<Long> advance(final long nowMs) {
+        final List<Long> expiredRecordIds = new ArrayList<Long>();
+        final long targetTick = nowMs / tickDurationMs;
+        if (targetTick <= currentTick) {
+            return expiredRecordIds;
+        }
+
+        // Look at each bucket at most once, even if the clock jumped by more than a revolution
+        final long lastTick = Math.min(targetTick, currentTick + buckets.length);
+        for (long tick = currentTick; tick < lastTick; tick++) {
+            final Iterator<Timeout> iterator = buckets[(int) (tick % buckets.length)].iterator();
+            while (iterator.hasNext()) {
+                final Timeout timeout = iterator.next();
+                if (timeout.deadlineTick < targetTick) {
+                    expiredRecordIds.add(timeout.recordId);
+                    iterator.remove();
+                    nbEntries--;
+                }
+            }
+        }
+        currentTick = targetTick;
+        return expiredRecordIds;
+    }
+
+    @AllowConcurrentEvents
+    @Subscribe
+    public void handleDatabaseTransactionEvent(final DatabaseTransactionEvent event) {
+        final List<long[]> pending = pendingEntries.get();
+        // Either a transaction we are not interested in, or nothing was scheduled; just return.
+        if (pending == null) {
+            return;
+        }
+
+        pendingEntries.remove();
+        if (event.getType() == DatabaseTransactionEventType.COMMIT) {
+            for (final long[] entry : pending) {
+                schedule(entry[0], entry[1]);
+            }
+        }
+    }
+}
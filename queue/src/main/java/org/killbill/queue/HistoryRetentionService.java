@@ -0,0 +1,325 @@
+/*
+ * Copyright 2014-2019 Groupon, Inc
+ * Copyright 2014-2019 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.queue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.annotation.Nullable;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.joda.time.format.DateTimeFormat;
+import org.joda.time.format.DateTimeFormatter;
+import org.killbill.clock.Clock;
+import org.killbill.commons.concurrent.Executors;
+import org.killbill.queue.api.PersistentQueueConfig;
+import org.skife.jdbi.v2.Handle;
+import org.skife.jdbi.v2.IDBI;
+import org.skife.jdbi.v2.TransactionCallback;
+import org.skife.jdbi.v2.TransactionStatus;
+import org.skife.jdbi.v2.tweak.HandleCallback;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.annotations.VisibleForTesting;
+
+//
+// Retention for the partitioned history tables (see ddl_history_partitioned_mysql.sql and ddl_history_partitioned_postgresql.sql):
+// - Creates the monthly partitions (on partitionColumn, i.e. created_date for the bus and effective_date for notifications) for the
+//   current month and the next getHistoryPartitionsAhead() months, so that history inserts are routed by the database to their own
+//   month instead of the catch-all partition (pmax on MySQL, <table>_default on PostgreSQL)
+// - Drops the monthly partitions whose entries are all older than getHistoryRetention(), instead of issuing large DELETE statements,
+//   and deletes the expired rows left in the catch-all partition (e.g. rows inserted before the first monthly partition existed)
+// Both steps are independent: a partition which can't be created doesn't prevent the other ones from being created, nor the expired
+// ones from being dropped.
+//
+// On PostgreSQL, a partition can't be created while the default partition holds rows in its range (e.g. the service was down across a
+// month boundary, or notifications with a future effective_date were moved to history): the default partition is then detached, its rows
+// for that month are moved to the new partition and it is attached back, in a single transaction (which locks the history table).
+//
+public class HistoryRetentionService {
+
+    private static final Logger log = LoggerFactory.getLogger(HistoryRetentionService.class);
+
+    private static final String MYSQL = "MySQL";
+    private static final String POSTGRESQL = "PostgreSQL";
+
+    // p202601 (MySQL) or bus_events_history_p202601 (PostgreSQL)
+    private static final Pattern PARTITION_NAME_PATTERN = Pattern.compile("(?:^|_)p(\\d{6})$");
+    private static final DateTimeFormatter PARTITION_SUFFIX_FORMATTER = DateTimeFormat.forPattern("yyyyMM").withZoneUTC();
+    private static final DateTimeFormatter PARTITION_BOUND_FORMATTER = DateTimeFormat.forPattern("yyyy-MM-dd").withZoneUTC();
+
+    private final IDBI dbi;
+    private final PersistentQueueConfig config;
+    private final Clock clock;
+    private final AtomicBoolean isStarted;
+    private final String threadScheduledExecutorName;
+    private final String partitionColumn;
+
+    private ScheduledFuture<?> retentionHandle;
+    private ScheduledExecutorService scheduler;
+
+    public HistoryRetentionService(final IDBI dbi, final PersistentQueueConfig config, final Clock clock, final String threadScheduledExecutorName, final String partitionColumn) {
+        this.dbi = dbi;
+        this.config = config;
+        this.clock = clock;
+        this.isStarted = new AtomicBoolean(false);
+        this.threadScheduledExecutorName = threadScheduledExecutorName;
+        this.partitionColumn = partitionColumn;
+    }
+
+    public void start() {
+        if (!config.isHistoryPartitioningEnabled() || !isStarted.compareAndSet(false, true)) {
+            return;
+        }
+
+        final long schedulePeriodMillis = config.getHistoryRetentionSchedule().getMillis();
+        log.info("{}: Starting... historyTableName={}, retention={}, partitionsAhead={}, schedulePeriodMillis={}",
+                 threadScheduledExecutorName, config.getHistoryTableName(), config.getHistoryRetention(), config.getHistoryPartitionsAhead(), schedulePeriodMillis);
+
+        final Runnable maintainPartitions = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    maintainPartitions();
+                } catch (final Exception e) {
+                    // Don't let the exception cancel the next executions
+                    log.warn("{}: Failed to maintain the history partitions", threadScheduledExecutorName, e);
+                }
+            }
+        };
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(threadScheduledExecutorName);
+        // Run right away, to create the partitions for the current month before entries are moved to history
+        retentionHandle = scheduler.scheduleWithFixedDelay(maintainPartitions, 0, schedulePeriodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        if (!isStarted.compareAndSet(true, false)) {
+            return;
+        }
+
+        log.info("{}: Shutdown...", threadScheduledExecutorName);
+        if (!retentionHandle.isCancelled() || !retentionHandle.isDone()) {
+            retentionHandle.cancel(true);
+        }
+
+        if (!scheduler.isShutdown()) {
+            scheduler.shutdown();
+            try {
+                scheduler.awaitTermination(5, TimeUnit.SECONDS);
+            } catch (final InterruptedException e) {
+                log.info("{} stop sequence has been interrupted", threadScheduledExecutorName);
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    public boolean isStarted() {
+        return isStarted.get();
+    }
+
+    @VisibleForTesting
+    public void maintainPartitions() {
+        dbi.withHandle(new HandleCallback<Void>() {
+            @Override
+            public Void withHandle(final Handle handle) throws Exception {
+                final String databaseProductName = handle.getConnection().getMetaData().getDatabaseProductName();
+                final boolean isMySQL;
+                if (MYSQL.equalsIgnoreCase(databaseProductName)) {
+                    isMySQL = true;
+                } else if (POSTGRESQL.equalsIgnoreCase(databaseProductName)) {
+                    isMySQL = false;
+                } else {
+                    log.warn("{}: History partitioning isn't supported on {}", threadScheduledExecutorName, databaseProductName);
+                    return null;
+                }
+
+                final DateTime now = clock.getUTCNow();
+                createMissingPartitions(handle, isMySQL, now);
+                dropExpiredPartitions(handle, isMySQL, now.minus(config.getHistoryRetention().getMillis()));
+                return null;
+            }
+        });
+    }
+
+    private void createMissingPartitions(final Handle handle, final boolean isMySQL, final DateTime now) {
+        final String historyTableName = config.getHistoryTableName();
+        for (final DateTime month : getMissingMonths(getPartitions(handle, isMySQL), now, config.getHistoryPartitionsAhead())) {
+            log.info("{}: Creating partition {} for table {}", threadScheduledExecutorName, getPartitionSuffix(month), historyTableName);
+            try {
+                if (isMySQL) {
+                    // Split the catch-all partition (its rows for that month are moved by MySQL)
+                    handle.execute(String.format("alter table %s reorganize partition pmax into (partition %s values less than ('%s'), partition pmax values less than (MAXVALUE))",
+                                                 historyTableName, getPartitionSuffix(month), PARTITION_BOUND_FORMATTER.print(month.plusMonths(1))));
+                } else {
+                    createPostgreSQLPartition(handle, historyTableName, month);
+                }
+            } catch (final Exception e) {
+                log.warn("{}: Failed to create partition {} for table {}", threadScheduledExecutorName, getPartitionSuffix(month), historyTableName, e);
+            }
+        }
+    }
+
+    private void createPostgreSQLPartition(final Handle handle, final String historyTableName, final DateTime month) {
+        final String partitionName = historyTableName + "_" + getPartitionSuffix(month);
+        final String defaultPartitionName = historyTableName + "_default";
+        final String from = PARTITION_BOUND_FORMATTER.print(month);
+        final String to = PARTITION_BOUND_FORMATTER.print(month.plusMonths(1));
+        final String rangeCondition = String.format("%s >= '%s' and %s < '%s'", partitionColumn, from, partitionColumn, to);
+
+        final boolean hasDefaultRows = !handle.select(String.format("select 1 from %s where %s limit 1", defaultPartitionName, rangeCondition)).isEmpty();
+        if (!hasDefaultRows) {
+            handle.execute(String.format("create table %s partition of %s for values from ('%s') to ('%s')", partitionName, historyTableName, from, to));
+            return;
+        }
+
+        log.info("{}: Moving the rows of {} to partition {}", threadScheduledExecutorName, defaultPartitionName, partitionName);
+        handle.inTransaction(new TransactionCallback<Void>() {
+            @Override
+            public Void inTransaction(final Handle conn, final TransactionStatus status) throws Exception {
+                conn.execute(String.format("alter table %s detach partition %s", historyTableName, defaultPartitionName));
+                conn.execute(String.format("create table %s partition of %s for values from ('%s') to ('%s')", partitionName, historyTableName, from, to));
+                conn.execute(String.format("insert into %s select * from %s where %s", partitionName, defaultPartitionName, rangeCondition));
+                conn.execute(String.format("delete from %s where %s", defaultPartitionName, rangeCondition));
+                conn.execute(String.format("alter table %s attach partition %s default", historyTableName, defaultPartitionName));
+                return null;
+            }
+        });
+    }
+
+    private void dropExpiredPartitions(final Handle handle, final boolean isMySQL, final DateTime retentionDate) {
+        final String historyTableName = config.getHistoryTableName();
+        for (final String partition : getExpiredPartitions(getPartitions(handle, isMySQL), retentionDate)) {
+            log.info("{}: Dropping partition {} of table {}", threadScheduledExecutorName, partition, historyTableName);
+            try {
+                if (isMySQL) {
+                    handle.execute(String.format("alter table %s drop partition %s", historyTableName, partition));
+                } else {
+                    handle.execute(String.format("drop table %s", partition));
+                }
+            } catch (final Exception e) {
+                log.warn("{}: Failed to drop partition {} of table {}", threadScheduledExecutorName, partition, historyTableName, e);
+            }
+        }
+
+        // Expired rows which never made it to a monthly partition
+        final String catchAllPartitionCondition = String.format("%s < '%s'", partitionColumn, PARTITION_BOUND_FORMATTER.print(retentionDate));
+        try {
+            final int deleted;
+            if (isMySQL) {
+                deleted = handle.update(String.format("delete from %s partition (pmax) where %s", historyTableName, catchAllPartitionCondition));
+            } else {
+                deleted = handle.update(String.format("delete from %s_default where %s", historyTableName, catchAllPartitionCondition));
+            }
+            if (deleted > 0) {
+                log.info("{}: Deleted {} expired rows from the catch-all partition of table {}", threadScheduledExecutorName, deleted, historyTableName);
+            }
+        } catch (final Exception e) {
+            log.warn("{}: Failed to delete the expired rows from the catch-all partition of table {}", threadScheduledExecutorName, historyTableName, e);
+        }
+    }
+
+    private List<String> getPartitions(final Handle handle, final boolean isMySQL) {
+        return isMySQL ? getMySQLPartitions(handle, config.getHistoryTableName()) : getPostgreSQLPartitions(handle, config.getHistoryTableName());
+    }
+
+    private List<String> getMySQLPartitions(final Handle handle, final String historyTableName) {
+        return getPartitionNames(handle.select("select partition_name from information_schema.partitions where table_schema = database() and table_name = ?", historyTableName));
+    }
+
+    private List<String> getPostgreSQLPartitions(final Handle handle, final String historyTableName) {
+        return getPartitionNames(handle.select("select c.relname from pg_inherits i join pg_class c on c.oid = i.inhrelid join pg_class p on p.oid = i.inhparent where p.relname = ?", historyTableName));
+    }
+
+    private List<String> getPartitionNames(final List<Map<String, Object>> rows) {
+        final List<String> result = new ArrayList<String>(rows.size());
+        for (final Map<String, Object> row : rows) {
+            for (final Object value : row.values()) {
+                if (value != null) {
+                    result.add(value.toString());
+                }
+            }
+        }
+        return result;
+    }
+
+    @VisibleForTesting
+    static String getPartitionSuffix(final DateTime month) {
+        return "p" + PARTITION_SUFFIX_FORMATTER.print(month);
+    }
+
+    /**
+     * @return the first day of the month covered by that partition, or null if this isn't a monthly partition (e.g. pmax)
+     */
+    @Nullable
+    @VisibleForTesting
+    static DateTime getPartitionMonth(final String partitionName) {
+        final Matcher matcher = PARTITION_NAME_PATTERN.matcher(partitionName);
+        if (!matcher.find()) {
+            return null;
+        }
+        return PARTITION_SUFFIX_FORMATTER.parseDateTime(matcher.group(1));
+    }
+
+    /**
+     * @return the months (first day, UTC) from the current month up to nbMonthsAhead months later which don't have a partition yet
+     */
+    @VisibleForTesting
+    static List<DateTime> getMissingMonths(final Iterable<String> existingPartitions, final DateTime now, final int nbMonthsAhead) {
+        final DateTime currentMonth = now.withZone(DateTimeZone.UTC).withDayOfMonth(1).withTimeAtStartOfDay();
+        final List<DateTime> result = new ArrayList<DateTime>();
+        for (int i = 0; i <= nbMonthsAhead; i++) {
+            final DateTime month = currentMonth.plusMonths(i);
+            boolean found = false;
+            for (final String partition : existingPartitions) {
+                if (month.equals(getPartitionMonth(partition))) {
+                    found = true;
+                    break;
+                }
+            }
+            if (!found) {
+                result.add(month);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the monthly partitions which only contain entries created before retentionDate
+     */
+    @VisibleForTesting
+    static List<String> getExpiredPartitions(final Iterable<String> existingPartitions, final DateTime retentionDate) {
+        final List<String> result = new ArrayList<String>();
+        for (final String partition : existingPartitions) {
+            final DateTime month = getPartitionMonth(partition);
+            if (month != null && !month.plusMonths(1).isAfter(retentionDate)) {
+                result.add(partition);
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2014-2019 Groupon, Inc
+ * Copyright 2014-2019 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.queue;
+
+import com.google.common.base.Preconditions;
+
+//
+// Set of primitive longs (open addressing, linear probing), to avoid boxing record ids on the inflightQ path.
+// Record ids are strictly positive, so 0 marks an empty slot. All methods are synchronized.
+//
+public class LongHashSet {
+
+    private static final int DEFAULT_INITIAL_CAPACITY = 1024;
+    private static final long EMPTY = 0L;
+
+    private long[] slots;
+    private int size;
+
+    public LongHashSet() {
+        this(DEFAULT_INITIAL_CAPACITY);
+    }
+
+    public LongHashSet(final int expectedSize) {
+        this.slots = new long[tableSizeFor(expectedSize)];
+        this.size = 0;
+    }
+
+    /**
+     * @return false if the value was already in the set
+     */
+    public synchronized boolean add(final long value) {
+        Preconditions.checkArgument(value != EMPTY, "Value can't be %s", EMPTY);
+        int index = indexOf(value, slots.length);
+        while (slots[index] != EMPTY) {
+            if (slots[index] == value) {
+                return false;
+            }
+            index = (index + 1) & (slots.length - 1);
+        }
+        slots[index] = value;
+        size++;
+        // Keep the load factor under 1/2
+        if (2 * size > slots.length) {
+            rehash(2 * slots.length);
+        }
+        return true;
+    }
+
+    /**
+     * @return false if the value wasn't in the set
+     */
+    public synchronized boolean remove(final long value) {
+        final int mask = slots.length - 1;
+        int index = indexOf(value, slots.length);
+        while (slots[index] != value) {
+            if (slots[index] == EMPTY) {
+                return false;
+            }
+            index = (index + 1) & mask;
+        }
+
+        // Backward shift deletion: move back the next entries of the cluster which would otherwise be unreachable
+        int hole = index;
+        int cur = (hole + 1) & mask;
+        while (slots[cur] != EMPTY) {
+            final int home = indexOf(slots[cur], slots.length);
+            // Can the entry at cur move to the hole, i.e. is its home slot cyclically outside of (hole, cur]?
+            if (((cur - home) & mask) >= ((cur - hole) & mask)) {
+                slots[hole] = slots[cur];
+                hole = cur;
+            }
+            cur = (cur + 1) & mask;
+        }
+        slots[hole] = EMPTY;
+        size--;
+        return true;
+    }
+
+    public synchronized boolean contains(final long value) {
+        int index = indexOf(value, slots.length);
+        while (slots[index] != EMPTY) {
+            if (slots[index] == value) {
+                return true;
+            }
+            index = (index + 1) & (slots.length - 1);
+        }
+        return false;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public synchronized void clear() {
+        for (int i = 0; i < slots.length; i++) {
+            slots[i] = EMPTY;
+        }
+        size = 0;
+    }
+
+    private void rehash(final int newLength) {
+        final long[] oldSlots = slots;
+        slots = new long[newLength];
+        for (final long value : oldSlots) {
+            if (value != EMPTY) {
+                int index = indexOf(value, newLength);
+                while (slots[index] != EMPTY) {
+                    index = (index + 1) & (newLength - 1);
+                }
+                slots[index] = value;
+            }
+        }
+    }
+
+    private static int indexOf(final long value, final int length) {
+        // Spread the bits, as record ids are sequential
+        final long hash = value * 0x9E3779B97F4A7C15L;
+        return (int) (hash ^ (hash >>> 32)) & (length - 1);
+    }
+
+    private static int tableSizeFor(final int expectedSize) {
+        int result = 16;
+        while (result < 2 * expectedSize && result < (1 << 30)) {
+            result <<= 1;
+        }
+        return result;
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2014-2019 Groupon, Inc
+ * Copyright 2014-2019 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.queue;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.google.common.base.Preconditions;
+
+//
+// FIFO queue of primitive longs backed by a ring buffer, to avoid boxing record ids on the inflightQ path.
+// Multiple threads can offer (transaction commits) and drain (lifecycle dispatch threads) concurrently.
+//
+// This is not a lock-free MPSC ring: there can be several consumers (dispatch lanes), the unbounded mode resizes the array and
+// consumers block in awaitNotEmpty, all of which are simpler with a single lock. The lock is only held for a few array accesses,
+// and consumers amortize it by draining a batch at a time.
+//
+// When unbounded, the buffer doubles in size when full; when bounded, offer returns false once the capacity is reached.
+//
+public class LongRingBuffer {
+
+    private static final int DEFAULT_INITIAL_CAPACITY = 1024;
+    private static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+
+    private final int capacity;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+
+    private long[] buffer;
+    // Index of the next element to read
+    private int head;
+    private int size;
+
+    // Unbounded buffer
+    public LongRingBuffer() {
+        this(0);
+    }
+
+    // Bounded buffer if capacity > 0, unbounded otherwise
+    public LongRingBuffer(final int capacity) {
+        this.capacity = capacity > 0 ? capacity : MAX_ARRAY_SIZE;
+        this.buffer = new long[capacity > 0 ? Math.min(capacity, DEFAULT_INITIAL_CAPACITY) : DEFAULT_INITIAL_CAPACITY];
+        this.head = 0;
+        this.size = 0;
+    }
+
+    public boolean offer(final long value) {
+        lock.lock();
+        try {
+            if (size == capacity) {
+                return false;
+            }
+            if (size == buffer.length) {
+                grow();
+            }
+            buffer[(head + size) % buffer.length] = value;
+            size++;
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int drainTo(final long[] target) {
+        return drainTo(target, 0, target.length);
+    }
+
+    /**
+     * Removes at most maxElements from the buffer, without blocking.
+     *
+     * @return the number of elements copied into target, starting at offset
+     */
+    public int drainTo(final long[] target, final int offset, final int maxElements) {
+        Preconditions.checkArgument(offset >= 0 && maxElements >= 0 && offset + maxElements <= target.length);
+        lock.lock();
+        try {
+            final int n = Math.min(size, maxElements);
+            // At most two contiguous chunks: [head, end of array) and [0, ...)
+            final int firstChunk = Math.min(n, buffer.length - head);
+            System.arraycopy(buffer, head, target, offset, firstChunk);
+            System.arraycopy(buffer, 0, target, offset + firstChunk, n - firstChunk);
+            head = (head + n) % buffer.length;
+            size -= n;
+            return n;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Blocks until the buffer is not empty, or the timeout expires.
+     *
+     * @return true if the buffer is not empty
+     */
+    public boolean awaitNotEmpty(final long timeout, final TimeUnit unit) throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            long remainingNanos = unit.toNanos(timeout);
+            while (size == 0) {
+                if (remainingNanos <= 0) {
+                    return false;
+                }
+                remainingNanos = notEmpty.awaitNanos(remainingNanos);
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public void clear() {
+        lock.lock();
+        try {
+            head = 0;
+            size = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void grow() {
+        final int newLength = (int) Math.min((long) capacity, Math.min((long) MAX_ARRAY_SIZE, 2L * buffer.length));
+        final long[] newBuffer = new long[newLength];
+        final int firstChunk = Math.min(size, buffer.length - head);
+        System.arraycopy(buffer, head, newBuffer, 0, firstChunk);
+        System.arraycopy(buffer, 0, newBuffer, firstChunk, size - firstChunk);
+        buffer = newBuffer;
+        head = 0;
+    }
+}
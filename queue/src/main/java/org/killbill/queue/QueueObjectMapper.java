@@ -16,6 +16,7 @@
 
 package org.killbill.queue;
 
+import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.SerializationFeature;
@@ -23,15 +24,21 @@ import com.fasterxml.jackson.datatype.joda.JodaModule;
 
 public class QueueObjectMapper {
 
-    private static final ObjectMapper objectMapper = new ObjectMapper();
-
-    static {
-        objectMapper.registerModule(new JodaModule());
-        objectMapper.disable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS);
-        objectMapper.disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
-    }
+    private static final ObjectMapper objectMapper = configure(new ObjectMapper());
 
     public static ObjectMapper get() {
         return objectMapper;
     }
+
+    // Same configuration, for another data format (e.g. Smile)
+    public static ObjectMapper get(final JsonFactory jsonFactory) {
+        return configure(new ObjectMapper(jsonFactory));
+    }
+
+    private static ObjectMapper configure(final ObjectMapper mapper) {
+        mapper.registerModule(new JodaModule());
+        mapper.disable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS);
+        mapper.disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
+        return mapper;
+    }
 }
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2014-2019 Groupon, Inc
+ * Copyright 2014-2019 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.queue;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+
+import org.killbill.commons.jdbi.notification.DatabaseTransactionEvent;
+import org.killbill.commons.jdbi.notification.DatabaseTransactionEventType;
+import org.killbill.commons.jdbi.notification.DatabaseTransactionNotificationApi;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Supplier;
+import com.google.common.eventbus.AllowConcurrentEvents;
+import com.google.common.eventbus.Subscribe;
+
+//
+// Approximate number of ready entries, maintained in memory to avoid running a count(*) every time it is needed:
+// - Entries inserted from a transaction are only counted when the transaction commits (per thread counter, similar to the inflightQ algorithm)
+// - Entries are removed from the count when they are claimed (polling modes) or completed (STICKY_EVENTS, where entries are never claimed),
+//   if they were counted in the first place (see DBBackedQueue#isCountedAsReady)
+// - The count is reconciled against the database (exact count) at most once every reconcileIntervalMs, from the dispatcher threads
+//   (reconcileIfNeeded): reading it never hits the database
+//
+// Entries inserted by other nodes (POLLING mode) or becoming ready over time (future notifications) are only seen on reconciliation.
+// The count is kept positive, but this is only a safety net for drifts fixed by the next reconciliation.
+//
+public class ReadyEntriesCounter {
+
+    private static final Logger log = LoggerFactory.getLogger(ReadyEntriesCounter.class);
+
+    @Nullable
+    private final DatabaseTransactionNotificationApi databaseTransactionNotificationApi;
+    private final Supplier<Long> exactCount;
+    private final long reconcileIntervalNanos;
+    private final AtomicBoolean isStarted;
+    private final AtomicBoolean isReconciling;
+
+    private final AtomicLong approximateCount;
+    // Entries inserted by the current thread, in a transaction which has not been committed/rolled back yet
+    private final ThreadLocal<long[]> pendingInserts = new ThreadLocal<long[]>();
+
+    private volatile long lastReconciliationNanos;
+    private volatile boolean hasReconciliationRun;
+
+    public ReadyEntriesCounter(@Nullable final DatabaseTransactionNotificationApi databaseTransactionNotificationApi,
+                               final Supplier<Long> exactCount,
+                               final long reconcileIntervalMs) {
+        this.databaseTransactionNotificationApi = databaseTransactionNotificationApi;
+        this.exactCount = exactCount;
+        this.reconcileIntervalNanos = TimeUnit.MILLISECONDS.toNanos(reconcileIntervalMs);
+        this.isStarted = new AtomicBoolean(false);
+        this.isReconciling = new AtomicBoolean(false);
+        this.approximateCount = new AtomicLong(0);
+        this.hasReconciliationRun = false;
+    }
+
+    public void start() {
+        if (databaseTransactionNotificationApi != null && isStarted.compareAndSet(false, true)) {
+            databaseTransactionNotificationApi.registerForNotification(this);
+        }
+    }
+
+    public void stop() {
+        if (databaseTransactionNotificationApi != null && isStarted.compareAndSet(true, false)) {
+            databaseTransactionNotificationApi.unregisterForNotification(this);
+        }
+    }
+
+    public void onEntriesInsertedFromTransaction(final int nbEntries) {
+        if (!isStarted.get()) {
+            // No transaction notification: count them right away
+            add(nbEntries);
+            return;
+        }
+
+        long[] pending = pendingInserts.get();
+        if (pending == null) {
+            pending = new long[1];
+            pendingInserts.set(pending);
+        }
+        pending[0] += nbEntries;
+    }
+
+    public void onEntriesAvailable(final int nbEntries) {
+        add(nbEntries);
+    }
+
+    public void onEntriesClaimed(final int nbEntries) {
+        add(-nbEntries);
+    }
+
+    /**
+     * @return the approximate number of ready entries, as of the last reconciliation and the changes seen since
+     */
+    public long getApproximateCount() {
+        return approximateCount.get();
+    }
+
+    /**
+     * Reconciles the count against the database if the last reconciliation is too old
+     */
+    public void reconcileIfNeeded() {
+        if (!hasReconciliationRun || System.nanoTime() - lastReconciliationNanos >= reconcileIntervalNanos) {
+            reconcile();
+        }
+    }
+
+    @VisibleForTesting
+    void reconcile() {
+        // Only one thread reconciles, the others return the current approximation
+        if (!isReconciling.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            final Long count = exactCount.get();
+            approximateCount.set(count == null ? 0 : count);
+        } catch (final RuntimeException e) {
+            log.warn("Failed to reconcile the number of ready entries", e);
+        } finally {
+            // Don't retry right away on failure
+            lastReconciliationNanos = System.nanoTime();
+            hasReconciliationRun = true;
+            isReconciling.set(false);
+        }
+    }
+
+    private void add(final long delta) {
+        long cur;
+        do {
+            cur = approximateCount.get();
+        } while (!approximateCount.compareAndSet(cur, Math.max(0, cur + delta)));
+    }
+
+    @AllowConcurrentEvents
+    @Subscribe
+    public void handleDatabaseTransactionEvent(final DatabaseTransactionEvent event) {
+        final long[] pending = pendingInserts.get();
+        // Either a transaction we are not interested in, or nothing was inserted; just return.
+        if (pending == null) {
+            return;
+        }
+
+        pendingInserts.remove();
+        if (event.getType() == DatabaseTransactionEventType.COMMIT) {
+            add(pending[0]);
+        }
+    }
+}
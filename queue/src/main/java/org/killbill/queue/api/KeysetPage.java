@@ -0,0 +1,66 @@
+/*
+ * Copyright 2014-2019 Groupon, Inc
+ * Copyright 2014-2019 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.queue.api;
+
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+/**
+ * A page of entries returned by a keyset (record_id based) paginated search
+ *
+ * @param <T> The type of entries
+ */
+public class KeysetPage<T> {
+
+    private final List<T> entries;
+    private final Long nextRecordId;
+
+    public KeysetPage(final List<T> entries, @Nullable final Long nextRecordId) {
+        this.entries = entries;
+        this.nextRecordId = nextRecordId;
+    }
+
+    /**
+     * @return the entries of this page, ordered by record_id
+     */
+    public List<T> getEntries() {
+        return entries;
+    }
+
+    /**
+     * @return the fromRecordId to use to retrieve the next page, or null if this is the last page
+     */
+    @Nullable
+    public Long getNextRecordId() {
+        return nextRecordId;
+    }
+
+    public boolean hasNextPage() {
+        return nextRecordId != null;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("KeysetPage{");
+        sb.append("entries=").append(entries);
+        sb.append(", nextRecordId=").append(nextRecordId);
+        sb.append('}');
+        return sb.toString();
+    }
+}
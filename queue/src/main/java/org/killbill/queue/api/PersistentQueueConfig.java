@@ -20,6 +20,10 @@ package org.killbill.queue.api;
 
 import org.skife.config.TimeSpan;
 
+//
+// Settings added after the initial set have a default implementation, so that hand-written configurations don't have to be updated.
+// PersistentBusConfig and NotificationQueueConfig override them to map them to their properties (with the same default).
+//
 public interface PersistentQueueConfig {
 
     // We support 3 different modes to the queue
@@ -33,6 +37,38 @@ public interface PersistentQueueConfig {
         POLLING
     }
 
+    // How the dispatcher threads are woken up between two polls (only valid in STICKY_POLLING, POLLING)
+    enum QueueWakeupMode {
+        // Sleep for getPollingSleepTimeMs() between polls
+        NONE,
+        // Wake up as soon as a transaction inserting entries from this node commits
+        IN_PROCESS,
+        // Same as IN_PROCESS, and also wake up on PostgreSQL NOTIFY sent by other nodes when inserting entries
+        POSTGRESQL_NOTIFY
+    }
+
+    // How entries are dispatched to the handlers
+    enum DispatchMode {
+        // A single pool of geMaxDispatchThreads() threads: entries for the same searchKey1 may run concurrently and out of order
+        POOL,
+        // geMaxDispatchThreads() serial lanes, entries being assigned to a lane by hashing their search keys: entries for the same key run in order
+        KEY_PARTITIONED,
+        // One virtual thread per entry (Java 21+, falls back to a cached thread pool otherwise), at most getMaxDispatchConcurrency() at a time
+        VIRTUAL_THREADS
+    }
+
+    // How events are encoded in the event_json column. Rows written with any of these encodings can be decoded whatever the configured one,
+    // but only by nodes which support it: during a rolling upgrade, keep JSON until no node of an older version reads the tables anymore.
+    // There is no uncompressed Smile encoding: once base64 encoded (varchar column), it is larger than the equivalent JSON.
+    enum EventEncoding {
+        // Plain JSON text
+        JSON,
+        // Deflate-compressed JSON, base64 encoded
+        DEFLATE,
+        // Deflate-compressed Smile, base64 encoded (requires jackson-dataformat-smile, falls back to DEFLATE otherwise)
+        SMILE_DEFLATE
+    }
+
     boolean isInMemory();
 
     int getMaxFailureRetries();
@@ -43,22 +79,62 @@ public interface PersistentQueueConfig {
 
     int getMaxInFlightEntries();
 
+    default int getInflightQueueCapacity() {
+        return 0;
+    }
+
     int getMaxEntriesClaimed();
 
     TimeSpan getClaimedTime();
 
+    default boolean isSkipLockedClaimEnabled() {
+        return false;
+    }
+
     long getPollingSleepTimeMs();
 
+    default QueueWakeupMode getWakeupMode() {
+        return QueueWakeupMode.NONE;
+    }
+
+    default boolean isAdaptivePollingEnabled() {
+        return false;
+    }
+
+    default long getMaxPollingSleepTimeMs() {
+        return 30000;
+    }
+
     boolean isProcessingOff();
 
     int getEventQueueCapacity();
 
+    default EventEncoding getEventEncoding() {
+        return EventEncoding.JSON;
+    }
+
     int geMaxDispatchThreads();
 
+    default DispatchMode getDispatchMode() {
+        return DispatchMode.POOL;
+    }
+
+    default int getMaxDispatchConcurrency() {
+        return 1000;
+    }
+
     int geNbLifecycleDispatchThreads();
 
     int geNbLifecycleCompleteThreads();
 
+    default int getMaxCompletedEntriesBatchSize() {
+        return 100;
+    }
+
+    default long getCompletedEntriesMaxDelayMs() {
+        return 0;
+    }
+
     String getTableName();
 
     String getHistoryTableName();
@@ -68,4 +144,44 @@ public interface PersistentQueueConfig {
     int getMaxReDispatchCount();
 
     TimeSpan getReapSchedule();
+
+    default boolean isKeepCompletedEntriesInPlace() {
+        return false;
+    }
+
+    default int getArchiverChunkSize() {
+        return 1000;
+    }
+
+    default int getArchiverMaxRowsPerSecond() {
+        return 5000;
+    }
+
+    default TimeSpan getArchiverSchedule() {
+        return new TimeSpan("10s");
+    }
+
+    default boolean isHistoryPartitioningEnabled() {
+        return false;
+    }
+
+    default TimeSpan getHistoryRetention() {
+        return new TimeSpan("365d");
+    }
+
+    default int getHistoryPartitionsAhead() {
+        return 2;
+    }
+
+    default TimeSpan getHistoryRetentionSchedule() {
+        return new TimeSpan("1h");
+    }
+
+    default TimeSpan getReadyCountReconcileInterval() {
+        return new TimeSpan("30s");
+    }
+
+    default int getMaxExactReadyCountQueriesPerSecond() {
+        return 10;
+    }
 }
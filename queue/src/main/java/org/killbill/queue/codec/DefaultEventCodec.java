@@ -0,0 +1,158 @@
+/*
+ * Copyright 2014-2019 Groupon, Inc
+ * Copyright 2014-2019 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.queue.codec;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Base64;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.killbill.queue.QueueObjectMapper;
+import org.killbill.queue.api.PersistentQueueConfig.EventEncoding;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.io.ByteStreams;
+
+//
+// Plain JSON rows are stored as is. Other encodings are stored as a format marker followed by the base64 encoded payload,
+// so that they still fit in the existing varchar column, and rows written with different encodings can coexist:
+// JSON events always start with '{', which can't be confused with the marker.
+// Nodes running an older version (or without jackson-dataformat-smile for Smile rows) can't decode the #JZ: and #SZ: rows and fail
+// the corresponding events: mixed clusters (e.g. during a rolling upgrade) must keep the JSON encoding.
+//
+// Smile support relies on jackson-dataformat-smile being on the classpath (loaded via reflection, to avoid a compile time dependency).
+// Smile is only offered deflated: base64 encoding plain Smile makes it larger than JSON.
+//
+public class DefaultEventCodec implements EventCodec {
+
+    private static final Logger log = LoggerFactory.getLogger(DefaultEventCodec.class);
+
+    private static final String SMILE_FACTORY_CLASS = "com.fasterxml.jackson.dataformat.smile.SmileFactory";
+
+    @VisibleForTesting
+    static final String DEFLATE_MARKER = "#JZ:";
+    @VisibleForTesting
+    static final String SMILE_DEFLATE_MARKER = "#SZ:";
+
+    private static final ObjectMapper smileObjectMapper = createSmileObjectMapper();
+
+    private final ObjectMapper objectMapper;
+    private final EventEncoding encoding;
+
+    public DefaultEventCodec(final ObjectMapper objectMapper) {
+        this(objectMapper, EventEncoding.JSON);
+    }
+
+    public DefaultEventCodec(final ObjectMapper objectMapper, final EventEncoding encoding) {
+        this.objectMapper = objectMapper;
+        if (smileObjectMapper == null && encoding == EventEncoding.SMILE_DEFLATE) {
+            log.warn("Configured event encoding {} is unavailable ({} not found), falling back to {}", encoding, SMILE_FACTORY_CLASS, EventEncoding.DEFLATE);
+            this.encoding = EventEncoding.DEFLATE;
+        } else {
+            this.encoding = encoding;
+        }
+    }
+
+    @Override
+    public String encode(final Object event) throws IOException {
+        switch (encoding) {
+            case JSON:
+                return EventTypeCache.getWriter(objectMapper, event.getClass()).writeValueAsString(event);
+            case DEFLATE:
+                return DEFLATE_MARKER + Base64.getEncoder().encodeToString(deflate(EventTypeCache.getWriter(objectMapper, event.getClass()).writeValueAsBytes(event)));
+            case SMILE_DEFLATE:
+                return SMILE_DEFLATE_MARKER + Base64.getEncoder().encodeToString(deflate(EventTypeCache.getWriter(smileObjectMapper, event.getClass()).writeValueAsBytes(event)));
+            default:
+                throw new IllegalStateException("Unsupported EventEncoding " + encoding);
+        }
+    }
+
+    @Override
+    public <T> T decode(final String encoded, final Class<T> clazz) throws IOException {
+        if (encoded.startsWith(DEFLATE_MARKER)) {
+            return EventTypeCache.getReader(objectMapper, clazz).readValue(inflate(decodeBase64(encoded, DEFLATE_MARKER)));
+        } else if (encoded.startsWith(SMILE_DEFLATE_MARKER)) {
+            return EventTypeCache.getReader(getSmileObjectMapper(), clazz).readValue(inflate(decodeBase64(encoded, SMILE_DEFLATE_MARKER)));
+        } else {
+            return EventTypeCache.getReader(objectMapper, clazz).readValue(encoded);
+        }
+    }
+
+    public EventEncoding getEncoding() {
+        return encoding;
+    }
+
+    private ObjectMapper getSmileObjectMapper() throws IOException {
+        if (smileObjectMapper == null) {
+            log.warn("Unable to decode Smile event: {} not found", SMILE_FACTORY_CLASS);
+            throw new IOException("Unable to decode Smile event: " + SMILE_FACTORY_CLASS + " not found");
+        }
+        return smileObjectMapper;
+    }
+
+    private static byte[] decodeBase64(final String encoded, final String marker) throws IOException {
+        try {
+            return Base64.getDecoder().decode(encoded.substring(marker.length()));
+        } catch (final IllegalArgumentException e) {
+            throw new IOException("Invalid base64 payload", e);
+        }
+    }
+
+    private static byte[] deflate(final byte[] input) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(input.length / 2 + 16);
+        final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            final OutputStream deflaterOut = new DeflaterOutputStream(out, deflater);
+            deflaterOut.write(input);
+            deflaterOut.close();
+        } finally {
+            deflater.end();
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] inflate(final byte[] input) throws IOException {
+        final InputStream in = new InflaterInputStream(new ByteArrayInputStream(input));
+        try {
+            return ByteStreams.toByteArray(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static ObjectMapper createSmileObjectMapper() {
+        try {
+            final Class<?> smileFactoryClass = Class.forName(SMILE_FACTORY_CLASS);
+            return QueueObjectMapper.get((JsonFactory) smileFactoryClass.getDeclaredConstructor().newInstance());
+        } catch (final ClassNotFoundException e) {
+            return null;
+        } catch (final Exception e) {
+            log.warn("Unable to instantiate {}", SMILE_FACTORY_CLASS, e);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2014-2019 Groupon, Inc
+ * Copyright 2014-2019 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.queue.codec;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.ser.DefaultSerializerProvider;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.MapMaker;
+
+//
+// Caches the event classes (resolved from the class_name column) and the Jackson readers and writers built for them,
+// to avoid the Class.forName and ObjectMapper lookups for each entry posted or dispatched.
+//
+// Event classes may come from plugins (OSGi bundles), so nothing here strongly references them from a static field:
+// - Classes resolved by name are weak values
+// - Readers and writers are attached to their class (ClassValue), and go away with it
+// invalidate(ClassLoader) can still be used to drop the entries of a class loader eagerly.
+//
+// Jackson itself also keeps strong references to the classes an ObjectMapper has seen: invalidation clears the TypeFactory and serializer
+// caches of the mappers used here, but the root deserializer and DeserializerCache of an ObjectMapper can't be cleared through its API.
+// A plugin class loader can therefore only be collected if its events go through an ObjectMapper dedicated to that plugin (e.g. a copy()),
+// dropped when the plugin is unloaded, rather than the shared QueueObjectMapper.
+//
+public abstract class EventTypeCache {
+
+    private static final ConcurrentMap<String, Class<?>> classes = new MapMaker().weakValues().makeMap();
+    // Classes with a reader or writer, to support invalidation
+    private static final Set<Class<?>> knownClasses = Collections.newSetFromMap(new MapMaker().weakKeys().<Class<?>, Boolean>makeMap());
+    // Mappers with a reader or writer, to flush their own caches on invalidation
+    private static final Set<ObjectMapper> knownObjectMappers = Collections.newSetFromMap(new MapMaker().weakKeys().<ObjectMapper, Boolean>makeMap());
+    // Keyed by ObjectMapper identity (weak keys use ==)
+    private static final ClassValue<ConcurrentMap<ObjectMapper, ObjectReader>> readers = new ClassValue<ConcurrentMap<ObjectMapper, ObjectReader>>() {
+        @Override
+        protected ConcurrentMap<ObjectMapper, ObjectReader> computeValue(final Class<?> type) {
+            return new MapMaker().weakKeys().makeMap();
+        }
+    };
+    private static final ClassValue<ConcurrentMap<ObjectMapper, ObjectWriter>> writers = new ClassValue<ConcurrentMap<ObjectMapper, ObjectWriter>>() {
+        @Override
+        protected ConcurrentMap<ObjectMapper, ObjectWriter> computeValue(final Class<?> type) {
+            return new MapMaker().weakKeys().makeMap();
+        }
+    };
+
+    public static Class<?> getEventClass(final String className) throws ClassNotFoundException {
+        Class<?> clazz = classes.get(className);
+        if (clazz == null) {
+            clazz = Class.forName(className);
+            classes.putIfAbsent(className, clazz);
+        }
+        return clazz;
+    }
+
+    public static ObjectReader getReader(final ObjectMapper objectMapper, final Class<?> clazz) {
+        final ConcurrentMap<ObjectMapper, ObjectReader> classReaders = readers.get(clazz);
+        ObjectReader reader = classReaders.get(objectMapper);
+        if (reader == null) {
+            knownClasses.add(clazz);
+            knownObjectMappers.add(objectMapper);
+            reader = objectMapper.readerFor(clazz);
+            classReaders.putIfAbsent(objectMapper, reader);
+        }
+        return reader;
+    }
+
+    public static ObjectWriter getWriter(final ObjectMapper objectMapper, final Class<?> clazz) {
+        final ConcurrentMap<ObjectMapper, ObjectWriter> classWriters = writers.get(clazz);
+        ObjectWriter writer = classWriters.get(objectMapper);
+        if (writer == null) {
+            knownClasses.add(clazz);
+            knownObjectMappers.add(objectMapper);
+            writer = objectMapper.writerFor(clazz);
+            classWriters.putIfAbsent(objectMapper, writer);
+        }
+        return writer;
+    }
+
+    /**
+     * Removes all entries for classes loaded by that class loader.
+     *
+     * @param classLoader the class loader being unregistered
+     */
+    public static void invalidate(final ClassLoader classLoader) {
+        final Iterator<Class<?>> it = classes.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().getClassLoader() == classLoader) {
+                it.remove();
+            }
+        }
+        for (final Class<?> clazz : ImmutableList.<Class<?>>copyOf(knownClasses)) {
+            if (clazz.getClassLoader() == classLoader) {
+                remove(clazz);
+            }
+        }
+        flushObjectMapperCaches();
+    }
+
+    public static void invalidateAll() {
+        classes.clear();
+        for (final Class<?> clazz : ImmutableList.<Class<?>>copyOf(knownClasses)) {
+            remove(clazz);
+        }
+        flushObjectMapperCaches();
+    }
+
+    // Only the caches Jackson lets us clear (see above)
+    private static void flushObjectMapperCaches() {
+        for (final ObjectMapper objectMapper : ImmutableList.<ObjectMapper>copyOf(knownObjectMappers)) {
+            objectMapper.getTypeFactory().clearCache();
+            final SerializerProvider serializerProvider = objectMapper.getSerializerProvider();
+            if (serializerProvider instanceof DefaultSerializerProvider) {
+                ((DefaultSerializerProvider) serializerProvider).flushCachedSerializers();
+            }
+        }
+    }
+
+    private static void remove(final Class<?> clazz) {
+        knownClasses.remove(clazz);
+        readers.remove(clazz);
+        writers.remove(clazz);
+    }
+}
@@ -137,6 +137,17 @@ public interface QueueSqlDao<T extends EventEntryModelDao> extends Transactional
                             @Nullable @Define("owner") String owner,
                             @Define("tableName") final String tableName);
 
+    /**
+     * Same as getReadyEntries, but the rows are locked (FOR UPDATE SKIP LOCKED) so that concurrent
+     * callers fetch disjoint batches: rows locked by another transaction are skipped instead of waited on.
+     * Requires MySQL 8+ or PostgreSQL 9.5+.
+     */
+    @SqlQuery
+    List<T> getReadyEntriesSkipLocked(@Bind("now") Date now,
+                                      @Bind("max") int max,
+                                      @Nullable @Define("owner") String owner,
+                                      @Define("tableName") final String tableName);
+
     /**
      * Notification:
      *      select
@@ -236,6 +247,15 @@ public interface QueueSqlDao<T extends EventEntryModelDao> extends Transactional
                       @Bind("errorCount") Long errorCount,
                       @Define("tableName") final String tableName);
 
+    /**
+     * Batched version of updateOnError (JDBC batch): the record_id and error_count of each entry are used
+     */
+    @SqlBatch
+    @BatchChunkSize(100)
+    void updateEntriesOnError(@SmartBindBean Iterable<T> evts,
+                              @Bind("now") Date now,
+                              @Define("tableName") final String tableName);
+
     /**
      * Notification：
      * delete from notifications where record_id = 1;
@@ -251,6 +271,46 @@ public interface QueueSqlDao<T extends EventEntryModelDao> extends Transactional
     void removeEntries(@BindIn("record_ids") final Collection<Long> recordIds,
                        @Define("tableName") final String tableName);
 
+    /**
+     * Marks the entries as completed in place (keepCompletedEntriesInPlace mode): the processing_state of each entry is used
+     */
+    @SqlBatch
+    @BatchChunkSize(100)
+    void updateEntriesProcessingState(@SmartBindBean Iterable<T> evts,
+                                      @Define("tableName") final String tableName);
+
+    @SqlQuery
+    Long getMinRecordId(@Define("tableName") final String tableName);
+
+    /**
+     * Completed entries (PROCESSED, FAILED, REMOVED or REAPED) with record_id in [from, to], ordered by record_id
+     */
+    @SqlQuery
+    List<T> getCompletedEntriesInRange(@Bind("from") long from,
+                                       @Bind("to") long to,
+                                       @Bind("max") int max,
+                                       @Define("tableName") final String tableName);
+
+    /**
+     * Same as getCompletedEntriesInRange, but the rows are locked (FOR UPDATE) so that archivers running on several nodes
+     * don't copy the same entries to the history table: a concurrent caller waits, and then no longer sees the deleted rows.
+     */
+    @SqlQuery
+    List<T> getCompletedEntriesInRangeForUpdate(@Bind("from") long from,
+                                                @Bind("to") long to,
+                                                @Bind("max") int max,
+                                                @Define("tableName") final String tableName);
+
+    /**
+     * Same as getCompletedEntriesInRangeForUpdate, but rows locked by another transaction are skipped instead of waited on.
+     * Requires MySQL 8+ or PostgreSQL 9.5+.
+     */
+    @SqlQuery
+    List<T> getCompletedEntriesInRangeSkipLocked(@Bind("from") long from,
+                                                 @Bind("to") long to,
+                                                 @Bind("max") int max,
+                                                 @Define("tableName") final String tableName);
+
     /**
      * Notification：
      * insert into notifications (
@@ -325,8 +385,21 @@ public interface QueueSqlDao<T extends EventEntryModelDao> extends Transactional
     Long insertEntry(@SmartBindBean T evt,
                      @Define("tableName") final String tableName);
 
+    /**
+     * JDBC batch insert of the entries (one INSERT statement per entry, sent in chunks of 100). The driver only turns it into
+     * multi-row INSERT statements when configured to: rewriteBatchedStatements=true (MySQL Connector/J) or reWriteBatchedInserts=true (PostgreSQL).
+     *
+     * @return the generated record_id of each inserted entry, in the order of the entries
+     */
     @SqlBatch
     @BatchChunkSize(100)
-    void insertEntries(@SmartBindBean Iterable<T> evts,
-                       @Define("tableName") final String tableName);
+    @GetGeneratedKeys(value = LongMapper.class, columnName = "record_id")
+    List<Long> insertEntries(@SmartBindBean Iterable<T> evts,
+                             @Define("tableName") final String tableName);
+
+    /**
+     * PostgreSQL only: signal the listeners of the channel (delivered when the current transaction commits).
+     */
+    @SqlUpdate
+    void notifyChannel(@Define("channel") final String channel);
 }
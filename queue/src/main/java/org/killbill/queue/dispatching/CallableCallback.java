@@ -54,8 +54,8 @@ public interface CallableCallback<E extends QueueEvent, M extends EventEntryMode
     void moveCompletedOrFailedEvents(final Iterable<M> entries);
 
     /**
-     * 更新实体
-     * @param updatedEntry
+     * 更新实体 (batched)
+     * @param updatedEntries
      */
-    void updateRetriedEvents(final M updatedEntry);
+    void updateRetriedEvents(final Iterable<M> updatedEntries);
 }
@@ -23,11 +23,15 @@ import org.killbill.queue.DBBackedQueue;
 import org.killbill.queue.api.PersistentQueueConfig;
 import org.killbill.queue.api.PersistentQueueEntryLifecycleState;
 import org.killbill.queue.api.QueueEvent;
+import org.killbill.queue.codec.DefaultEventCodec;
+import org.killbill.queue.codec.EventCodec;
+import org.killbill.queue.codec.EventTypeCache;
 import org.killbill.queue.dao.EventEntryModelDao;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.ImmutableList;
 
 
 public abstract class CallableCallbackBase<E extends QueueEvent, M extends EventEntryModelDao> implements CallableCallback<E, M> {
@@ -40,13 +44,17 @@ public abstract class CallableCallbackBase<E extends QueueEvent, M extends Event
     private final Clock clock;
     /** 持久化队列配置 */
     private final PersistentQueueConfig config;
-    private final ObjectMapper objectMapper;
+    private final EventCodec eventCodec;
 
     public CallableCallbackBase(final DBBackedQueue<M> dao, final Clock clock, final PersistentQueueConfig config, final ObjectMapper objectMapper) {
+        this(dao, clock, config, new DefaultEventCodec(objectMapper));
+    }
+
+    public CallableCallbackBase(final DBBackedQueue<M> dao, final Clock clock, final PersistentQueueConfig config, final EventCodec eventCodec) {
         this.dao = dao;
         this.clock = clock;
         this.config = config;
-        this.objectMapper = objectMapper;
+        this.eventCodec = eventCodec;
     }
 
     /**
@@ -56,7 +64,7 @@ public abstract class CallableCallbackBase<E extends QueueEvent, M extends Event
      */
     @Override
     public E deserialize(final M modelDao) {
-        return deserializeEvent(modelDao, objectMapper);
+        return deserializeEvent(modelDao, eventCodec);
     }
 
     /**
@@ -67,12 +75,16 @@ public abstract class CallableCallbackBase<E extends QueueEvent, M extends Event
      * @param <M>
      * @return
      */
-    @SuppressWarnings("unchecked")
     public static <E extends QueueEvent, M extends EventEntryModelDao> E deserializeEvent(final M modelDao, final ObjectMapper objectMapper) {
+        return deserializeEvent(modelDao, new DefaultEventCodec(objectMapper));
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <E extends QueueEvent, M extends EventEntryModelDao> E deserializeEvent(final M modelDao, final EventCodec eventCodec) {
         try {
-            final Class<?> claz = Class.forName(modelDao.getClassName());
+            final Class<?> claz = EventTypeCache.getEventClass(modelDao.getClassName());
             // 将 EventEntryModelDao#getEventJson()反序列
-            return (E) objectMapper.readValue(modelDao.getEventJson(), claz);
+            return (E) eventCodec.decode(modelDao.getEventJson(), claz);
         } catch (final Exception e) {
             log.error(String.format("Failed to deserialize json object %s for class %s", modelDao.getEventJson(), modelDao.getClassName()), e);
             return null;
@@ -85,8 +97,8 @@ public abstract class CallableCallbackBase<E extends QueueEvent, M extends Event
     }
 
     @Override
-    public void updateRetriedEvents(final M updatedEntry) {
-        dao.updateOnError(updatedEntry);
+    public void updateRetriedEvents(final Iterable<M> updatedEntries) {
+        dao.updateOnError(ImmutableList.<M>copyOf(updatedEntries));
     }
 
     @Override
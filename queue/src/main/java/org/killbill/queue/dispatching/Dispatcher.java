@@ -21,6 +21,7 @@ import org.killbill.clock.Clock;
 import org.killbill.commons.concurrent.DynamicThreadPoolExecutorWithLoggingOnExceptions;
 import org.killbill.queue.DefaultQueueLifecycle;
 import org.killbill.queue.api.PersistentQueueConfig;
+import org.killbill.queue.api.PersistentQueueConfig.DispatchMode;
 import org.killbill.queue.api.PersistentQueueEntryLifecycleState;
 import org.killbill.queue.api.QueueEvent;
 import org.killbill.queue.dao.EventEntryModelDao;
@@ -30,9 +31,16 @@ import org.slf4j.LoggerFactory;
 import org.slf4j.MDC;
 
 import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
 import java.util.UUID;
 import java.util.concurrent.*;
 
+import com.google.common.annotations.VisibleForTesting;
+
 /**
  * 职责：
  * 1、将事件派发给订阅端
@@ -59,6 +67,9 @@ public class Dispatcher<E extends QueueEvent, M extends EventEntryModelDao> {
     // 任务被拒绝时候应该调用的处理器
     private final RejectedExecutionHandler rejectionHandler;
 
+    private final DispatchMode dispatchMode;
+    private final int maxDispatchConcurrency;
+
     //错误重试次数
     private final int maxFailureRetries;
     // 回调处理器
@@ -68,6 +79,10 @@ public class Dispatcher<E extends QueueEvent, M extends EventEntryModelDao> {
 
     // Deferred in start sequence to allow for restart, which is not possible after the shutdown (mostly for test purpose)
     private ExecutorService handlerExecutor;
+    // KEY_PARTITIONED mode only: single threaded executors, entries with the same search keys always go to the same lane
+    private ExecutorService[] laneExecutors;
+    // VIRTUAL_THREADS mode only: the executor is unbounded, so we limit the number of entries being dispatched
+    private Semaphore dispatchPermits;
 
     public Dispatcher(final int corePoolSize,
                       final PersistentQueueConfig config,
@@ -86,6 +101,8 @@ public class Dispatcher<E extends QueueEvent, M extends EventEntryModelDao> {
         this.workQueue = workQueue;
         this.threadFactory = threadFactory;
         this.rejectionHandler = rejectionHandler;
+        this.dispatchMode = config.getDispatchMode();
+        this.maxDispatchConcurrency = config.getMaxDispatchConcurrency();
 
         this.clock = clock;
         // 错误重试次数
@@ -95,15 +112,39 @@ public class Dispatcher<E extends QueueEvent, M extends EventEntryModelDao> {
     }
 
     public void start() {
-        // 初始化线程执行器
-        this.handlerExecutor = new DynamicThreadPoolExecutorWithLoggingOnExceptions(corePoolSize, maximumPoolSize, keepAliveTime, keepAliveTimeUnit, workQueue, threadFactory, rejectionHandler);
+        switch (dispatchMode) {
+            case KEY_PARTITIONED:
+                // The capacity of the work queue is shared among the lanes
+                final int laneQueueCapacity = Math.max(1, workQueue.remainingCapacity() / maximumPoolSize);
+                this.laneExecutors = new ExecutorService[maximumPoolSize];
+                for (int i = 0; i < laneExecutors.length; i++) {
+                    laneExecutors[i] = new DynamicThreadPoolExecutorWithLoggingOnExceptions(1, 1, keepAliveTime, keepAliveTimeUnit, new LinkedBlockingQueue<Runnable>(laneQueueCapacity), threadFactory, rejectionHandler);
+                }
+                break;
+            case VIRTUAL_THREADS:
+                this.handlerExecutor = newVirtualThreadPerTaskExecutor();
+                this.dispatchPermits = new Semaphore(maxDispatchConcurrency);
+                break;
+            case POOL:
+            default:
+                // 初始化线程执行器
+                this.handlerExecutor = new DynamicThreadPoolExecutorWithLoggingOnExceptions(corePoolSize, maximumPoolSize, keepAliveTime, keepAliveTimeUnit, workQueue, threadFactory, rejectionHandler);
+                break;
+        }
     }
 
     public void stop() {
         // 关闭线程执行器
-        handlerExecutor.shutdown();
+        final List<ExecutorService> executors = laneExecutors != null ? Arrays.asList(laneExecutors) : Collections.singletonList(handlerExecutor);
+        for (final ExecutorService executor : executors) {
+            executor.shutdown();
+        }
         try {
-            handlerExecutor.awaitTermination(5, TimeUnit.SECONDS);
+            // All the lanes share the same deadline, so the stop sequence doesn't take longer with more lanes
+            final long deadlineNanos = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            for (final ExecutorService executor : executors) {
+                executor.awaitTermination(Math.max(0, deadlineNanos - System.nanoTime()), TimeUnit.NANOSECONDS);
+            }
         } catch (final InterruptedException e) {
             log.info("Stop sequence, handlerExecutor has been interrupted");
         }
@@ -125,7 +166,51 @@ public class Dispatcher<E extends QueueEvent, M extends EventEntryModelDao> {
                 maxFailureRetries  // 重试次数
         );
         // 将任务提交给 ExecutorService
-        handlerExecutor.submit(entry);
+        if (laneExecutors != null) {
+            laneExecutors[getLane(modelDao, laneExecutors.length)].submit(entry);
+        } else if (dispatchPermits != null) {
+            // Block the lifecycle dispatcher thread until some entries complete, similar to BlockingRejectionExecutionHandler
+            dispatchPermits.acquireUninterruptibly();
+            try {
+                handlerExecutor.submit(new Callable<E>() {
+                    @Override
+                    public E call() throws Exception {
+                        try {
+                            return entry.call();
+                        } catch (final Exception e) {
+                            log.warn("Failed to dispatch entry {}", modelDao, e);
+                            throw e;
+                        } finally {
+                            dispatchPermits.release();
+                        }
+                    }
+                });
+            } catch (final RejectedExecutionException e) {
+                dispatchPermits.release();
+                throw e;
+            }
+        } else {
+            handlerExecutor.submit(entry);
+        }
+    }
+
+    private ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            // Java 21+
+            final Method newVirtualThreadPerTaskExecutor = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) newVirtualThreadPerTaskExecutor.invoke(null);
+        } catch (final NoSuchMethodException | IllegalAccessException | InvocationTargetException e) {
+            log.warn("Virtual threads are not available in this JVM, falling back to a cached thread pool");
+            return Executors.newCachedThreadPool(threadFactory);
+        }
+    }
+
+    // Note that a retried entry goes back to the database, so it can be dispatched after more recent entries with the same keys
+    @VisibleForTesting
+    static int getLane(final EventEntryModelDao modelDao, final int nbLanes) {
+        final int hash = Objects.hash(modelDao.getSearchKey1(), modelDao.getSearchKey2());
+        // Spread the bits, as search keys are usually sequential record ids
+        return Math.floorMod(hash ^ (hash >>> 16), nbLanes);
     }
 
     /**
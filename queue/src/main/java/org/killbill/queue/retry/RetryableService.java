@@ -18,16 +18,21 @@
 package org.killbill.queue.retry;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.annotations.VisibleForTesting;
 import org.joda.time.DateTime;
 import org.joda.time.Period;
 import org.killbill.billing.util.queue.QueueRetryException;
+import org.killbill.clock.Clock;
+import org.killbill.commons.concurrent.Executors;
 import org.killbill.notificationq.api.NotificationEvent;
 import org.killbill.notificationq.api.NotificationQueue;
+import org.killbill.notificationq.api.NotificationQueueConfig;
 import org.killbill.notificationq.api.NotificationQueueService;
 import org.killbill.notificationq.api.NotificationQueueService.NoSuchNotificationQueue;
 import org.killbill.notificationq.api.NotificationQueueService.NotificationQueueAlreadyExists;
 import org.killbill.notificationq.api.NotificationQueueService.NotificationQueueHandler;
 import org.killbill.queue.QueueObjectMapper;
+import org.killbill.queue.api.PersistentQueueConfig.PersistentQueueMode;
 import org.killbill.queue.api.QueueEvent;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -35,6 +40,12 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
 
 /**
  * 描述：可重试服务
@@ -59,14 +70,66 @@ public abstract class RetryableService {
      */
     private NotificationQueue retryNotificationQueue;
 
+    private NotificationQueueHandler originalQueueHandler;
+
+    //
+    // Local (in-memory) retries: retries due within localRetryThresholdMs are attempted from a DelayQueue instead of going through
+    // a poll/claim/move to history cycle of the retry notification queue. Each of them is backed by a durable marker, i.e. the same retry
+    // notification recorded markerGracePeriodMs after the retry date: it is claimed before the local attempt (which is skipped if the
+    // notification queue got to it first) and removed once it completes. Otherwise (stop, unexpected exception) the marker is released
+    // and the retry simply happens from the notification queue.
+    // If the marker cannot be released (e.g. crash), only the reaper can make it available again: local retries are therefore only
+    // enabled in STICKY_POLLING mode, the reaper doesn't run in POLLING mode.
+    //
+    @Nullable
+    private final Clock clock;
+    private final long localRetryThresholdMs;
+    private final long markerGracePeriodMs;
+    private final DelayQueue<LocalRetry> localRetries;
+    private ExecutorService localRetriesExecutor;
+    private volatile boolean isLocalRetriesStarted;
+
     public RetryableService(NotificationQueueService notificationQueueService) {
         this(notificationQueueService, QueueObjectMapper.get());
     }
 
     public RetryableService(final NotificationQueueService notificationQueueService,
                             final ObjectMapper objectMapper) {
+        this(notificationQueueService, objectMapper, null, 0, 0);
+    }
+
+    /**
+     * @param config configuration of the notificationQueueService, for the local retries (see NotificationQueueConfig#getLocalRetryThreshold)
+     */
+    public RetryableService(final NotificationQueueService notificationQueueService,
+                            final ObjectMapper objectMapper,
+                            final Clock clock,
+                            final NotificationQueueConfig config) {
+        this(notificationQueueService, objectMapper, clock, getLocalRetryThresholdMs(config), config.getLocalRetryMarkerGracePeriod().getMillis());
+    }
+
+    private RetryableService(final NotificationQueueService notificationQueueService,
+                             final ObjectMapper objectMapper,
+                             @Nullable final Clock clock,
+                             final long localRetryThresholdMs,
+                             final long markerGracePeriodMs) {
         this.notificationQueueService = notificationQueueService;
         this.objectMapper = objectMapper;
+        this.clock = clock;
+        this.localRetryThresholdMs = clock == null ? 0 : localRetryThresholdMs;
+        this.markerGracePeriodMs = markerGracePeriodMs;
+        this.localRetries = new DelayQueue<LocalRetry>();
+        this.isLocalRetriesStarted = false;
+    }
+
+    private static long getLocalRetryThresholdMs(final NotificationQueueConfig config) {
+        final long localRetryThresholdMs = config.getLocalRetryThreshold().getMillis();
+        if (localRetryThresholdMs > 0 && config.getPersistentQueueMode() != PersistentQueueMode.STICKY_POLLING) {
+            log.warn("{}: Local retries require STICKY_POLLING mode (markers left claimed are only reaped in that mode), ignoring localRetryThreshold={}",
+                     config.getTableName(), config.getLocalRetryThreshold());
+            return 0;
+        }
+        return localRetryThresholdMs;
     }
 
     public void initialize(final NotificationQueue originalQueue, final NotificationQueueHandler originalQueueHandler) {
@@ -78,6 +141,7 @@ public abstract class RetryableService {
      * @param originalQueueHandler 原始队列的处理程序
      */
     public void initialize(final String queueName, final NotificationQueueHandler originalQueueHandler) {
+        this.originalQueueHandler = originalQueueHandler;
         try {
             /**
              * 可重试事件的处理程序，该处理程序处理 retryNotificationQueue 中的事件
@@ -98,33 +162,7 @@ public abstract class RetryableService {
                                                     final Long searchKey2) {
                     // case 1: RetryNotificationEvent 处理逻辑
                     if (eventJson instanceof RetryNotificationEvent) {
-                        final RetryNotificationEvent retryNotificationEvent = (RetryNotificationEvent) eventJson;
-
-                        final NotificationEvent notificationEvent;
-                        try {
-                            // 解析成原始事件
-                            notificationEvent = (NotificationEvent) objectMapper.readValue(retryNotificationEvent.getOriginalEvent(), retryNotificationEvent.getOriginalEventClass());
-                        } catch (final IOException e) {
-                            throw new RuntimeException(e);
-                        }
-
-                        try {
-                            // 调用原始事件处理程序 处理事件
-                            originalQueueHandler.handleReadyNotification(notificationEvent,
-                                    eventDateTime,
-                                    userToken,
-                                    searchKey1,
-                                    searchKey2);
-                        } catch (final QueueRetryException e) {
-                            // 捕获异常，排期重试，并抛出 RetryableInternalException 异常
-                            scheduleRetry(e,
-                                    notificationEvent,
-                                    retryNotificationEvent.getOriginalEffectiveDate(),
-                                    userToken,
-                                    searchKey1,
-                                    searchKey2,
-                                    retryNotificationEvent.getRetryNb() + 1);
-                        }
+                        handleRetryNotification((RetryNotificationEvent) eventJson, eventDateTime, userToken, searchKey1, searchKey2);
                     } else { // case 2:
                         log.error("Retry service received an unexpected event className='{}'", eventJson.getClass());
                     }
@@ -141,9 +179,36 @@ public abstract class RetryableService {
 
     public void start() {
         retryNotificationQueue.startQueue();
+
+        if (localRetryThresholdMs > 0 && !isLocalRetriesStarted) {
+            isLocalRetriesStarted = true;
+            localRetriesExecutor = Executors.newSingleThreadExecutor(RETRYABLE_SERVICE_NAME + "-" + retryNotificationQueue.getQueueName() + "-local-th");
+            localRetriesExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    processLocalRetries();
+                }
+            });
+        }
     }
 
     public void stop() throws NoSuchNotificationQueue {
+        if (isLocalRetriesStarted) {
+            isLocalRetriesStarted = false;
+            localRetriesExecutor.shutdownNow();
+            try {
+                // The marker of the retry being processed (if any) is released by processLocalRetries on interruption
+                if (!localRetriesExecutor.awaitTermination(5, TimeUnit.SECONDS)) {
+                    log.warn("Stop sequence, localRetriesExecutor didn't terminate, its retry marker will be released when the handler returns");
+                }
+            } catch (final InterruptedException e) {
+                log.info("Stop sequence, localRetriesExecutor has been interrupted");
+                Thread.currentThread().interrupt();
+            }
+            // Their markers haven't been claimed yet (this happens right before the local attempt): they will be processed from the notification queue
+            localRetries.clear();
+        }
+
         if (retryNotificationQueue != null) {
             retryNotificationQueue.stopQueue();
             notificationQueueService.deleteNotificationQueue(retryNotificationQueue.getServiceName(), retryNotificationQueue.getQueueName());
@@ -169,7 +234,13 @@ public abstract class RetryableService {
         log.warn("Error processing event, scheduling retry for event='{}', effectiveDate='{}', retryNb='{}'", originalNotificationEvent, effectiveDate, retryNb, exception);
 
         try {
-            final NotificationEvent retryNotificationEvent = new RetryNotificationEvent(objectMapper.writeValueAsString(originalNotificationEvent), originalNotificationEvent.getClass(), originalEffectiveDate, retryNb);
+            final RetryNotificationEvent retryNotificationEvent = new RetryNotificationEvent(objectMapper.writeValueAsString(originalNotificationEvent), originalNotificationEvent.getClass(), originalEffectiveDate, retryNb);
+            if (shouldRetryLocally(effectiveDate)) {
+                // Durable marker, in case the local retry doesn't complete
+                final Long markerRecordId = retryNotificationQueue.recordFutureNotificationAndGetRecordId(effectiveDate.plus(markerGracePeriodMs), retryNotificationEvent, userToken, searchKey1, searchKey2);
+                localRetries.add(new LocalRetry(markerRecordId, effectiveDate, retryNotificationEvent, userToken, searchKey1, searchKey2));
+                throw new RetryableInternalException(true);
+            }
             // 插入新的排期任务
             retryNotificationQueue.recordFutureNotification(effectiveDate, retryNotificationEvent, userToken, searchKey1, searchKey2);
             throw new RetryableInternalException(true);
@@ -179,6 +250,141 @@ public abstract class RetryableService {
         }
     }
 
+    private void handleRetryNotification(final RetryNotificationEvent retryNotificationEvent,
+                                         final DateTime eventDateTime,
+                                         final UUID userToken,
+                                         final Long searchKey1,
+                                         final Long searchKey2) {
+        final NotificationEvent notificationEvent;
+        try {
+            // 解析成原始事件
+            notificationEvent = (NotificationEvent) objectMapper.readValue(retryNotificationEvent.getOriginalEvent(), retryNotificationEvent.getOriginalEventClass());
+        } catch (final IOException e) {
+            throw new RuntimeException(e);
+        }
+
+        try {
+            // 调用原始事件处理程序 处理事件
+            originalQueueHandler.handleReadyNotification(notificationEvent,
+                    eventDateTime,
+                    userToken,
+                    searchKey1,
+                    searchKey2);
+        } catch (final QueueRetryException e) {
+            // 捕获异常，排期重试，并抛出 RetryableInternalException 异常
+            scheduleRetry(e,
+                    notificationEvent,
+                    retryNotificationEvent.getOriginalEffectiveDate(),
+                    userToken,
+                    searchKey1,
+                    searchKey2,
+                    retryNotificationEvent.getRetryNb() + 1);
+        }
+    }
+
+    private boolean shouldRetryLocally(final DateTime effectiveDate) {
+        return isLocalRetriesStarted && effectiveDate.getMillis() - clock.getUTCNow().getMillis() <= localRetryThresholdMs;
+    }
+
+    private void processLocalRetries() {
+        while (isLocalRetriesStarted) {
+            final LocalRetry localRetry;
+            try {
+                localRetry = localRetries.take();
+            } catch (final InterruptedException e) {
+                log.info("Local retries thread got interrupted, exiting...");
+                Thread.currentThread().interrupt();
+                return;
+            }
+
+            // Make sure the notification queue won't dispatch the marker while we are processing it (e.g. this thread is lagging behind
+            // and the grace period has already elapsed)
+            final boolean isClaimed;
+            try {
+                isClaimed = retryNotificationQueue.claimNotification(localRetry.markerRecordId);
+            } catch (final RuntimeException e) {
+                log.warn("Unable to claim retry marker, it will be attempted from the notification queue, recordId='{}'", localRetry.markerRecordId, e);
+                continue;
+            }
+            if (!isClaimed) {
+                log.info("Retry marker recordId='{}' has already been picked up by the notification queue, skipping local retry", localRetry.markerRecordId);
+                continue;
+            }
+
+            // Unless the marker is removed, it is released on the way out (unexpected exception or Error, interruption on stop...)
+            boolean isMarkerRemoved = false;
+            try {
+                try {
+                    handleRetryNotification(localRetry.retryNotificationEvent, localRetry.retryDate, localRetry.userToken, localRetry.searchKey1, localRetry.searchKey2);
+                } catch (final RetryableInternalException e) {
+                    // Next retry scheduled (or no more retry): this attempt is complete
+                } catch (final RuntimeException e) {
+                    log.warn("Local retry failed, it will be attempted again from the notification queue, recordId='{}'", localRetry.markerRecordId, e);
+                    continue;
+                }
+
+                try {
+                    retryNotificationQueue.removeNotification(localRetry.markerRecordId);
+                    isMarkerRemoved = true;
+                } catch (final RuntimeException e) {
+                    // At least once semantics: the retry will be attempted again from the notification queue
+                    log.warn("Unable to remove retry marker recordId='{}', releasing it", localRetry.markerRecordId, e);
+                }
+            } finally {
+                if (!isMarkerRemoved) {
+                    releaseMarker(localRetry.markerRecordId);
+                }
+            }
+        }
+    }
+
+    private void releaseMarker(final Long markerRecordId) {
+        try {
+            retryNotificationQueue.releaseNotification(markerRecordId);
+        } catch (final RuntimeException e) {
+            // Left claimed: the reaper (STICKY_POLLING mode) will eventually make it available again
+            log.warn("Unable to release retry marker recordId='{}'", markerRecordId, e);
+        }
+    }
+
+    @VisibleForTesting
+    public int getNbLocalRetries() {
+        return localRetries.size();
+    }
+
+    private final class LocalRetry implements Delayed {
+
+        private final Long markerRecordId;
+        private final DateTime retryDate;
+        private final RetryNotificationEvent retryNotificationEvent;
+        private final UUID userToken;
+        private final Long searchKey1;
+        private final Long searchKey2;
+
+        private LocalRetry(final Long markerRecordId, final DateTime retryDate, final RetryNotificationEvent retryNotificationEvent,
+                           final UUID userToken, final Long searchKey1, final Long searchKey2) {
+            this.markerRecordId = markerRecordId;
+            this.retryDate = retryDate;
+            this.retryNotificationEvent = retryNotificationEvent;
+            this.userToken = userToken;
+            this.searchKey1 = searchKey1;
+            this.searchKey2 = searchKey2;
+        }
+
+        @Override
+        public long getDelay(final TimeUnit unit) {
+            return unit.convert(retryDate.getMillis() - clock.getUTCNow().getMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int compareTo(final Delayed o) {
+            if (o instanceof LocalRetry) {
+                return retryDate.compareTo(((LocalRetry) o).retryDate);
+            }
+            return Long.compare(getDelay(TimeUnit.MILLISECONDS), o.getDelay(TimeUnit.MILLISECONDS));
+        }
+    }
+
     /**
      * 计算重试时间
      *
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2014-2019 Groupon, Inc
+ * Copyright 2014-2019 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.queue.wakeup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.killbill.commons.jdbi.notification.DatabaseTransactionEvent;
+import org.killbill.commons.jdbi.notification.DatabaseTransactionEventType;
+import org.killbill.commons.jdbi.notification.DatabaseTransactionNotificationApi;
+import org.killbill.queue.dao.QueueSqlDao;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.eventbus.AllowConcurrentEvents;
+import com.google.common.eventbus.Subscribe;
+
+//
+// Wakes up the dispatcher threads when a transaction which inserted entries on this node commits.
+// Similar to the inflightQ algorithm (STICKY_EVENTS), except that we only keep track of a per thread flag:
+// the dispatcher will then fetch the entries from the database as usual.
+//
+// Each signal wakes up all the dispatcher threads: every waiter keeps track of the last signal it has seen (signal generation),
+// so a signal sent while a thread is busy polling is still seen by that thread on its next awaitWork.
+//
+public class InProcessQueueWakeupSource implements QueueWakeupSource {
+
+    private final DatabaseTransactionNotificationApi databaseTransactionNotificationApi;
+
+    // Set when the current thread inserted an entry in a transaction which has not been committed/rolled back yet
+    private final ThreadLocal<Boolean> pendingSignal = new ThreadLocal<Boolean>();
+
+    // Last signal generation seen by the current (dispatcher) thread
+    private final ThreadLocal<Long> lastSeenGeneration = new ThreadLocal<Long>();
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition workAvailable = lock.newCondition();
+    private long generation;
+
+    private volatile boolean isStarted;
+
+    public InProcessQueueWakeupSource(final DatabaseTransactionNotificationApi databaseTransactionNotificationApi) {
+        this.databaseTransactionNotificationApi = databaseTransactionNotificationApi;
+        this.generation = 0;
+        this.isStarted = false;
+    }
+
+    @Override
+    public void start() {
+        databaseTransactionNotificationApi.registerForNotification(this);
+        isStarted = true;
+    }
+
+    @Override
+    public void stop() {
+        isStarted = false;
+        databaseTransactionNotificationApi.unregisterForNotification(this);
+    }
+
+    @Override
+    public void onEntryInsertedFromTransaction(final QueueSqlDao<?> transactional) {
+        if (isStarted) {
+            pendingSignal.set(Boolean.TRUE);
+        }
+    }
+
+    @Override
+    public boolean awaitWork(final long timeout, final TimeUnit unit) throws InterruptedException {
+        final Long lastSeen = lastSeenGeneration.get();
+        lock.lock();
+        try {
+            long remainingNanos = unit.toNanos(timeout);
+            while (generation == (lastSeen == null ? 0 : lastSeen)) {
+                if (remainingNanos <= 0) {
+                    return false;
+                }
+                remainingNanos = workAvailable.awaitNanos(remainingNanos);
+            }
+            // Consume the signal (for this thread only): any entry committed after that point will trigger a new one
+            lastSeenGeneration.set(generation);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @VisibleForTesting
+    public void signal() {
+        lock.lock();
+        try {
+            generation++;
+            workAvailable.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @AllowConcurrentEvents
+    @Subscribe
+    public void handleDatabaseTransactionEvent(final DatabaseTransactionEvent event) {
+        // Either a transaction we are not interested in, or nothing was inserted; just return.
+        if (pendingSignal.get() == null) {
+            return;
+        }
+
+        pendingSignal.remove();
+        if (event.getType() == DatabaseTransactionEventType.COMMIT) {
+            signal();
+        }
+    }
+}
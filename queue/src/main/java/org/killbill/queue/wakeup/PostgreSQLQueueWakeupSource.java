@@ -0,0 +1,162 @@
+/*
+ * Copyright 2014-2019 Groupon, Inc
+ * Copyright 2014-2019 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.queue.wakeup;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.sql.Connection;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.killbill.commons.concurrent.Executors;
+import org.killbill.commons.jdbi.notification.DatabaseTransactionNotificationApi;
+import org.killbill.queue.dao.QueueSqlDao;
+import org.skife.jdbi.v2.Handle;
+import org.skife.jdbi.v2.IDBI;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+//
+// Extends the in-process signal with PostgreSQL LISTEN/NOTIFY, so that entries inserted by other nodes also wake up the dispatcher:
+// a NOTIFY is issued in the inserting transaction (PostgreSQL delivers it on commit only) and a dedicated connection LISTENs on the channel.
+//
+// The PostgreSQL driver is accessed via reflection, to avoid a compile time dependency.
+//
+public class PostgreSQLQueueWakeupSource extends InProcessQueueWakeupSource {
+
+    private static final Logger log = LoggerFactory.getLogger(PostgreSQLQueueWakeupSource.class);
+
+    private static final String PG_CONNECTION_CLASS = "org.postgresql.PGConnection";
+
+    // How long the listener blocks waiting for notifications, before checking whether it has been stopped
+    private static final int LISTEN_TIMEOUT_MS = 100;
+    // How long to wait before re-opening the listener connection after an error
+    private static final long RECONNECT_SLEEP_TIME_MS = 1000;
+
+    private final IDBI dbi;
+    private final String channel;
+
+    private volatile boolean isListening;
+    private ExecutorService listenerExecutor;
+
+    public PostgreSQLQueueWakeupSource(final IDBI dbi, final String channel, final DatabaseTransactionNotificationApi databaseTransactionNotificationApi) {
+        super(databaseTransactionNotificationApi);
+        this.dbi = dbi;
+        this.channel = channel;
+        this.isListening = false;
+    }
+
+    @Override
+    public void start() {
+        super.start();
+
+        isListening = true;
+        listenerExecutor = Executors.newSingleThreadExecutor(channel + "-listener-th");
+        listenerExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                listen();
+            }
+        });
+    }
+
+    @Override
+    public void stop() {
+        isListening = false;
+        if (listenerExecutor != null) {
+            listenerExecutor.shutdown();
+            try {
+                listenerExecutor.awaitTermination(5, TimeUnit.SECONDS);
+            } catch (final InterruptedException e) {
+                log.info("{}: Stop sequence has been interrupted", channel);
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        super.stop();
+    }
+
+    @Override
+    public void onEntryInsertedFromTransaction(final QueueSqlDao<?> transactional) {
+        super.onEntryInsertedFromTransaction(transactional);
+        transactional.notifyChannel(channel);
+    }
+
+    private void listen() {
+        while (isListening) {
+            Handle handle = null;
+            try {
+                handle = dbi.open();
+                handle.execute("listen " + channel);
+
+                final Class<?> pgConnectionClass = Class.forName(PG_CONNECTION_CLASS);
+                final Connection connection = handle.getConnection();
+                final Object pgConnection = connection.unwrap(pgConnectionClass);
+                final Method getNotificationsWithTimeout = getNotificationsWithTimeoutMethod(pgConnectionClass);
+                final Method getNotifications = pgConnectionClass.getMethod("getNotifications");
+
+                log.info("{}: Listening for notifications", channel);
+                while (isListening) {
+                    final Object notifications;
+                    if (getNotificationsWithTimeout != null) {
+                        notifications = getNotificationsWithTimeout.invoke(pgConnection, LISTEN_TIMEOUT_MS);
+                    } else {
+                        // Older drivers only return notifications already received: issue a dummy query to read them from the socket
+                        handle.select("select 1");
+                        notifications = getNotifications.invoke(pgConnection);
+                        if (notifications == null || Array.getLength(notifications) == 0) {
+                            Thread.sleep(LISTEN_TIMEOUT_MS);
+                        }
+                    }
+
+                    if (notifications != null && Array.getLength(notifications) > 0) {
+                        signal();
+                    }
+                }
+            } catch (final InterruptedException e) {
+                log.info("{}: Listener got interrupted, exiting...", channel);
+                Thread.currentThread().interrupt();
+                return;
+            } catch (final ClassNotFoundException e) {
+                log.warn("{}: PostgreSQL driver not found, falling back to in-process signals only", channel);
+                return;
+            } catch (final Exception e) {
+                log.warn("{}: Listener got an exception, reconnecting...", channel, e);
+                try {
+                    Thread.sleep(RECONNECT_SLEEP_TIME_MS);
+                } catch (final InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            } finally {
+                if (handle != null) {
+                    handle.close();
+                }
+            }
+        }
+    }
+
+    private Method getNotificationsWithTimeoutMethod(final Class<?> pgConnectionClass) {
+        try {
+            // Available since PostgreSQL JDBC 42.2.0
+            return pgConnectionClass.getMethod("getNotifications", int.class);
+        } catch (final NoSuchMethodException e) {
+            return null;
+        }
+    }
+}
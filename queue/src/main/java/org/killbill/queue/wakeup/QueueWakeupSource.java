@@ -0,0 +1,39 @@
+/*
+ * Copyright 2014-2019 Groupon, Inc
+ * Copyright 2014-2019 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.queue.wakeup;
+
+import java.util.concurrent.TimeUnit;
+
+import org.killbill.queue.dao.QueueSqlDao;
+
+//
+// Source of wake-up signals for the polling dispatcher threads: instead of sleeping for the full polling interval,
+// the dispatcher blocks until new work is signalled (or until the polling interval, which becomes a backstop, expires).
+//
+public interface QueueWakeupSource {
+
+    void start();
+
+    void stop();
+
+    // Called from within the transaction inserting the entry, before it gets committed
+    void onEntryInsertedFromTransaction(QueueSqlDao<?> transactional);
+
+    // Returns true if work was signalled, false if the timeout expired
+    boolean awaitWork(long timeout, TimeUnit unit) throws InterruptedException;
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright 2014-2019 Groupon, Inc
+ * Copyright 2014-2019 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.queue.wakeup;
+
+import javax.annotation.Nullable;
+
+import org.killbill.commons.jdbi.notification.DatabaseTransactionNotificationApi;
+import org.killbill.queue.api.PersistentQueueConfig;
+import org.killbill.queue.api.PersistentQueueConfig.PersistentQueueMode;
+import org.skife.jdbi.v2.IDBI;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public abstract class QueueWakeupSources {
+
+    private static final Logger log = LoggerFactory.getLogger(QueueWakeupSources.class);
+
+    /**
+     * @return the wake-up source for that configuration, or null if the dispatcher should simply sleep between polls
+     */
+    @Nullable
+    public static QueueWakeupSource create(final PersistentQueueConfig config, final IDBI dbi, @Nullable final DatabaseTransactionNotificationApi databaseTransactionNotificationApi) {
+        // In STICKY_EVENTS mode, the dispatcher already blocks on the inflightQ
+        if (config.getPersistentQueueMode() == PersistentQueueMode.STICKY_EVENTS || config.getWakeupMode() == PersistentQueueConfig.QueueWakeupMode.NONE) {
+            return null;
+        }
+
+        if (databaseTransactionNotificationApi == null) {
+            log.warn("{}: No DatabaseTransactionNotificationApi available, ignoring wakeup mode {}", config.getTableName(), config.getWakeupMode());
+            return null;
+        }
+
+        switch (config.getWakeupMode()) {
+            case IN_PROCESS:
+                return new InProcessQueueWakeupSource(databaseTransactionNotificationApi);
+            case POSTGRESQL_NOTIFY:
+                return new PostgreSQLQueueWakeupSource(dbi, config.getTableName(), databaseTransactionNotificationApi);
+            default:
+                throw new IllegalStateException("Unsupported QueueWakeupMode " + config.getWakeupMode());
+        }
+    }
+}
@@ -22,6 +22,7 @@ CREATE TABLE notifications (
 CREATE INDEX idx_comp_where ON notifications(effective_date, processing_state, processing_owner, processing_available_date);
 CREATE INDEX idx_update ON notifications(processing_state, processing_owner, processing_available_date);
 CREATE INDEX idx_get_ready ON notifications(effective_date, created_date);
+CREATE INDEX idx_get_ready_queue_name ON notifications(queue_name, processing_state, effective_date);
 CREATE INDEX notifications_search_keys ON notifications(search_key2, search_key1);
 
 DROP TABLE IF EXISTS notifications_history;
@@ -44,6 +45,7 @@ CREATE TABLE notifications_history (
     PRIMARY KEY(record_id)
 ) /*! CHARACTER SET utf8 COLLATE utf8_bin */;
 CREATE INDEX notifications_history_search_keys ON notifications_history(search_key2, search_key1);
+CREATE INDEX notifications_history_search_key2_record_id ON notifications_history(search_key2, record_id);
 
 DROP TABLE IF EXISTS bus_events;
 CREATE TABLE bus_events (
@@ -81,3 +83,4 @@ CREATE TABLE bus_events_history (
     PRIMARY KEY(record_id)
 ) /*! CHARACTER SET utf8 COLLATE utf8_bin */;
 CREATE INDEX bus_events_history_tenant_account_record_id ON bus_events_history(search_key2, search_key1);
+CREATE INDEX bus_events_history_tenant_record_id ON bus_events_history(search_key2, record_id);
@@ -0,0 +1,57 @@
+/*! SET default_storage_engine=INNODB */;
+
+-- Partitioned variant of the history tables (org.killbill.*.history.partitioning.enabled=true), to be used instead of the
+-- notifications_history and bus_events_history definitions in ddl.sql.
+--
+-- Monthly RANGE partitions on effective_date for notifications_history (the column the search_key2 history queries filter on,
+-- so that they only scan the matching months) and on created_date for bus_events_history: the retention service
+-- (HistoryRetentionService) splits the pmax partition to create the upcoming months (p<yyyyMM>) and drops the partitions older
+-- than the retention period.
+-- MySQL requires the partitioning column in every unique key, hence the (record_id, <partitioning column>) primary keys.
+
+DROP TABLE IF EXISTS notifications_history;
+CREATE TABLE notifications_history (
+    record_id bigint /*! unsigned */ NOT NULL AUTO_INCREMENT,
+    class_name varchar(256) NOT NULL,
+    event_json varchar(2048) NOT NULL,
+    user_token varchar(36),
+    created_date datetime NOT NULL,
+    creating_owner varchar(50) NOT NULL,
+    processing_owner varchar(50) DEFAULT NULL,
+    processing_available_date datetime DEFAULT NULL,
+    processing_state varchar(14) DEFAULT 'AVAILABLE',
+    error_count int /*! unsigned */ DEFAULT 0,
+    search_key1 bigint /*! unsigned */ default null,
+    search_key2 bigint /*! unsigned */ default null,
+    queue_name varchar(64) NOT NULL,
+    effective_date datetime NOT NULL,
+    future_user_token varchar(36),
+    PRIMARY KEY(record_id, effective_date)
+) /*! CHARACTER SET utf8 COLLATE utf8_bin */
+PARTITION BY RANGE COLUMNS(effective_date) (
+    PARTITION pmax VALUES LESS THAN (MAXVALUE)
+);
+CREATE INDEX notifications_history_search_keys ON notifications_history(search_key2, search_key1);
+CREATE INDEX notifications_history_search_key2_record_id ON notifications_history(search_key2, record_id);
+
+DROP TABLE IF EXISTS bus_events_history;
+CREATE TABLE bus_events_history (
+    record_id bigint /*! unsigned */ NOT NULL AUTO_INCREMENT,
+    class_name varchar(128) NOT NULL,
+    event_json varchar(2048) NOT NULL,
+    user_token varchar(36),
+    created_date datetime NOT NULL,
+    creating_owner varchar(50) NOT NULL,
+    processing_owner varchar(50) DEFAULT NULL,
+    processing_available_date datetime DEFAULT NULL,
+    processing_state varchar(14) DEFAULT 'AVAILABLE',
+    error_count int /*! unsigned */ DEFAULT 0,
+    search_key1 bigint /*! unsigned */ default null,
+    search_key2 bigint /*! unsigned */ default null,
+    PRIMARY KEY(record_id, created_date)
+) /*! CHARACTER SET utf8 COLLATE utf8_bin */
+PARTITION BY RANGE COLUMNS(created_date) (
+    PARTITION pmax VALUES LESS THAN (MAXVALUE)
+);
+CREATE INDEX bus_events_history_tenant_account_record_id ON bus_events_history(search_key2, search_key1);
+CREATE INDEX bus_events_history_tenant_record_id ON bus_events_history(search_key2, record_id);
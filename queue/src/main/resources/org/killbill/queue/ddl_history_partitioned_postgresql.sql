@@ -0,0 +1,51 @@
+-- Partitioned variant of the history tables (org.killbill.*.history.partitioning.enabled=true), to be used instead of the
+-- notifications_history and bus_events_history definitions in ddl.sql. Requires PostgreSQL 11+.
+--
+-- Monthly RANGE partitions on effective_date for notifications_history (the column the search_key2 history queries filter on,
+-- so that they only scan the matching months) and on created_date for bus_events_history: the retention service
+-- (HistoryRetentionService) creates the upcoming months (<table>_p<yyyyMM>) and drops the partitions older than the retention period.
+-- Rows outside of any monthly partition end up in the default partition (<table>_default): they are moved to their monthly partition
+-- when it gets created, and deleted once older than the retention period.
+
+DROP TABLE IF EXISTS notifications_history;
+CREATE TABLE notifications_history (
+    record_id bigserial NOT NULL,
+    class_name varchar(256) NOT NULL,
+    event_json varchar(2048) NOT NULL,
+    user_token varchar(36),
+    created_date timestamp NOT NULL,
+    creating_owner varchar(50) NOT NULL,
+    processing_owner varchar(50) DEFAULT NULL,
+    processing_available_date timestamp DEFAULT NULL,
+    processing_state varchar(14) DEFAULT 'AVAILABLE',
+    error_count int DEFAULT 0,
+    search_key1 bigint default null,
+    search_key2 bigint default null,
+    queue_name varchar(64) NOT NULL,
+    effective_date timestamp NOT NULL,
+    future_user_token varchar(36),
+    PRIMARY KEY(record_id, effective_date)
+) PARTITION BY RANGE (effective_date);
+CREATE TABLE notifications_history_default PARTITION OF notifications_history DEFAULT;
+CREATE INDEX notifications_history_search_keys ON notifications_history(search_key2, search_key1);
+CREATE INDEX notifications_history_search_key2_record_id ON notifications_history(search_key2, record_id);
+
+DROP TABLE IF EXISTS bus_events_history;
+CREATE TABLE bus_events_history (
+    record_id bigserial NOT NULL,
+    class_name varchar(128) NOT NULL,
+    event_json varchar(2048) NOT NULL,
+    user_token varchar(36),
+    created_date timestamp NOT NULL,
+    creating_owner varchar(50) NOT NULL,
+    processing_owner varchar(50) DEFAULT NULL,
+    processing_available_date timestamp DEFAULT NULL,
+    processing_state varchar(14) DEFAULT 'AVAILABLE',
+    error_count int DEFAULT 0,
+    search_key1 bigint default null,
+    search_key2 bigint default null,
+    PRIMARY KEY(record_id, created_date)
+) PARTITION BY RANGE (created_date);
+CREATE TABLE bus_events_history_default PARTITION OF bus_events_history DEFAULT;
+CREATE INDEX bus_events_history_tenant_account_record_id ON bus_events_history(search_key2, search_key1);
+CREATE INDEX bus_events_history_tenant_record_id ON bus_events_history(search_key2, record_id);
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2014-2019 Groupon, Inc
+ * Copyright 2014-2019 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.bus;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.killbill.CreatorName;
+import org.killbill.TestSetup;
+import org.killbill.bus.dao.BusEventModelDao;
+import org.killbill.bus.dao.PersistentBusSqlDao;
+import org.killbill.queue.DBBackedQueueWithPolling;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class TestBusGroupCommitWriter extends TestSetup {
+
+    private DBBackedQueueWithPolling<BusEventModelDao> queue;
+
+    @BeforeMethod(groups = "slow")
+    public void beforeMethod() throws Exception {
+        super.beforeMethod();
+        queue = new DBBackedQueueWithPolling<BusEventModelDao>(clock, dbi, PersistentBusSqlDao.class, persistentBusConfig, "testBusGroupCommitWriter", metricRegistry);
+        queue.initialize();
+    }
+
+    @Test(groups = "slow")
+    public void testGroupCommitWriter() throws Exception {
+        final int NB_ENTRIES = 250;
+
+        final BusGroupCommitWriter writer = new BusGroupCommitWriter(queue, 100, 1000L, "testGroupCommitWriter-th");
+        writer.start();
+        try {
+            final List<Future<Void>> futures = new ArrayList<Future<Void>>();
+            for (int i = 0; i < NB_ENTRIES; i++) {
+                futures.add(writer.submit(createEntry(new Long(i + 5))));
+            }
+            for (final Future<Void> future : futures) {
+                future.get(10, TimeUnit.SECONDS);
+            }
+        } finally {
+            writer.stop();
+        }
+
+        // All entries are committed
+        assertEquals(queue.getNbReadyEntries(clock.getUTCNow().toDate()), NB_ENTRIES);
+    }
+
+    @Test(groups = "slow")
+    public void testSubmitConcurrentlyWithStop() throws Exception {
+        final int NB_THREADS = 4;
+        final int NB_ENTRIES_PER_THREAD = 500;
+
+        final BusGroupCommitWriter writer = new BusGroupCommitWriter(queue, 10, 1000L, "testSubmitConcurrentlyWithStop-th");
+        writer.start();
+
+        final CountDownLatch started = new CountDownLatch(NB_THREADS);
+        final ExecutorService submitters = Executors.newFixedThreadPool(NB_THREADS);
+        final List<Future<List<Future<Void>>>> results = new ArrayList<Future<List<Future<Void>>>>();
+        for (int i = 0; i < NB_THREADS; i++) {
+            results.add(submitters.submit(new Callable<List<Future<Void>>>() {
+                @Override
+                public List<Future<Void>> call() {
+                    started.countDown();
+                    final List<Future<Void>> futures = new ArrayList<Future<Void>>();
+                    for (int j = 0; j < NB_ENTRIES_PER_THREAD; j++) {
+                        futures.add(writer.submit(createEntry((long) j)));
+                    }
+                    return futures;
+                }
+            }));
+        }
+
+        started.await();
+        writer.stop();
+        submitters.shutdown();
+
+        // Every future completes: either the entry was committed, or it was rejected because the writer was stopped
+        int nbCommitted = 0;
+        for (final Future<List<Future<Void>>> result : results) {
+            for (final Future<Void> future : result.get(10, TimeUnit.SECONDS)) {
+                try {
+                    future.get(10, TimeUnit.SECONDS);
+                    nbCommitted++;
+                } catch (final ExecutionException e) {
+                    assertTrue(e.getCause() instanceof IllegalStateException, "Unexpected failure " + e.getCause());
+                }
+            }
+        }
+        assertEquals(queue.getNbReadyEntries(clock.getUTCNow().toDate()), nbCommitted);
+
+        try {
+            writer.submit(createEntry(1L)).get(10, TimeUnit.SECONDS);
+            fail("Writer is stopped");
+        } catch (final ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+    }
+
+    private BusEventModelDao createEntry(final Long searchKey1) {
+        final String json = "json";
+        return new BusEventModelDao(CreatorName.get(), clock.getUTCNow(), String.class.getName(), json, UUID.randomUUID(), searchKey1, 1L);
+    }
+}
@@ -16,6 +16,8 @@
 
 package org.killbill.bus;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.UUID;
 
 import com.google.common.eventbus.AllowConcurrentEvents;
@@ -253,6 +255,25 @@ public class TestEventBusBase {
         }
     }
 
+    public void testSimpleBatch() {
+        try {
+            final int nbEvents = 5;
+            final MyEventHandler handler = new MyEventHandler(nbEvents, 0);
+            eventBus.register(handler);
+
+            final List<BusEvent> events = new ArrayList<BusEvent>();
+            for (int i = 0; i < nbEvents; i++) {
+                events.add(new MyEvent("my-event", (long) i, "MY_EVENT_TYPE", 1L, 2L, UUID.randomUUID()));
+            }
+            eventBus.post(events);
+
+            final boolean completed = handler.waitForCompletion(10000);
+            Assert.assertEquals(completed, true);
+        } catch (final Exception e) {
+            Assert.fail("", e);
+        }
+    }
+
     public void testDifferentType() {
         try {
             final MyEventHandler handler = new MyEventHandler(1, 0);
@@ -117,6 +117,7 @@ public class TestInMemoryEventBus {
             public TimeSpan getReapSchedule() {
                 return new TimeSpan(3, TimeUnit.MINUTES);
             }
+
         });
         testEventBusBase = new TestEventBusBase(busService);
     }
@@ -131,12 +132,16 @@ public class TestInMemoryEventBus {
         busService.stopQueue();
     }
 
-
     @Test(groups = "fast")
     public void testSimple() {
         testEventBusBase.testSimple();
     }
 
+    @Test(groups = "fast")
+    public void testSimpleBatch() {
+        testEventBusBase.testSimpleBatch();
+    }
+
     @Test(groups = "fast")
     public void testDifferentType() {
         testEventBusBase.testDifferentType();
@@ -18,9 +18,17 @@
 
 package org.killbill.bus;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
 import org.killbill.TestSetup;
+import org.killbill.bus.api.BusEvent;
 import org.killbill.bus.api.BusEventWithMetadata;
 import org.killbill.bus.api.PersistentBus;
+import org.killbill.queue.api.KeysetPage;
+import org.skife.jdbi.v2.ResultIterator;
 import org.testng.Assert;
 import org.testng.annotations.AfterMethod;
 import org.testng.annotations.BeforeClass;
@@ -28,6 +36,10 @@ import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
 import com.google.common.collect.Iterables;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Ordering;
+
+import static org.awaitility.Awaitility.await;
 
 public class TestPersistentEventBus extends TestSetup {
 
@@ -62,6 +74,13 @@ public class TestPersistentEventBus extends TestSetup {
         assertNoInProcessingEvent();
     }
 
+    @Test(groups = "slow")
+    public void testSimpleBatch() {
+        assertNoInProcessingEvent();
+        testEventBusBase.testSimpleBatch();
+        assertNoInProcessingEvent();
+    }
+
     @Test(groups = "slow")
     public void testSimpleWithExceptionAndRetrySuccess() {
         assertNoInProcessingEvent();
@@ -76,6 +95,60 @@ public class TestPersistentEventBus extends TestSetup {
         assertNoInProcessingEvent();
     }
 
+    // MyOtherEvent has no subscriber: these entries are completed without being deserialized
+    @Test(groups = "slow")
+    public void testDifferentType() {
+        assertNoInProcessingEvent();
+        testEventBusBase.testDifferentType();
+        assertNoInProcessingEvent();
+    }
+
+    @Test(groups = "slow")
+    public void testHistoricalSearchPagination() {
+        testEventBusBase.testSimpleBatch();
+
+        // Entries are moved to history asynchronously
+        await().atMost(10, TimeUnit.SECONDS).until(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return Iterables.size(busService.getHistoricalBusEventsForSearchKey2(null, 2L)) == 5;
+            }
+        });
+
+        final List<Long> recordIds = new ArrayList<Long>();
+        Long fromRecordId = null;
+        int nbPages = 0;
+        do {
+            final KeysetPage<BusEventWithMetadata<BusEvent>> page = busService.getHistoricalBusEventsForSearchKey2(null, 2L, fromRecordId, 2);
+            for (final BusEventWithMetadata<BusEvent> entry : page.getEntries()) {
+                recordIds.add(entry.getRecordId());
+            }
+            fromRecordId = page.getNextRecordId();
+            nbPages++;
+        } while (fromRecordId != null);
+        Assert.assertEquals(nbPages, 3);
+        Assert.assertEquals(recordIds.size(), 5);
+        Assert.assertEquals(recordIds, Ordering.natural().sortedCopy(recordIds));
+
+        final ResultIterator<BusEventWithMetadata<BusEvent>> iterator = busService.streamHistoricalBusEventsForSearchKey2(null, 2L);
+        try {
+            Assert.assertEquals(Iterators.size(iterator), 5);
+        } finally {
+            iterator.close();
+        }
+    }
+
+    @Test(groups = "slow")
+    public void testHistoricalSearchPaginationWithInvalidLimit() {
+        for (final int limit : new int[]{0, -1}) {
+            try {
+                busService.getHistoricalBusEventsForSearchKey2(null, 2L, null, limit);
+                Assert.fail("limit " + limit + " should be rejected");
+            } catch (final IllegalArgumentException expected) {
+            }
+        }
+    }
+
     private void assertNoInProcessingEvent() {
         Assert.assertEquals(Iterables.<BusEventWithMetadata>size(busService.getInProcessingBusEvents()), 0);
         Assert.assertEquals(busService.getNbReadyEntries(clock.getUTCNow()), 0);
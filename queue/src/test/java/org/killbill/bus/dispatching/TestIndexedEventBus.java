@@ -0,0 +1,312 @@
+/*
+ * Copyright 2014-2019 Groupon, Inc
+ * Copyright 2014-2019 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.bus.dispatching;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.killbill.bus.api.ParallelFanOut;
+import org.slf4j.MDC;
+import org.slf4j.helpers.BasicMDCAdapter;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.eventbus.AllowConcurrentEvents;
+import com.google.common.eventbus.DeadEvent;
+import com.google.common.eventbus.EventBusException;
+import com.google.common.eventbus.Subscribe;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class TestIndexedEventBus {
+
+    @Test(groups = "fast")
+    public void testDispatchToSuperTypes() throws Exception {
+        final IndexedEventBus eventBus = new IndexedEventBus("testDispatchToSuperTypes");
+        final RecordingHandler handler = new RecordingHandler();
+        eventBus.register(handler);
+
+        eventBus.postWithException("foo");
+        eventBus.postWithException(12);
+
+        // The String is seen by both the String and Object handlers, the Integer by the Object handler only
+        assertEquals(handler.strings, ImmutableList.<Object>of("foo"));
+        assertEquals(handler.objects, ImmutableList.<Object>of("foo", 12));
+        assertTrue(eventBus.hasSubscribers(String.class));
+        assertTrue(eventBus.hasSubscribers(Integer.class));
+
+        eventBus.unregister(handler);
+        assertFalse(eventBus.hasSubscribers(String.class));
+        eventBus.postWithException("bar");
+        assertEquals(handler.strings, ImmutableList.<Object>of("foo"));
+    }
+
+    @Test(groups = "fast")
+    public void testThrowFirstException() throws Exception {
+        final IndexedEventBus eventBus = new IndexedEventBus("testThrowFirstException");
+        final ThrowingHandler handlerA = new ThrowingHandler("A");
+        final ThrowingHandler handlerB = new ThrowingHandler("B");
+        eventBus.register(handlerA);
+        eventBus.register(handlerB);
+
+        try {
+            eventBus.postWithException("event");
+            fail();
+        } catch (final EventBusException e) {
+            assertTrue(e.getCause() instanceof InvocationTargetException);
+            assertEquals(e.getCause().getCause().getMessage(), "A");
+        }
+        // All handlers are invoked
+        assertEquals(handlerA.nbCalls, 1);
+        assertEquals(handlerB.nbCalls, 1);
+    }
+
+    @Test(groups = "fast")
+    public void testDeadEvent() throws Exception {
+        final IndexedEventBus eventBus = new IndexedEventBus("testDeadEvent");
+        final DeadEventHandler handler = new DeadEventHandler();
+        eventBus.register(handler);
+
+        eventBus.postWithException("nobody listens");
+        assertEquals(handler.deadEvents.size(), 1);
+        assertEquals(handler.deadEvents.get(0).getEvent(), "nobody listens");
+    }
+
+    @Test(groups = "fast")
+    public void testDeadEventHandlerException() throws Exception {
+        final IndexedEventBus eventBus = new IndexedEventBus("testDeadEventHandlerException");
+        final ThrowingDeadEventHandler throwingHandler = new ThrowingDeadEventHandler();
+        final DeadEventHandler handler = new DeadEventHandler();
+        eventBus.register(throwingHandler);
+        eventBus.register(handler);
+
+        // Exceptions thrown by DeadEvent handlers are not propagated
+        eventBus.postWithException("nobody listens");
+        assertEquals(throwingHandler.nbCalls, 1);
+        assertEquals(handler.deadEvents.size(), 1);
+    }
+
+    @Test(groups = "fast")
+    public void testParallelFanOut() throws Exception {
+        final IndexedEventBus eventBus = new IndexedEventBus("testParallelFanOut", 2);
+        eventBus.start();
+        try {
+            // Both parallel handlers need to run at the same time to get past the barrier
+            final CyclicBarrier barrier = new CyclicBarrier(2);
+            final ParallelHandler handlerA = new ParallelHandler(barrier, null);
+            final ParallelHandler handlerB = new ParallelHandler(barrier, "B");
+            final ThrowingHandler sequentialHandler = new ThrowingHandler("sequential");
+            eventBus.register(handlerA);
+            eventBus.register(handlerB);
+            eventBus.register(sequentialHandler);
+
+            try {
+                eventBus.postWithException("event");
+                fail();
+            } catch (final EventBusException e) {
+                // First failure in registration order
+                assertEquals(e.getCause().getCause().getMessage(), "B");
+            }
+            assertEquals(handlerA.nbCalls.get(), 1);
+            assertEquals(handlerB.nbCalls.get(), 1);
+            assertEquals(sequentialHandler.nbCalls, 1);
+        } finally {
+            eventBus.stop();
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testParallelFanOutKeepsMDC() throws Exception {
+        // The SLF4J binding used by the tests (slf4j-simple) doesn't support MDC: use the basic, in-memory, adapter instead
+        final Field mdcAdapterField = MDC.class.getDeclaredField("mdcAdapter");
+        mdcAdapterField.setAccessible(true);
+        final Object originalMdcAdapter = mdcAdapterField.get(null);
+        mdcAdapterField.set(null, new BasicMDCAdapter());
+
+        final IndexedEventBus eventBus = new IndexedEventBus("testParallelFanOutKeepsMDC", 1);
+        eventBus.start();
+        try {
+            final MDCRecordingHandler handler = new MDCRecordingHandler();
+            eventBus.register(handler);
+
+            MDC.put("kb.userToken", "token-1");
+            try {
+                eventBus.postWithException("event");
+            } finally {
+                MDC.remove("kb.userToken");
+            }
+            eventBus.postWithException("event");
+
+            // The context of the posting thread is visible to the handler, and doesn't leak to the next event run by the same pool thread
+            assertEquals(handler.userTokens, Arrays.<String>asList("token-1", null));
+        } finally {
+            eventBus.stop();
+            mdcAdapterField.set(null, originalMdcAdapter);
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testParallelFanOutErrorAfterAllHandlers() throws Exception {
+        final IndexedEventBus eventBus = new IndexedEventBus("testParallelFanOutErrorAfterAllHandlers", 2);
+        eventBus.start();
+        try {
+            final ErrorHandler errorHandler = new ErrorHandler();
+            final SlowHandler slowHandler = new SlowHandler();
+            eventBus.register(errorHandler);
+            eventBus.register(slowHandler);
+
+            try {
+                eventBus.postWithException("event");
+                fail();
+            } catch (final AssertionError e) {
+                assertEquals(e.getMessage(), "error");
+            }
+            // The error is only propagated once the sibling handler completed
+            assertTrue(slowHandler.isDone);
+        } finally {
+            eventBus.stop();
+        }
+    }
+
+    @Test(groups = "fast", expectedExceptions = IllegalArgumentException.class)
+    public void testUnregisterUnknownHandler() {
+        new IndexedEventBus("testUnregisterUnknownHandler").unregister(new RecordingHandler());
+    }
+
+    private static final class RecordingHandler {
+
+        private final List<String> strings = new ArrayList<String>();
+        private final List<Object> objects = new ArrayList<Object>();
+
+        @Subscribe
+        public void onString(final String event) {
+            strings.add(event);
+        }
+
+        @AllowConcurrentEvents
+        @Subscribe
+        public void onObject(final Object event) {
+            objects.add(event);
+        }
+    }
+
+    private static final class ThrowingHandler {
+
+        private final String id;
+        private int nbCalls;
+
+        private ThrowingHandler(final String id) {
+            this.id = id;
+        }
+
+        @Subscribe
+        public void onEvent(final String event) {
+            nbCalls++;
+            throw new RuntimeException(id);
+        }
+    }
+
+    private static final class ParallelHandler {
+
+        private final CyclicBarrier barrier;
+        private final String failureId;
+        private final AtomicInteger nbCalls = new AtomicInteger();
+
+        private ParallelHandler(final CyclicBarrier barrier, final String failureId) {
+            this.barrier = barrier;
+            this.failureId = failureId;
+        }
+
+        @ParallelFanOut
+        @AllowConcurrentEvents
+        @Subscribe
+        public void onEvent(final String event) throws Exception {
+            nbCalls.incrementAndGet();
+            barrier.await(5, TimeUnit.SECONDS);
+            if (failureId != null) {
+                throw new RuntimeException(failureId);
+            }
+        }
+    }
+
+    private static final class MDCRecordingHandler {
+
+        private final List<String> userTokens = Collections.synchronizedList(new ArrayList<String>());
+
+        @ParallelFanOut
+        @AllowConcurrentEvents
+        @Subscribe
+        public void onEvent(final String event) {
+            userTokens.add(MDC.get("kb.userToken"));
+        }
+    }
+
+    private static final class ErrorHandler {
+
+        @ParallelFanOut
+        @AllowConcurrentEvents
+        @Subscribe
+        public void onEvent(final String event) {
+            throw new AssertionError("error");
+        }
+    }
+
+    private static final class SlowHandler {
+
+        private volatile boolean isDone;
+
+        @ParallelFanOut
+        @AllowConcurrentEvents
+        @Subscribe
+        public void onEvent(final String event) throws InterruptedException {
+            Thread.sleep(500);
+            isDone = true;
+        }
+    }
+
+    private static final class ThrowingDeadEventHandler {
+
+        private int nbCalls;
+
+        @Subscribe
+        public void onDeadEvent(final DeadEvent event) {
+            nbCalls++;
+            throw new RuntimeException("dead event handler");
+        }
+    }
+
+    private static final class DeadEventHandler {
+
+        private final List<DeadEvent> deadEvents = new ArrayList<DeadEvent>();
+
+        @Subscribe
+        public void onDeadEvent(final DeadEvent event) {
+            deadEvents.add(event);
+        }
+    }
+}
@@ -30,13 +30,16 @@ import java.util.concurrent.atomic.AtomicLong;
 import org.joda.time.DateTime;
 import org.killbill.CreatorName;
 import org.killbill.clock.Clock;
+import org.killbill.notificationq.api.FutureNotification;
 import org.killbill.notificationq.api.NotificationEvent;
 import org.killbill.notificationq.api.NotificationEventWithMetadata;
 import org.killbill.notificationq.api.NotificationQueue;
 import org.killbill.notificationq.api.NotificationQueueService.NotificationQueueHandler;
 import org.killbill.notificationq.dao.NotificationEventModelDao;
+import org.killbill.queue.api.KeysetPage;
 import org.killbill.queue.api.PersistentQueueEntryLifecycleState;
 import org.killbill.queue.dispatching.CallableCallbackBase;
+import org.skife.jdbi.v2.ResultIterator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -84,6 +87,11 @@ public class MockNotificationQueue implements NotificationQueue {
 
     @Override
     public void recordFutureNotification(final DateTime futureNotificationTime, final NotificationEvent eventJson, final UUID userToken, final Long searchKey1, final Long searchKey2) throws IOException {
+        recordFutureNotificationAndGetRecordId(futureNotificationTime, eventJson, userToken, searchKey1, searchKey2);
+    }
+
+    @Override
+    public Long recordFutureNotificationAndGetRecordId(final DateTime futureNotificationTime, final NotificationEvent eventJson, final UUID userToken, final Long searchKey1, final Long searchKey2) throws IOException {
         final String json = objectMapper.writeValueAsString(eventJson);
         final Long searchKey2WithNull = MoreObjects.firstNonNull(searchKey2, new Long(0));
         final NotificationEventModelDao notification = new NotificationEventModelDao(recordIds.incrementAndGet(), "MockQueue", hostname, clock.getUTCNow(), null, PersistentQueueEntryLifecycleState.AVAILABLE,
@@ -93,6 +101,7 @@ public class MockNotificationQueue implements NotificationQueue {
         synchronized (notifications) {
             notifications.add(notification);
         }
+        return notification.getRecordId();
     }
 
     @Override
@@ -100,6 +109,18 @@ public class MockNotificationQueue implements NotificationQueue {
         recordFutureNotification(futureNotificationTime, eventJson, userToken, searchKey1, searchKey2);
     }
 
+    @Override
+    public void recordFutureNotifications(final Iterable<FutureNotification> notifications) throws IOException {
+        for (final FutureNotification notification : notifications) {
+            recordFutureNotification(notification.getEffectiveDate(), notification.getEvent(), notification.getUserToken(), notification.getSearchKey1(), notification.getSearchKey2());
+        }
+    }
+
+    @Override
+    public void recordFutureNotificationsFromTransaction(final Connection connection, final Iterable<FutureNotification> notifications) throws IOException {
+        recordFutureNotifications(notifications);
+    }
+
     @Override
     public void updateFutureNotification(final Long recordId, final NotificationEvent eventJson, final Long searchKey1, final Long searchKey2) throws IOException {
         return;
@@ -165,6 +186,16 @@ public class MockNotificationQueue implements NotificationQueue {
         return null;
     }
 
+    @Override
+    public <T extends NotificationEvent> KeysetPage<NotificationEventWithMetadata<T>> getHistoricalNotificationForSearchKey2(final DateTime minEffectiveDate, final Long searchKey2, final Long fromRecordId, final int limit) {
+        return null;
+    }
+
+    @Override
+    public <T extends NotificationEvent> ResultIterator<NotificationEventWithMetadata<T>> streamHistoricalNotificationForSearchKey2(final DateTime minEffectiveDate, final Long searchKey2) {
+        return null;
+    }
+
     private <T extends NotificationEvent> List<NotificationEventWithMetadata<T>> getFutureNotificationsInternal(final Class<T> type, final Long searchKey1, final Connection connection) {
         final List<NotificationEventWithMetadata<T>> result = new ArrayList<NotificationEventWithMetadata<T>>();
         synchronized (notifications) {
@@ -187,6 +218,22 @@ public class MockNotificationQueue implements NotificationQueue {
         return 0;
     }
 
+    @Override
+    public boolean claimNotification(final Long recordId) {
+        synchronized (notifications) {
+            for (final NotificationEventModelDao cur : notifications) {
+                if (cur.getRecordId().equals(recordId)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void releaseNotification(final Long recordId) {
+    }
+
     @Override
     public void removeNotification(final Long recordId) {
         removeNotificationFromTransaction(null, recordId);
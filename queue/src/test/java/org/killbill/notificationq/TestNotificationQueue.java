@@ -18,35 +18,45 @@
 
 package org.killbill.notificationq;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
+import java.util.Properties;
 import java.util.TreeMap;
 import java.util.UUID;
 import java.util.concurrent.Callable;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.joda.time.DateTime;
 import org.joda.time.Period;
 import org.killbill.TestSetup;
 import org.killbill.billing.util.queue.QueueRetryException;
+import org.killbill.clock.Clock;
 import org.killbill.clock.DefaultClock;
+import org.killbill.notificationq.api.FutureNotification;
 import org.killbill.notificationq.api.NotificationEvent;
 import org.killbill.notificationq.api.NotificationEventWithMetadata;
 import org.killbill.notificationq.api.NotificationQueue;
+import org.killbill.notificationq.api.NotificationQueueConfig;
 import org.killbill.notificationq.api.NotificationQueueService;
 import org.killbill.notificationq.api.NotificationQueueService.NotificationQueueHandler;
 import org.killbill.notificationq.dao.NotificationEventModelDao;
 import org.killbill.notificationq.dao.NotificationSqlDao;
+import org.killbill.queue.QueueObjectMapper;
 import org.killbill.queue.api.PersistentQueueEntryLifecycleState;
 import org.killbill.queue.retry.RetryableHandler;
 import org.killbill.queue.retry.RetryableService;
+import org.skife.config.ConfigurationObjectFactory;
+import org.skife.config.SimplePropertyConfigSource;
 import org.skife.jdbi.v2.DBI;
 import org.skife.jdbi.v2.Handle;
 import org.skife.jdbi.v2.TransactionCallback;
 import org.skife.jdbi.v2.TransactionStatus;
 import org.skife.jdbi.v2.tweak.HandleCallback;
 import org.skife.jdbi.v2.util.IntegerMapper;
+import org.skife.jdbi.v2.util.StringMapper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.testng.Assert;
@@ -58,6 +68,7 @@ import com.fasterxml.jackson.annotation.JsonProperty;
 import com.google.common.base.Predicate;
 import com.google.common.collect.Collections2;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Iterators;
 
@@ -83,6 +94,10 @@ public class TestNotificationQueue extends TestSetup {
         public RetryableNotificationQueueService(final NotificationQueueService notificationQueueService) {
             super(notificationQueueService);
         }
+
+        public RetryableNotificationQueueService(final NotificationQueueService notificationQueueService, final Clock clock, final NotificationQueueConfig config) {
+            super(notificationQueueService, QueueObjectMapper.get(), clock, config);
+        }
     }
 
     public static final class TestNotificationKey implements NotificationEvent, Comparable<TestNotificationKey> {
@@ -397,6 +412,60 @@ public class TestNotificationQueue extends TestSetup {
         assertEquals(success, true);
     }
 
+    @Test(groups = "slow")
+    public void testBulkNotifications() throws Exception {
+        final Map<String, Boolean> expectedNotifications = new TreeMap<String, Boolean>();
+
+        final NotificationQueue queue = queueService.createNotificationQueue("test-svc",
+                "bulk",
+                new NotificationQueueHandler() {
+                    @Override
+                    public void handleReadyNotification(final NotificationEvent eventJson, final DateTime eventDateTime, final UUID userToken, final Long searchKey1, final Long searchKey2) {
+                        synchronized (expectedNotifications) {
+                            expectedNotifications.put(((TestNotificationKey) eventJson).getValue(), Boolean.TRUE);
+                            expectedNotifications.notify();
+                        }
+                    }
+                });
+        queue.startQueue();
+
+        final DateTime readyTime = clock.getUTCNow().plusMillis(2000);
+
+        final int MAX_NOTIFICATIONS = 250;
+        final List<FutureNotification> notifications = new ArrayList<FutureNotification>();
+        for (int i = 0; i < MAX_NOTIFICATIONS; i++) {
+            final String value = String.valueOf(i);
+            expectedNotifications.put(value, Boolean.FALSE);
+            notifications.add(new FutureNotification(readyTime, new TestNotificationKey(value), TOKEN_ID, SEARCH_KEY_1, SEARCH_KEY_2));
+        }
+
+        final DBI dbi = getDBI();
+        dbi.inTransaction(new TransactionCallback<Object>() {
+            @Override
+            public Object inTransaction(final Handle conn, final TransactionStatus status) throws Exception {
+                queue.recordFutureNotificationsFromTransaction(conn.getConnection(), notifications);
+                return null;
+            }
+        });
+
+        // All the entries are visible (and not dispatched yet)
+        assertEquals(Iterables.size(queue.getFutureNotificationForSearchKeys(SEARCH_KEY_1, SEARCH_KEY_2)), MAX_NOTIFICATIONS);
+        assertEquals(queue.getNbReadyEntries(readyTime), MAX_NOTIFICATIONS);
+
+        clock.addDeltaFromReality(3000);
+
+        await().atMost(10, TimeUnit.SECONDS).until(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                synchronized (expectedNotifications) {
+                    return !expectedNotifications.containsValue(Boolean.FALSE);
+                }
+            }
+        });
+
+        queue.stopQueue();
+    }
+
     /**
      * Test that we can post a notification in the future from a transaction and get the notification
      * callback with the correct key when the time is ready
@@ -468,6 +537,18 @@ public class TestNotificationQueue extends TestSetup {
             // expected behavior
         }
 
+        // The Barney notification should not even have been claimed
+        final String barneyProcessingState = dbi.withHandle(new HandleCallback<String>() {
+            @Override
+            public String withHandle(final Handle handle) throws Exception {
+                return handle.createQuery(String.format("select processing_state from %s where queue_name = :queueName and processing_owner is null", notificationQueueConfig.getTableName()))
+                             .bind("queueName", queueBarney.getFullQName())
+                             .map(StringMapper.FIRST)
+                             .first();
+            }
+        });
+        Assert.assertEquals(barneyProcessingState, "AVAILABLE");
+
         queueFred.stopQueue();
         Assert.assertTrue(expectedNotificationsFred.get(eventJsonFred));
         Assert.assertFalse(expectedNotificationsFred.get(eventJsonBarney));
@@ -669,4 +750,119 @@ public class TestNotificationQueue extends TestSetup {
             retryableQueueService.stop();
         }
     }
+
+    @Test(groups = "slow")
+    public void testLocalRetries() throws Exception {
+        // 3 short retries (in memory), then a long one (notification queue)
+        final NotificationQueueHandlerWithExceptions handlerDelegate = new NotificationQueueHandlerWithExceptions(ImmutableList.<Period>of(Period.millis(1),
+                                                                                                                                           Period.millis(1),
+                                                                                                                                           Period.millis(1),
+                                                                                                                                           Period.days(1)));
+        final RetryableNotificationQueueService localRetryableQueueService = new RetryableNotificationQueueService(queueService, clock, createLocalRetriesConfig("1m", "1h"));
+        final NotificationQueueHandler retryableHandler = new RetryableHandler(clock, localRetryableQueueService, handlerDelegate);
+        final NotificationQueue queueWithExceptionAndFailed = queueService.createNotificationQueue("svc", "localRetries", retryableHandler);
+        try {
+            localRetryableQueueService.initialize(queueWithExceptionAndFailed.getQueueName(), handlerDelegate);
+            localRetryableQueueService.start();
+            queueWithExceptionAndFailed.startQueue();
+
+            final DateTime now = new DateTime();
+            final DateTime readyTime = now.plusMillis(2000);
+            queueWithExceptionAndFailed.recordFutureNotification(readyTime, new TestNotificationKey("Foo"), TOKEN_ID, SEARCH_KEY_1, SEARCH_KEY_2);
+
+            // Move time in the future after the notification effectiveDate
+            clock.setDeltaFromReality(3000);
+
+            final NotificationSqlDao notificationSqlDao = dbi.onDemand(NotificationSqlDao.class);
+
+            // The markers of the local retries are removed, the last retry is recorded in the notification queue
+            await().atMost(10, TimeUnit.SECONDS).until(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    return Iterators.size(notificationSqlDao.getHistoricalQueueEntriesForSearchKeys("notifications-retries:localRetries", SEARCH_KEY_1, SEARCH_KEY_2, notificationQueueConfig.getHistoryTableName())) == 3 &&
+                           Iterators.size(notificationSqlDao.getReadyOrInProcessingQueueEntriesForSearchKeys("notifications-retries:localRetries", SEARCH_KEY_1, SEARCH_KEY_2, notificationQueueConfig.getTableName())) == 1;
+                }
+            });
+
+            final List<NotificationEventModelDao> markers = ImmutableList.<NotificationEventModelDao>copyOf(notificationSqlDao.getHistoricalQueueEntriesForSearchKeys("notifications-retries:localRetries", SEARCH_KEY_1, SEARCH_KEY_2, notificationQueueConfig.getHistoryTableName()));
+            for (final NotificationEventModelDao marker : markers) {
+                Assert.assertEquals(marker.getProcessingState(), PersistentQueueEntryLifecycleState.REMOVED);
+            }
+            Assert.assertEquals(localRetryableQueueService.getNbLocalRetries(), 0);
+
+            // Make the next retry work
+            handlerDelegate.shouldFail(false);
+
+            clock.addDays(1);
+
+            await().atMost(10, TimeUnit.SECONDS).until(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    return Iterators.size(notificationSqlDao.getHistoricalQueueEntriesForSearchKeys("notifications-retries:localRetries", SEARCH_KEY_1, SEARCH_KEY_2, notificationQueueConfig.getHistoryTableName())) == 4;
+                }
+            });
+            Assert.assertEquals(eventsReceived, 1);
+        } finally {
+            queueWithExceptionAndFailed.stopQueue();
+            localRetryableQueueService.stop();
+        }
+    }
+
+    @Test(groups = "slow")
+    public void testLocalRetryWithGracePeriodShorterThanHandler() throws Exception {
+        final AtomicInteger nbInvocations = new AtomicInteger(0);
+        final NotificationQueueHandler handlerDelegate = new NotificationQueueHandler() {
+            @Override
+            public void handleReadyNotification(final NotificationEvent eventJson, final DateTime eventDateTime, final UUID userToken, final Long searchKey1, final Long searchKey2) {
+                if (nbInvocations.incrementAndGet() == 1) {
+                    throw new QueueRetryException(new NullPointerException("Expected exception for tests"), ImmutableList.<Period>of(Period.millis(1)));
+                }
+                // The local retry takes longer than the grace period of its marker
+                try {
+                    Thread.sleep(1500);
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        final RetryableNotificationQueueService localRetryableQueueService = new RetryableNotificationQueueService(queueService, clock, createLocalRetriesConfig("1m", "100ms"));
+        final NotificationQueueHandler retryableHandler = new RetryableHandler(clock, localRetryableQueueService, handlerDelegate);
+        final NotificationQueue queueWithLocalRetry = queueService.createNotificationQueue("svc", "localRetryGracePeriod", retryableHandler);
+        try {
+            localRetryableQueueService.initialize(queueWithLocalRetry.getQueueName(), handlerDelegate);
+            localRetryableQueueService.start();
+            queueWithLocalRetry.startQueue();
+
+            queueWithLocalRetry.recordFutureNotification(clock.getUTCNow(), new TestNotificationKey("Foo"), TOKEN_ID, SEARCH_KEY_1, SEARCH_KEY_2);
+
+            final NotificationSqlDao notificationSqlDao = dbi.onDemand(NotificationSqlDao.class);
+            await().atMost(10, TimeUnit.SECONDS).until(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    return Iterators.size(notificationSqlDao.getHistoricalQueueEntriesForSearchKeys("notifications-retries:localRetryGracePeriod", SEARCH_KEY_1, SEARCH_KEY_2, notificationQueueConfig.getHistoryTableName())) == 1;
+                }
+            });
+
+            // Give the notification queue a chance to (wrongly) dispatch the marker
+            Thread.sleep(1000);
+
+            // The original attempt and a single retry: the marker was claimed before the local attempt, and then removed
+            Assert.assertEquals(nbInvocations.get(), 2);
+            final List<NotificationEventModelDao> markers = ImmutableList.<NotificationEventModelDao>copyOf(notificationSqlDao.getHistoricalQueueEntriesForSearchKeys("notifications-retries:localRetryGracePeriod", SEARCH_KEY_1, SEARCH_KEY_2, notificationQueueConfig.getHistoryTableName()));
+            Assert.assertEquals(markers.size(), 1);
+            Assert.assertEquals(markers.get(0).getProcessingState(), PersistentQueueEntryLifecycleState.REMOVED);
+        } finally {
+            queueWithLocalRetry.stopQueue();
+            localRetryableQueueService.stop();
+        }
+    }
+
+    private NotificationQueueConfig createLocalRetriesConfig(final String localRetryThreshold, final String markerGracePeriod) {
+        final Properties properties = new Properties();
+        properties.putAll(System.getProperties());
+        properties.setProperty("org.killbill.notificationq.main.retry.local.threshold", localRetryThreshold);
+        properties.setProperty("org.killbill.notificationq.main.retry.local.markerGracePeriod", markerGracePeriod);
+        return new ConfigurationObjectFactory(new SimplePropertyConfigSource(properties)).buildWithReplacements(NotificationQueueConfig.class,
+                                                                                                            ImmutableMap.<String, String>of("instanceName", "main"));
+    }
 }
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2014-2019 Groupon, Inc
+ * Copyright 2014-2019 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.notificationq;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.killbill.notificationq.dao.NotificationEventModelDao;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+public class TestWeightedFairScheduler {
+
+    private static final String PAYMENT = "payment-service:payment-queue";
+    private static final String INVOICE = "invoice-service:retry-queue";
+
+    @Test(groups = "fast")
+    public void testParseQueueValues() {
+        Assert.assertTrue(WeightedFairScheduler.parseQueueValues("").isEmpty());
+        Assert.assertTrue(WeightedFairScheduler.parseQueueValues(null).isEmpty());
+
+        final Map<String, Integer> values = WeightedFairScheduler.parseQueueValues(" payment-service:payment-queue=4, invoice-service:retry-queue = 1 ,");
+        Assert.assertEquals(values.size(), 2);
+        Assert.assertEquals(values.get(PAYMENT), (Integer) 4);
+        Assert.assertEquals(values.get(INVOICE), (Integer) 1);
+
+        try {
+            WeightedFairScheduler.parseQueueValues("payment-service:payment-queue");
+            Assert.fail();
+        } catch (final IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testWeightedBudgets() {
+        final WeightedFairScheduler scheduler = new WeightedFairScheduler(ImmutableMap.<String, Integer>of(PAYMENT, 3), ImmutableMap.<String, Integer>of());
+        final List<String> queueNames = ImmutableList.<String>of(PAYMENT, INVOICE);
+
+        // Both queues backlogged: 3/4 of the batch for payments, 1/4 for invoices
+        Map<String, Integer> budgets = scheduler.nextRound(queueNames, 100);
+        Assert.assertEquals(budgets.get(PAYMENT), (Integer) 75);
+        Assert.assertEquals(budgets.get(INVOICE), (Integer) 25);
+        scheduler.onFetched(PAYMENT, 75, 75);
+        scheduler.onFetched(INVOICE, 25, 25);
+
+        // The first queue served rotates
+        budgets = scheduler.nextRound(queueNames, 100);
+        Assert.assertEquals(ImmutableList.copyOf(budgets.keySet()), ImmutableList.<String>of(INVOICE, PAYMENT));
+        Assert.assertEquals(budgets.get(PAYMENT), (Integer) 75);
+        Assert.assertEquals(budgets.get(INVOICE), (Integer) 25);
+
+        // Payments drained: they lose their credits
+        scheduler.onFetched(PAYMENT, 75, 10);
+        scheduler.onFetched(INVOICE, 25, 25);
+        budgets = scheduler.nextRound(queueNames, 100);
+        Assert.assertEquals(budgets.get(PAYMENT), (Integer) 75);
+        Assert.assertEquals(budgets.get(INVOICE), (Integer) 25);
+    }
+
+    @Test(groups = "fast")
+    public void testBudgetsBoundedByBatchSize() {
+        final WeightedFairScheduler scheduler = new WeightedFairScheduler(ImmutableMap.<String, Integer>of(PAYMENT, 10, INVOICE, 10), ImmutableMap.<String, Integer>of());
+        final List<String> queueNames = ImmutableList.<String>of(PAYMENT, INVOICE);
+
+        // Quantum is 1 entry per unit of weight, but only 10 entries can be claimed in total
+        Map<String, Integer> budgets = scheduler.nextRound(queueNames, 10);
+        Assert.assertEquals(budgets.size(), 1);
+        Assert.assertEquals(budgets.get(PAYMENT), (Integer) 10);
+        scheduler.onFetched(PAYMENT, 10, 10);
+
+        // Invoices kept their credits and are served first
+        budgets = scheduler.nextRound(queueNames, 10);
+        Assert.assertEquals(budgets.size(), 1);
+        Assert.assertEquals(budgets.get(INVOICE), (Integer) 10);
+    }
+
+    @Test(groups = "fast")
+    public void testMaxInflightEntries() {
+        final WeightedFairScheduler scheduler = new WeightedFairScheduler(ImmutableMap.<String, Integer>of(), ImmutableMap.<String, Integer>of(INVOICE, 5));
+        final List<String> queueNames = ImmutableList.<String>of(PAYMENT, INVOICE);
+
+        for (int i = 0; i < 3; i++) {
+            scheduler.onDispatched(INVOICE);
+        }
+        Assert.assertEquals(scheduler.getNbInflightEntries(INVOICE), 3);
+
+        Map<String, Integer> budgets = scheduler.nextRound(queueNames, 100);
+        Assert.assertEquals(budgets.get(PAYMENT), (Integer) 50);
+        Assert.assertEquals(budgets.get(INVOICE), (Integer) 2);
+        scheduler.onFetched(PAYMENT, 50, 50);
+        scheduler.onFetched(INVOICE, 2, 2);
+        scheduler.onDispatched(INVOICE);
+        scheduler.onDispatched(INVOICE);
+
+        // Capped
+        budgets = scheduler.nextRound(queueNames, 100);
+        Assert.assertNull(budgets.get(INVOICE));
+        scheduler.onFetched(PAYMENT, 50, 50);
+
+        // Slots released
+        scheduler.onDone(INVOICE);
+        scheduler.onDone(INVOICE);
+        budgets = scheduler.nextRound(queueNames, 100);
+        Assert.assertEquals(budgets.get(INVOICE), (Integer) 2);
+
+        // Never negative
+        scheduler.reset();
+        scheduler.onDone(INVOICE);
+        Assert.assertEquals(scheduler.getNbInflightEntries(INVOICE), 0);
+    }
+
+    @Test(groups = "fast")
+    public void testInterleave() {
+        final WeightedFairScheduler scheduler = new WeightedFairScheduler(ImmutableMap.<String, Integer>of(PAYMENT, 2), ImmutableMap.<String, Integer>of());
+
+        final Map<String, List<NotificationEventModelDao>> entriesPerQueue = new LinkedHashMap<String, List<NotificationEventModelDao>>();
+        entriesPerQueue.put(INVOICE, createEntries(INVOICE, 4));
+        entriesPerQueue.put(PAYMENT, createEntries(PAYMENT, 3));
+
+        final List<String> queueNames = new ArrayList<String>();
+        for (final NotificationEventModelDao entry : scheduler.interleave(entriesPerQueue)) {
+            queueNames.add(entry.getQueueName());
+        }
+        Assert.assertEquals(queueNames, ImmutableList.<String>of(INVOICE, PAYMENT, PAYMENT, INVOICE, PAYMENT, INVOICE, INVOICE));
+    }
+
+    private List<NotificationEventModelDao> createEntries(final String queueName, final int nbEntries) {
+        final List<NotificationEventModelDao> entries = new ArrayList<NotificationEventModelDao>();
+        for (int i = 0; i < nbEntries; i++) {
+            final NotificationEventModelDao entry = new NotificationEventModelDao();
+            entry.setQueueName(queueName);
+            entries.add(entry);
+        }
+        return entries;
+    }
+}
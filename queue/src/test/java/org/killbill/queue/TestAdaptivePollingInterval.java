@@ -0,0 +1,66 @@
+/*
+ * Copyright 2014-2019 Groupon, Inc
+ * Copyright 2014-2019 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.queue;
+
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+
+public class TestAdaptivePollingInterval {
+
+    @Test(groups = "fast")
+    public void testDisabled() {
+        final AdaptivePollingInterval pollingInterval = new AdaptivePollingInterval(false, 3000, 30000, 10);
+        assertEquals(pollingInterval.onDispatch(0), 3000);
+        assertEquals(pollingInterval.onDispatch(0), 3000);
+        assertEquals(pollingInterval.onDispatch(10), 3000);
+        assertEquals(pollingInterval.onDispatch(5), 3000);
+        assertEquals(pollingInterval.getCurrentSleepTimeMs(), 3000);
+    }
+
+    @Test(groups = "fast")
+    public void testBackoffAndReset() {
+        final AdaptivePollingInterval pollingInterval = new AdaptivePollingInterval(true, 3000, 20000, 10);
+        assertEquals(pollingInterval.getCurrentSleepTimeMs(), 3000);
+
+        // Exponential backoff on empty polls, bounded by the max
+        assertEquals(pollingInterval.onDispatch(0), 6000);
+        assertEquals(pollingInterval.onDispatch(0), 12000);
+        assertEquals(pollingInterval.onDispatch(0), 20000);
+        assertEquals(pollingInterval.onDispatch(0), 20000);
+        assertEquals(pollingInterval.getCurrentSleepTimeMs(), 20000);
+
+        // Partial batch: back to the default polling interval
+        assertEquals(pollingInterval.onDispatch(3), 3000);
+
+        // Full batch: poll again right away
+        assertEquals(pollingInterval.onDispatch(10), 0);
+        assertEquals(pollingInterval.getCurrentSleepTimeMs(), 0);
+
+        // Empty poll after a full batch
+        assertEquals(pollingInterval.onDispatch(0), 3000);
+        assertEquals(pollingInterval.onDispatch(0), 6000);
+    }
+
+    @Test(groups = "fast")
+    public void testMaxLowerThanMin() {
+        final AdaptivePollingInterval pollingInterval = new AdaptivePollingInterval(true, 3000, 1000, 10);
+        assertEquals(pollingInterval.onDispatch(0), 3000);
+        assertEquals(pollingInterval.onDispatch(0), 3000);
+    }
+}
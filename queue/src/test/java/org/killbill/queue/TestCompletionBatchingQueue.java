@@ -0,0 +1,94 @@
+/*
+ * Copyright 2014-2019 Groupon, Inc
+ * Copyright 2014-2019 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.queue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class TestCompletionBatchingQueue {
+
+    @Test(groups = "fast")
+    public void testFullBatchIsReturnedRightAway() throws Exception {
+        final CompletionBatchingQueue<Long> queue = new CompletionBatchingQueue<Long>(10, 1, TimeUnit.HOURS);
+        for (long i = 0; i < 25; i++) {
+            queue.add(i);
+        }
+
+        final List<Long> batch = new ArrayList<Long>();
+        assertEquals(queue.drainBatch(batch, 1, TimeUnit.HOURS), 10);
+        assertEquals(batch.get(0), (Long) 0L);
+        assertEquals(batch.get(9), (Long) 9L);
+        assertEquals(queue.drainBatch(batch, 1, TimeUnit.HOURS), 10);
+        assertEquals(queue.size(), 5);
+    }
+
+    @Test(groups = "fast")
+    public void testPartialBatchWaitsForMaxDelay() throws Exception {
+        final CompletionBatchingQueue<Long> queue = new CompletionBatchingQueue<Long>(10, 200, TimeUnit.MILLISECONDS);
+        queue.add(1L);
+
+        final List<Long> batch = new ArrayList<Long>();
+        final long ini = System.nanoTime();
+        assertEquals(queue.drainBatch(batch, 1, TimeUnit.SECONDS), 1);
+        assertTrue(System.nanoTime() - ini >= TimeUnit.MILLISECONDS.toNanos(150));
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test(groups = "fast")
+    public void testIdleTimeout() throws Exception {
+        final CompletionBatchingQueue<Long> queue = new CompletionBatchingQueue<Long>(10, 0, TimeUnit.MILLISECONDS);
+        final List<Long> batch = new ArrayList<Long>();
+        assertEquals(queue.drainBatch(batch, 10, TimeUnit.MILLISECONDS), 0);
+        assertTrue(batch.isEmpty());
+    }
+
+    @Test(groups = "fast")
+    public void testConcurrentProducers() throws Exception {
+        final int nbProducers = 4;
+        final int nbEntriesPerProducer = 10000;
+        final CompletionBatchingQueue<Long> queue = new CompletionBatchingQueue<Long>(100, 5, TimeUnit.MILLISECONDS);
+
+        final CountDownLatch done = new CountDownLatch(nbProducers);
+        for (int p = 0; p < nbProducers; p++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (long i = 0; i < nbEntriesPerProducer; i++) {
+                        queue.add(i);
+                    }
+                    done.countDown();
+                }
+            }).start();
+        }
+
+        final List<Long> consumed = new ArrayList<Long>();
+        while (consumed.size() < nbProducers * nbEntriesPerProducer) {
+            final int n = queue.drainBatch(consumed, 5, TimeUnit.SECONDS);
+            assertTrue(n > 0 && n <= 100);
+        }
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertTrue(queue.isEmpty());
+    }
+}
@@ -17,7 +17,10 @@
 
 package org.killbill.queue;
 
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.TimeUnit;
 
@@ -26,12 +29,15 @@ import org.killbill.TestSetup;
 import org.killbill.bus.api.PersistentBusConfig;
 import org.killbill.bus.dao.BusEventModelDao;
 import org.killbill.bus.dao.PersistentBusSqlDao;
+import org.killbill.queue.api.PersistentQueueEntryLifecycleState;
 import org.skife.config.TimeSpan;
 import org.testng.annotations.BeforeClass;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
 
 public class TestDBBackedQueueWithInflightQ extends TestSetup {
 
@@ -73,6 +79,110 @@ public class TestDBBackedQueueWithInflightQ extends TestSetup {
 
     }
 
+    @Test(groups = "slow")
+    public void testBoundedInflightQWithExistingEntries() {
+
+        final int NB_ENTRIES = 2345;
+        final int CAPACITY = 1000;
+        final PersistentBusConfig config = createConfig(CAPACITY);
+        queue = new DBBackedQueueWithInflightQueue<BusEventModelDao>(clock, dbi, PersistentBusSqlDao.class, config, "testBoundedInflightQWithExistingEntries", metricRegistry, databaseTransactionNotificationApi);
+
+        // Insert entries prior initialization
+        for (int i = 0; i < NB_ENTRIES; i++) {
+            final BusEventModelDao input = createEntry(new Long(i + 5));
+            sqlDao.insertEntry(input, config.getTableName());
+        }
+
+        queue.initialize();
+
+        // Only CAPACITY entries are loaded, the others are left in the database
+        assertEquals(queue.getInflightQSize(), CAPACITY);
+
+        // Drain the queue: the remaining entries are fetched once the inflightQ goes below the low-water mark
+        final Set<Long> dispatchedRecordIds = new HashSet<Long>();
+        while (dispatchedRecordIds.size() < NB_ENTRIES) {
+            final List<BusEventModelDao> entries = queue.getReadyEntries().getEntries();
+            assertFalse(entries.isEmpty());
+            for (final BusEventModelDao entry : entries) {
+                // Each entry is dispatched exactly once
+                assertTrue(dispatchedRecordIds.add(entry.getRecordId()));
+                entry.setProcessingState(PersistentQueueEntryLifecycleState.PROCESSED);
+            }
+            queue.moveEntriesToHistory(entries);
+            assertTrue(queue.getInflightQSize() <= CAPACITY);
+        }
+
+        assertEquals(queue.getInflightQSize(), 0);
+        assertEquals(queue.getNbReadyEntries(), 0);
+    }
+
+    @Test(groups = "slow")
+    public void testBatchedUpdateOnError() {
+
+        final int NB_ENTRIES = 150;
+        final PersistentBusConfig config = createConfig();
+        queue = new DBBackedQueueWithInflightQueue<BusEventModelDao>(clock, dbi, PersistentBusSqlDao.class, config, "testBatchedUpdateOnError", metricRegistry, databaseTransactionNotificationApi);
+
+        for (int i = 0; i < NB_ENTRIES; i++) {
+            sqlDao.insertEntry(createEntry(new Long(i + 5)), config.getTableName());
+        }
+        queue.initialize();
+
+        final List<BusEventModelDao> failed = new ArrayList<BusEventModelDao>();
+        while (failed.size() < NB_ENTRIES) {
+            for (final BusEventModelDao entry : queue.getReadyEntries().getEntries()) {
+                entry.setErrorCount(entry.getErrorCount() + 1);
+                failed.add(entry);
+            }
+        }
+        assertEquals(queue.getInflightQSize(), 0);
+
+        queue.updateOnError(failed);
+
+        // All entries are available again, with their new error count, and back in the inflightQ
+        assertEquals(queue.getInflightQSize(), NB_ENTRIES);
+        assertEquals(queue.getNbReadyEntries(), NB_ENTRIES);
+        for (final BusEventModelDao entry : queue.getReadyEntries().getEntries()) {
+            assertEquals(entry.getErrorCount(), (Long) 1L);
+        }
+    }
+
+    @Test(groups = "slow")
+    public void testKeepCompletedEntriesInPlace() {
+
+        final int NB_ENTRIES = 150;
+        final PersistentBusConfig config = createConfig(0, true);
+        queue = new DBBackedQueueWithInflightQueue<BusEventModelDao>(clock, dbi, PersistentBusSqlDao.class, config, "testKeepCompletedEntriesInPlace", metricRegistry, databaseTransactionNotificationApi);
+
+        for (int i = 0; i < NB_ENTRIES; i++) {
+            sqlDao.insertEntry(createEntry(new Long(i + 5)), config.getTableName());
+        }
+        queue.initialize();
+
+        final List<BusEventModelDao> completed = new ArrayList<BusEventModelDao>();
+        while (completed.size() < NB_ENTRIES) {
+            for (final BusEventModelDao entry : queue.getReadyEntries().getEntries()) {
+                entry.setProcessingState(PersistentQueueEntryLifecycleState.PROCESSED);
+                completed.add(entry);
+            }
+        }
+        queue.moveEntriesToHistory(completed);
+
+        // Entries are only marked as completed
+        assertEquals(queue.getNbReadyEntries(), 0);
+        assertEquals(sqlDao.getMaxRecordId(config.getHistoryTableName()), null);
+        assertEquals(sqlDao.getCompletedEntriesInRange(0, Long.MAX_VALUE, NB_ENTRIES + 1, config.getTableName()).size(), NB_ENTRIES);
+
+        // Leave one entry behind, which should not be archived
+        sqlDao.insertEntry(createEntry(1L), config.getTableName());
+
+        final DefaultArchiver archiver = new DefaultArchiver(queue, config, "testKeepCompletedEntriesInPlace");
+        assertEquals(archiver.archiveEntries(), NB_ENTRIES);
+        assertEquals(archiver.archiveEntries(), 0);
+        assertEquals(queue.getNbReadyEntries(), 1);
+        assertEquals(sqlDao.getMinRecordId(config.getTableName()), sqlDao.getMaxRecordId(config.getTableName()));
+    }
+
     private BusEventModelDao createEntry(final Long searchKey1, final String owner) {
         final String json = "json";
         return new BusEventModelDao(owner, clock.getUTCNow(), String.class.getName(), json, UUID.randomUUID(), searchKey1, 1L);
@@ -83,6 +193,14 @@ public class TestDBBackedQueueWithInflightQ extends TestSetup {
     }
 
     private PersistentBusConfig createConfig() {
+        return createConfig(0);
+    }
+
+    private PersistentBusConfig createConfig(final int inflightQueueCapacity) {
+        return createConfig(inflightQueueCapacity, false);
+    }
+
+    private PersistentBusConfig createConfig(final int inflightQueueCapacity, final boolean keepCompletedEntriesInPlace) {
         return new PersistentBusConfig() {
             @Override
             public boolean isInMemory() {
@@ -160,6 +278,21 @@ public class TestDBBackedQueueWithInflightQ extends TestSetup {
             public TimeSpan getReapSchedule() {
                 return new TimeSpan(3, TimeUnit.MINUTES);
             }
+
+            @Override
+            public int getInflightQueueCapacity() {
+                return inflightQueueCapacity;
+            }
+
+            @Override
+            public boolean isKeepCompletedEntriesInPlace() {
+                return keepCompletedEntriesInPlace;
+            }
+
+            @Override
+            public int getArchiverChunkSize() {
+                return 100;
+            }
         };
     }
 }
@@ -0,0 +1,174 @@
+/*
+ * Copyright 2014-2019 Groupon, Inc
+ * Copyright 2014-2019 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.queue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.joda.time.DateTime;
+import org.killbill.CreatorName;
+import org.killbill.TestSetup;
+import org.killbill.bus.api.PersistentBusConfig;
+import org.killbill.bus.dao.BusEventModelDao;
+import org.killbill.bus.dao.PersistentBusSqlDao;
+import org.killbill.notificationq.dao.NotificationEventModelDao;
+import org.killbill.notificationq.dao.NotificationSqlDao;
+import org.killbill.queue.dao.QueueSqlDao;
+import org.killbill.queue.wakeup.QueueWakeupSource;
+import org.skife.config.ConfigurationObjectFactory;
+import org.skife.config.SimplePropertyConfigSource;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class TestDBBackedQueueWithPolling extends TestSetup {
+
+    @Test(groups = "slow")
+    public void testConcurrentSkipLockedClaims() throws Exception {
+        final int NB_ENTRIES = 1000;
+        final int NB_THREADS_PER_QUEUE = 2;
+
+        final Properties properties = new Properties();
+        properties.setProperty("org.killbill.persistent.bus.skipLocked.queue.mode", "POLLING");
+        properties.setProperty("org.killbill.persistent.bus.skipLocked.claim.skipLocked", "true");
+        properties.setProperty("org.killbill.persistent.bus.skipLocked.claimed", "10");
+        final PersistentBusConfig config = new ConfigurationObjectFactory(new SimplePropertyConfigSource(properties)).buildWithReplacements(PersistentBusConfig.class,
+                                                                                                                                         ImmutableMap.<String, String>of("instanceName", "skipLocked"));
+        assertTrue(config.isSkipLockedClaimEnabled());
+
+        // Two queues on the same table, as two nodes would do
+        final List<DBBackedQueueWithPolling<BusEventModelDao>> queues = new ArrayList<DBBackedQueueWithPolling<BusEventModelDao>>();
+        for (int i = 0; i < 2; i++) {
+            final DBBackedQueueWithPolling<BusEventModelDao> queue = new DBBackedQueueWithPolling<BusEventModelDao>(clock, dbi, PersistentBusSqlDao.class, config, "testConcurrentSkipLockedClaims-" + i, metricRegistry);
+            queue.initialize();
+            queues.add(queue);
+        }
+
+        final PersistentBusSqlDao sqlDao = dbi.onDemand(PersistentBusSqlDao.class);
+        for (int i = 0; i < NB_ENTRIES; i++) {
+            sqlDao.insertEntry(createEntry(new Long(i + 5)), config.getTableName());
+        }
+
+        final Set<Long> claimedRecordIds = ConcurrentHashMap.<Long>newKeySet();
+        final AtomicInteger nbClaims = new AtomicInteger();
+        final ExecutorService executor = Executors.newFixedThreadPool(queues.size() * NB_THREADS_PER_QUEUE);
+        try {
+            final List<Future<Void>> futures = new ArrayList<Future<Void>>();
+            for (final DBBackedQueueWithPolling<BusEventModelDao> queue : queues) {
+                for (int i = 0; i < NB_THREADS_PER_QUEUE; i++) {
+                    futures.add(executor.submit(new Callable<Void>() {
+                        @Override
+                        public Void call() {
+                            final long deadline = System.currentTimeMillis() + 30000;
+                            while (nbClaims.get() < NB_ENTRIES && System.currentTimeMillis() < deadline) {
+                                for (final BusEventModelDao entry : queue.getReadyEntries().getEntries()) {
+                                    nbClaims.incrementAndGet();
+                                    claimedRecordIds.add(entry.getRecordId());
+                                }
+                            }
+                            return null;
+                        }
+                    }));
+                }
+            }
+            for (final Future<Void> future : futures) {
+                future.get(60, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+            for (final DBBackedQueueWithPolling<BusEventModelDao> queue : queues) {
+                queue.close();
+            }
+        }
+
+        // Every entry is claimed, and none of them twice
+        assertEquals(claimedRecordIds.size(), NB_ENTRIES);
+        assertEquals(nbClaims.get(), NB_ENTRIES);
+        assertEquals(queues.get(0).getNbReadyEntries(clock.getUTCNow().toDate()), 0);
+    }
+
+    @Test(groups = "slow")
+    public void testWakeupOnlyForReadyEntries() {
+        final AtomicInteger nbWakeups = new AtomicInteger();
+        final QueueWakeupSource wakeupSource = new QueueWakeupSource() {
+            @Override
+            public void start() {
+            }
+
+            @Override
+            public void stop() {
+            }
+
+            @Override
+            public void onEntryInsertedFromTransaction(final QueueSqlDao<?> transactional) {
+                nbWakeups.incrementAndGet();
+            }
+
+            @Override
+            public boolean awaitWork(final long timeout, final TimeUnit unit) {
+                return false;
+            }
+        };
+        final DBBackedQueueWithPolling<NotificationEventModelDao> queue = new DBBackedQueueWithPolling<NotificationEventModelDao>(clock, dbi, NotificationSqlDao.class, notificationQueueConfig, "testWakeupOnlyForReadyEntries", metricRegistry, wakeupSource) {
+            @Override
+            protected boolean isReadyOnInsert(final NotificationEventModelDao entry) {
+                return !entry.getEffectiveDate().isAfter(clock.getUTCNow());
+            }
+        };
+        queue.initialize();
+        try {
+            final DateTime now = clock.getUTCNow();
+
+            queue.insertEntry(createNotification(now.plusDays(1)));
+            queue.insertEntries(ImmutableList.<NotificationEventModelDao>of(createNotification(now.plusDays(1)), createNotification(now.plusDays(2))));
+            // Future notifications only
+            assertEquals(nbWakeups.get(), 0);
+
+            queue.insertEntry(createNotification(now));
+            assertEquals(nbWakeups.get(), 1);
+
+            queue.insertEntries(ImmutableList.<NotificationEventModelDao>of(createNotification(now.plusDays(1)), createNotification(now)));
+            assertEquals(nbWakeups.get(), 2);
+        } finally {
+            queue.close();
+        }
+    }
+
+    private NotificationEventModelDao createNotification(final DateTime effectiveDate) {
+        return new NotificationEventModelDao(CreatorName.get(), clock.getUTCNow(), String.class.getName(), "json", UUID.randomUUID(), 1L, 1L, UUID.randomUUID(), effectiveDate, "testWakeupOnlyForReadyEntries");
+    }
+
+    private BusEventModelDao createEntry(final Long searchKey1) {
+        final String json = "json";
+        return new BusEventModelDao(CreatorName.get(), clock.getUTCNow(), String.class.getName(), json, UUID.randomUUID(), searchKey1, 1L);
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2014-2019 Groupon, Inc
+ * Copyright 2014-2019 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.queue;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.killbill.clock.ClockMock;
+import org.killbill.commons.jdbi.notification.DatabaseTransactionEvent;
+import org.killbill.commons.jdbi.notification.DatabaseTransactionEventType;
+import org.killbill.commons.jdbi.notification.DatabaseTransactionNotificationApi;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+
+public class TestHashedTimingWheel {
+
+    private ClockMock clock;
+    private List<Long> expiredRecordIds;
+    private HashedTimingWheel.ExpiryHandler expiryHandler;
+
+    @BeforeMethod(groups = "fast")
+    public void beforeMethod() {
+        clock = new ClockMock();
+        clock.setTime(new DateTime(2020, 1, 1, 0, 0, 0, 0, DateTimeZone.UTC));
+        expiredRecordIds = new CopyOnWriteArrayList<Long>();
+        expiryHandler = new HashedTimingWheel.ExpiryHandler() {
+            @Override
+            public void onExpired(final List<Long> recordIds) {
+                expiredRecordIds.addAll(recordIds);
+            }
+        };
+    }
+
+    @Test(groups = "fast")
+    public void testExpiry() {
+        final long now = clock.getUTCNow().getMillis();
+        final HashedTimingWheel wheel = new HashedTimingWheel("test-wheel", clock, 100, 10, 100, expiryHandler, null);
+
+        Assert.assertTrue(wheel.schedule(1L, now + 250));
+        Assert.assertTrue(wheel.schedule(2L, now + 50));
+        // Two revolutions ahead, same bucket as 1
+        Assert.assertTrue(wheel.schedule(3L, now + 2250));
+        // Already due
+        Assert.assertTrue(wheel.schedule(4L, now - 1000));
+        Assert.assertEquals(wheel.getNbEntries(), 4);
+
+        // Nothing expires within the current tick
+        Assert.assertEquals(wheel.advance(now + 99), ImmutableList.<Long>of());
+
+        // Expired once the clock has moved past their tick
+        Assert.assertEquals(wheel.advance(now + 100), ImmutableList.<Long>of(2L, 4L));
+        Assert.assertEquals(wheel.advance(now + 250), ImmutableList.<Long>of());
+        Assert.assertEquals(wheel.advance(now + 300), ImmutableList.<Long>of(1L));
+        Assert.assertEquals(wheel.getNbEntries(), 1);
+
+        Assert.assertEquals(wheel.advance(now + 2299), ImmutableList.<Long>of());
+        Assert.assertEquals(wheel.advance(now + 2300), ImmutableList.<Long>of(3L));
+        Assert.assertEquals(wheel.getNbEntries(), 0);
+    }
+
+    @Test(groups = "fast")
+    public void testClockJump() {
+        final long now = clock.getUTCNow().getMillis();
+        final HashedTimingWheel wheel = new HashedTimingWheel("test-wheel", clock, 100, 10, 100, expiryHandler, null);
+        wheel.schedule(1L, now + 500);
+        wheel.schedule(2L, now + 5000);
+        wheel.schedule(3L, now + 50000);
+
+        // More than one revolution at once
+        clock.addDeltaFromReality(10000);
+        wheel.expireEntries();
+        Assert.assertEquals(ImmutableSet.<Long>copyOf(expiredRecordIds), ImmutableSet.<Long>of(1L, 2L));
+        Assert.assertEquals(wheel.getNbEntries(), 1);
+    }
+
+    @Test(groups = "fast")
+    public void testMaxEntries() {
+        final long now = clock.getUTCNow().getMillis();
+        final HashedTimingWheel wheel = new HashedTimingWheel("test-wheel", clock, 100, 10, 2, expiryHandler, null);
+        Assert.assertTrue(wheel.schedule(1L, now + 100));
+        Assert.assertTrue(wheel.schedule(2L, now + 100));
+        Assert.assertFalse(wheel.schedule(3L, now + 100));
+        Assert.assertEquals(wheel.getNbEntries(), 2);
+    }
+
+    @Test(groups = "fast")
+    public void testScheduleFromTransaction() {
+        final long now = clock.getUTCNow().getMillis();
+        final DatabaseTransactionNotificationApi databaseTransactionNotificationApi = new DatabaseTransactionNotificationApi();
+        final HashedTimingWheel wheel = new HashedTimingWheel("test-wheel", clock, 100, 10, 100, expiryHandler, databaseTransactionNotificationApi);
+
+        // Ignored until started
+        wheel.scheduleFromTransaction(1L, now + 100);
+        databaseTransactionNotificationApi.dispatchNotification(new DatabaseTransactionEvent(DatabaseTransactionEventType.COMMIT));
+        Assert.assertEquals(wheel.getNbEntries(), 0);
+
+        wheel.start();
+        try {
+            // Only scheduled on commit
+            wheel.scheduleFromTransaction(2L, now + 100);
+            wheel.scheduleFromTransaction(3L, now + 200);
+            Assert.assertEquals(wheel.getNbEntries(), 0);
+            databaseTransactionNotificationApi.dispatchNotification(new DatabaseTransactionEvent(DatabaseTransactionEventType.COMMIT));
+            Assert.assertEquals(wheel.getNbEntries(), 2);
+
+            // Dropped on rollback
+            wheel.scheduleFromTransaction(4L, now + 100);
+            databaseTransactionNotificationApi.dispatchNotification(new DatabaseTransactionEvent(DatabaseTransactionEventType.ROLLBACK));
+            Assert.assertEquals(wheel.getNbEntries(), 2);
+        } finally {
+            wheel.stop();
+        }
+        Assert.assertEquals(wheel.getNbEntries(), 0);
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2014-2019 Groupon, Inc
+ * Copyright 2014-2019 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.queue;
+
+import java.util.List;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableList;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+
+public class TestHistoryRetentionService {
+
+    @Test(groups = "fast")
+    public void testPartitionNames() {
+        final DateTime october = new DateTime(2026, 10, 1, 0, 0, DateTimeZone.UTC);
+        assertEquals(HistoryRetentionService.getPartitionSuffix(october), "p202610");
+
+        // MySQL and PostgreSQL naming
+        assertEquals(HistoryRetentionService.getPartitionMonth("p202610"), october);
+        assertEquals(HistoryRetentionService.getPartitionMonth("bus_events_history_p202610"), october);
+        assertNull(HistoryRetentionService.getPartitionMonth("pmax"));
+        assertNull(HistoryRetentionService.getPartitionMonth("bus_events_history_default"));
+    }
+
+    @Test(groups = "fast")
+    public void testMissingMonths() {
+        final DateTime now = new DateTime(2026, 12, 18, 10, 30, DateTimeZone.UTC);
+
+        final List<DateTime> allMissing = HistoryRetentionService.getMissingMonths(ImmutableList.<String>of("pmax"), now, 2);
+        assertEquals(allMissing.size(), 3);
+        assertEquals(allMissing.get(0), new DateTime(2026, 12, 1, 0, 0, DateTimeZone.UTC));
+        assertEquals(allMissing.get(2), new DateTime(2027, 2, 1, 0, 0, DateTimeZone.UTC));
+
+        final List<DateTime> missing = HistoryRetentionService.getMissingMonths(ImmutableList.<String>of("notifications_history_p202612", "notifications_history_p202701", "notifications_history_default"), now, 2);
+        assertEquals(missing.size(), 1);
+        assertEquals(missing.get(0), new DateTime(2027, 2, 1, 0, 0, DateTimeZone.UTC));
+    }
+
+    @Test(groups = "fast")
+    public void testExpiredPartitions() {
+        final List<String> partitions = ImmutableList.<String>of("p202608", "p202609", "p202610", "pmax");
+
+        // September entries are all older than October 1st
+        assertEquals(HistoryRetentionService.getExpiredPartitions(partitions, new DateTime(2026, 10, 1, 0, 0, DateTimeZone.UTC)), ImmutableList.<String>of("p202608", "p202609"));
+        // ... but not older than September 30th
+        assertEquals(HistoryRetentionService.getExpiredPartitions(partitions, new DateTime(2026, 9, 30, 23, 0, DateTimeZone.UTC)), ImmutableList.<String>of("p202608"));
+    }
+}
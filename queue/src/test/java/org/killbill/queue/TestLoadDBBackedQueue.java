@@ -67,7 +67,6 @@ public class TestLoadDBBackedQueue extends TestSetup {
         assertEquals(ready.size(), 0);
     }
 
-
     @Test(groups = "load")
     public void testPollingLoad() {
 
@@ -78,7 +77,6 @@ public class TestLoadDBBackedQueue extends TestSetup {
         queue = new DBBackedQueueWithPolling<BusEventModelDao>(clock, dbi, PersistentBusSqlDao.class, config, "perf-bus_event", metricRegistry);
         queue.initialize();
 
-
         for (int i = 0; i < NB_EVENTS; i++) {
             final BusEventModelDao input = createEntry(new Long(i));
             queue.insertEntry(input);
@@ -115,7 +113,6 @@ public class TestLoadDBBackedQueue extends TestSetup {
                 (cumlGetReadyEntries / 1000000) + " ms, moveEntriesToHistory = " + (cumlMoveEntriesToHistory / 1000000));
     }
 
-
     @Test(groups = "load")
     public void testInflightQLoad() throws InterruptedException {
 
@@ -128,7 +125,6 @@ public class TestLoadDBBackedQueue extends TestSetup {
             queue.insertEntry(input);
         }
 
-
         final int maxThreads = 3;
         final Thread[] readers = new Thread[maxThreads];
         final AtomicLong consumed = new AtomicLong(0);
@@ -156,13 +152,11 @@ public class TestLoadDBBackedQueue extends TestSetup {
         log.info(String.format("Processed %s events in %s msec => rate = %s", nbEntries, elapsed,
                 ((double) (nbEntries) / (double) elapsed) * 1000));
 
-
         final List<BusEventModelDao> ready = sqlDao.getReadyEntries(clock.getUTCNow().toDate(), 1000, OWNER, "bus_events");
         assertEquals(ready.size(), 0);
 
     }
 
-
     public class ReaderRunnable implements Runnable {
 
         private final DBBackedQueue<BusEventModelDao> queue;
@@ -199,7 +193,6 @@ public class TestLoadDBBackedQueue extends TestSetup {
         }
     }
 
-
     private BusEventModelDao createEntry(final Long searchKey1, final String owner) {
         final String json = "json";
         return new BusEventModelDao(owner, clock.getUTCNow(), String.class.getName(), json, UUID.randomUUID(), searchKey1, 1L);
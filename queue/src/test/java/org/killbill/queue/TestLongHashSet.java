@@ -0,0 +1,77 @@
+/*
+ * Copyright 2014-2019 Groupon, Inc
+ * Copyright 2014-2019 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.queue;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class TestLongHashSet {
+
+    @Test(groups = "fast")
+    public void testAddRemove() {
+        final LongHashSet set = new LongHashSet(2);
+        assertTrue(set.add(1L));
+        assertFalse(set.add(1L));
+        assertTrue(set.add(2L));
+        assertEquals(set.size(), 2);
+        assertTrue(set.contains(1L));
+        assertFalse(set.contains(3L));
+
+        assertTrue(set.remove(1L));
+        assertFalse(set.remove(1L));
+        assertFalse(set.contains(1L));
+        assertTrue(set.contains(2L));
+        assertEquals(set.size(), 1);
+
+        set.clear();
+        assertEquals(set.size(), 0);
+        assertFalse(set.contains(2L));
+    }
+
+    @Test(groups = "fast")
+    public void testAgainstHashSet() {
+        // Random adds and removes (including through resizes), checked against a java.util.HashSet
+        final LongHashSet set = new LongHashSet(4);
+        final Set<Long> expected = new HashSet<Long>();
+        final Random random = new Random(42);
+        for (int i = 0; i < 100000; i++) {
+            final long value = 1 + random.nextInt(5000);
+            if (random.nextBoolean()) {
+                assertEquals(set.add(value), expected.add(value));
+            } else {
+                assertEquals(set.remove(value), expected.remove(value));
+            }
+        }
+        assertEquals(set.size(), expected.size());
+        for (long value = 1; value <= 5000; value++) {
+            assertEquals(set.contains(value), expected.contains(value));
+        }
+    }
+
+    @Test(groups = "fast", expectedExceptions = IllegalArgumentException.class)
+    public void testZeroIsRejected() {
+        new LongHashSet().add(0L);
+    }
+}
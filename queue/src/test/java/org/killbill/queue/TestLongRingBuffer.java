@@ -0,0 +1,153 @@
+/*
+ * Copyright 2014-2019 Groupon, Inc
+ * Copyright 2014-2019 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.queue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class TestLongRingBuffer {
+
+    @Test(groups = "fast")
+    public void testBounded() {
+        final LongRingBuffer buffer = new LongRingBuffer(3);
+        assertTrue(buffer.isEmpty());
+        assertTrue(buffer.offer(1L));
+        assertTrue(buffer.offer(2L));
+        assertTrue(buffer.offer(3L));
+        assertFalse(buffer.offer(4L));
+        assertEquals(buffer.size(), 3);
+
+        final long[] target = new long[2];
+        assertEquals(buffer.drainTo(target), 2);
+        assertEquals(target, new long[]{1L, 2L});
+
+        // Wrap around
+        assertTrue(buffer.offer(4L));
+        assertTrue(buffer.offer(5L));
+        assertFalse(buffer.offer(6L));
+
+        final long[] target2 = new long[5];
+        assertEquals(buffer.drainTo(target2, 1, 4), 3);
+        assertEquals(target2, new long[]{0L, 3L, 4L, 5L, 0L});
+        assertTrue(buffer.isEmpty());
+        assertEquals(buffer.drainTo(target2), 0);
+    }
+
+    @Test(groups = "fast")
+    public void testUnboundedGrowsInOrder() {
+        final LongRingBuffer buffer = new LongRingBuffer();
+        final int nbEntries = 10000;
+
+        // Offset the head so that growing has to unwrap the ring
+        buffer.offer(-1L);
+        buffer.drainTo(new long[1]);
+
+        for (int i = 0; i < nbEntries; i++) {
+            assertTrue(buffer.offer(i));
+        }
+        assertEquals(buffer.size(), nbEntries);
+
+        final long[] target = new long[nbEntries];
+        assertEquals(buffer.drainTo(target), nbEntries);
+        for (int i = 0; i < nbEntries; i++) {
+            assertEquals(target[i], i);
+        }
+        assertTrue(buffer.isEmpty());
+    }
+
+    @Test(groups = "fast")
+    public void testClear() {
+        final LongRingBuffer buffer = new LongRingBuffer(2);
+        buffer.offer(1L);
+        buffer.offer(2L);
+        buffer.clear();
+        assertTrue(buffer.isEmpty());
+        assertTrue(buffer.offer(3L));
+
+        final long[] target = new long[2];
+        assertEquals(buffer.drainTo(target), 1);
+        assertEquals(target[0], 3L);
+    }
+
+    @Test(groups = "fast")
+    public void testAwaitNotEmpty() throws InterruptedException {
+        final LongRingBuffer buffer = new LongRingBuffer();
+        assertFalse(buffer.awaitNotEmpty(10, TimeUnit.MILLISECONDS));
+
+        final Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                buffer.offer(12L);
+            }
+        });
+        producer.start();
+
+        assertTrue(buffer.awaitNotEmpty(5, TimeUnit.SECONDS));
+        producer.join();
+
+        final long[] target = new long[1];
+        assertEquals(buffer.drainTo(target), 1);
+        assertEquals(target[0], 12L);
+    }
+
+    @Test(groups = "fast")
+    public void testConcurrentProducers() throws InterruptedException {
+        final LongRingBuffer buffer = new LongRingBuffer();
+        final int nbProducers = 4;
+        final int nbEntriesPerProducer = 10000;
+
+        final Thread[] producers = new Thread[nbProducers];
+        for (int p = 0; p < nbProducers; p++) {
+            final long base = p * nbEntriesPerProducer;
+            producers[p] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < nbEntriesPerProducer; i++) {
+                        buffer.offer(base + i);
+                    }
+                }
+            });
+            producers[p].start();
+        }
+
+        long sum = 0;
+        int nbConsumed = 0;
+        final long[] target = new long[100];
+        while (nbConsumed < nbProducers * nbEntriesPerProducer) {
+            if (buffer.awaitNotEmpty(5, TimeUnit.SECONDS)) {
+                final int n = buffer.drainTo(target);
+                for (int i = 0; i < n; i++) {
+                    sum += target[i];
+                }
+                nbConsumed += n;
+            }
+        }
+        for (final Thread producer : producers) {
+            producer.join();
+        }
+
+        final long total = (long) nbProducers * nbEntriesPerProducer;
+        assertEquals(sum, total * (total - 1) / 2);
+        assertTrue(buffer.isEmpty());
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2014-2019 Groupon, Inc
+ * Copyright 2014-2019 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.queue;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.killbill.commons.jdbi.notification.DatabaseTransactionEvent;
+import org.killbill.commons.jdbi.notification.DatabaseTransactionEventType;
+import org.killbill.commons.jdbi.notification.DatabaseTransactionNotificationApi;
+import org.testng.annotations.Test;
+
+import com.google.common.base.Supplier;
+
+import static org.testng.Assert.assertEquals;
+
+public class TestReadyEntriesCounter {
+
+    @Test(groups = "fast")
+    public void testIncrementsAndClamping() {
+        final AtomicLong exactCount = new AtomicLong(0);
+        final ReadyEntriesCounter counter = new ReadyEntriesCounter(null, createSupplier(exactCount, new AtomicInteger()), 3600 * 1000L);
+        counter.start();
+
+        // Nothing counted yet
+        assertEquals(counter.getApproximateCount(), 0);
+
+        // Without transaction notifications, inserts are counted right away
+        counter.onEntriesInsertedFromTransaction(5);
+        assertEquals(counter.getApproximateCount(), 5);
+
+        counter.onEntriesClaimed(3);
+        assertEquals(counter.getApproximateCount(), 2);
+
+        counter.onEntriesAvailable(1);
+        assertEquals(counter.getApproximateCount(), 3);
+
+        // Never negative
+        counter.onEntriesClaimed(10);
+        assertEquals(counter.getApproximateCount(), 0);
+
+        counter.stop();
+    }
+
+    @Test(groups = "fast")
+    public void testTransactionalInserts() {
+        final DatabaseTransactionNotificationApi databaseTransactionNotificationApi = new DatabaseTransactionNotificationApi();
+        final ReadyEntriesCounter counter = new ReadyEntriesCounter(databaseTransactionNotificationApi, createSupplier(new AtomicLong(0), new AtomicInteger()), 3600 * 1000L);
+        counter.start();
+        assertEquals(counter.getApproximateCount(), 0);
+
+        // Only counted on commit
+        counter.onEntriesInsertedFromTransaction(2);
+        counter.onEntriesInsertedFromTransaction(3);
+        assertEquals(counter.getApproximateCount(), 0);
+        databaseTransactionNotificationApi.dispatchNotification(new DatabaseTransactionEvent(DatabaseTransactionEventType.COMMIT));
+        assertEquals(counter.getApproximateCount(), 5);
+
+        // Ignored on rollback
+        counter.onEntriesInsertedFromTransaction(4);
+        databaseTransactionNotificationApi.dispatchNotification(new DatabaseTransactionEvent(DatabaseTransactionEventType.ROLLBACK));
+        assertEquals(counter.getApproximateCount(), 5);
+
+        // Nothing pending anymore
+        databaseTransactionNotificationApi.dispatchNotification(new DatabaseTransactionEvent(DatabaseTransactionEventType.COMMIT));
+        assertEquals(counter.getApproximateCount(), 5);
+
+        counter.stop();
+    }
+
+    @Test(groups = "fast")
+    public void testReconciliation() {
+        final AtomicLong exactCount = new AtomicLong(7);
+        final AtomicInteger nbExactQueries = new AtomicInteger();
+
+        // Long interval: reconciled only once, on the first call
+        final ReadyEntriesCounter counter = new ReadyEntriesCounter(null, createSupplier(exactCount, nbExactQueries), 3600 * 1000L);
+        counter.reconcileIfNeeded();
+        assertEquals(counter.getApproximateCount(), 7);
+        counter.onEntriesClaimed(2);
+        exactCount.set(12);
+        counter.reconcileIfNeeded();
+        assertEquals(counter.getApproximateCount(), 5);
+        assertEquals(nbExactQueries.get(), 1);
+
+        // Explicit reconciliation picks up entries not seen by this node
+        counter.reconcile();
+        assertEquals(counter.getApproximateCount(), 12);
+        assertEquals(nbExactQueries.get(), 2);
+
+        // Zero interval: reconciled on every call
+        final AtomicInteger nbExactQueries2 = new AtomicInteger();
+        final ReadyEntriesCounter counter2 = new ReadyEntriesCounter(null, createSupplier(exactCount, nbExactQueries2), 0L);
+        counter2.onEntriesAvailable(100);
+        counter2.reconcileIfNeeded();
+        assertEquals(counter2.getApproximateCount(), 12);
+        counter2.reconcileIfNeeded();
+        assertEquals(counter2.getApproximateCount(), 12);
+        assertEquals(nbExactQueries2.get(), 2);
+
+        // Reading the count never hits the database
+        counter2.getApproximateCount();
+        assertEquals(nbExactQueries2.get(), 2);
+    }
+
+    @Test(groups = "fast")
+    public void testFailedReconciliation() {
+        final ReadyEntriesCounter counter = new ReadyEntriesCounter(null, new Supplier<Long>() {
+            @Override
+            public Long get() {
+                throw new IllegalStateException("Database unavailable");
+            }
+        }, 3600 * 1000L);
+
+        // The approximation is kept
+        counter.onEntriesAvailable(4);
+        counter.reconcileIfNeeded();
+        assertEquals(counter.getApproximateCount(), 4);
+    }
+
+    private Supplier<Long> createSupplier(final AtomicLong exactCount, final AtomicInteger nbExactQueries) {
+        return new Supplier<Long>() {
+            @Override
+            public Long get() {
+                nbExactQueries.incrementAndGet();
+                return exactCount.get();
+            }
+        };
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2014-2019 Groupon, Inc
+ * Copyright 2014-2019 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.queue.codec;
+
+import java.io.IOException;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.killbill.queue.QueueObjectMapper;
+import org.killbill.queue.api.PersistentQueueConfig.EventEncoding;
+import org.testng.annotations.Test;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.common.base.Strings;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class TestDefaultEventCodec {
+
+    @Test(groups = "fast")
+    public void testJsonIsUnchanged() throws IOException {
+        final DefaultEventCodec codec = new DefaultEventCodec(QueueObjectMapper.get(), EventEncoding.JSON);
+        final TestEvent event = new TestEvent("foo", 12L, new DateTime(2019, 1, 1, 0, 0, DateTimeZone.UTC));
+
+        final String encoded = codec.encode(event);
+        assertEquals(encoded, QueueObjectMapper.get().writeValueAsString(event));
+        assertEquals(codec.decode(encoded, TestEvent.class), event);
+    }
+
+    @Test(groups = "fast")
+    public void testDeflate() throws IOException {
+        final DefaultEventCodec codec = new DefaultEventCodec(QueueObjectMapper.get(), EventEncoding.DEFLATE);
+        final TestEvent event = new TestEvent(Strings.repeat("a-repetitive-payload-", 200), 12L, new DateTime(2019, 1, 1, 0, 0, DateTimeZone.UTC));
+
+        final String encoded = codec.encode(event);
+        assertTrue(encoded.startsWith(DefaultEventCodec.DEFLATE_MARKER));
+        assertTrue(encoded.length() < QueueObjectMapper.get().writeValueAsString(event).length());
+        assertEquals(codec.decode(encoded, TestEvent.class), event);
+    }
+
+    @Test(groups = "fast")
+    public void testMixedRowsCanBeDecoded() throws IOException {
+        final TestEvent event = new TestEvent("bar", 7L, new DateTime(2019, 1, 1, 0, 0, DateTimeZone.UTC));
+        final String json = new DefaultEventCodec(QueueObjectMapper.get(), EventEncoding.JSON).encode(event);
+        final String deflated = new DefaultEventCodec(QueueObjectMapper.get(), EventEncoding.DEFLATE).encode(event);
+
+        // Whatever the configured encoding, old and new rows are decoded
+        for (final EventEncoding encoding : EventEncoding.values()) {
+            final DefaultEventCodec codec = new DefaultEventCodec(QueueObjectMapper.get(), encoding);
+            assertEquals(codec.decode(json, TestEvent.class), event);
+            assertEquals(codec.decode(deflated, TestEvent.class), event);
+            assertEquals(codec.decode(codec.encode(event), TestEvent.class), event);
+        }
+    }
+
+    public static class TestEvent {
+
+        private final String name;
+        private final Long value;
+        private final DateTime date;
+
+        @JsonCreator
+        public TestEvent(@JsonProperty("name") final String name,
+                         @JsonProperty("value") final Long value,
+                         @JsonProperty("date") final DateTime date) {
+            this.name = name;
+            this.value = value;
+            this.date = date;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public Long getValue() {
+            return value;
+        }
+
+        public DateTime getDate() {
+            return date;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            final TestEvent that = (TestEvent) o;
+            return name.equals(that.name) && value.equals(that.value) && date.getMillis() == that.date.getMillis();
+        }
+
+        @Override
+        public int hashCode() {
+            return name.hashCode();
+        }
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2014-2019 Groupon, Inc
+ * Copyright 2014-2019 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.queue.codec;
+
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+
+import org.killbill.queue.QueueObjectMapper;
+import org.killbill.queue.codec.TestDefaultEventCodec.TestEvent;
+import org.testng.annotations.Test;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.type.TypeFactory;
+import com.fasterxml.jackson.databind.util.LRUMap;
+import com.google.common.io.ByteStreams;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotSame;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+
+public class TestEventTypeCache {
+
+    @Test(groups = "fast")
+    public void testCacheAndInvalidate() throws Exception {
+        assertEquals(EventTypeCache.getEventClass(TestEvent.class.getName()), TestEvent.class);
+
+        final ObjectReader reader = EventTypeCache.getReader(QueueObjectMapper.get(), TestEvent.class);
+        final ObjectWriter writer = EventTypeCache.getWriter(QueueObjectMapper.get(), TestEvent.class);
+        assertSame(EventTypeCache.getReader(QueueObjectMapper.get(), TestEvent.class), reader);
+        assertSame(EventTypeCache.getWriter(QueueObjectMapper.get(), TestEvent.class), writer);
+
+        // Unrelated class loader: nothing is removed
+        EventTypeCache.invalidate(new ClassLoader() {});
+        assertSame(EventTypeCache.getReader(QueueObjectMapper.get(), TestEvent.class), reader);
+        assertSame(EventTypeCache.getWriter(QueueObjectMapper.get(), TestEvent.class), writer);
+
+        EventTypeCache.invalidate(TestEvent.class.getClassLoader());
+        assertNotSame(EventTypeCache.getReader(QueueObjectMapper.get(), TestEvent.class), reader);
+        assertNotSame(EventTypeCache.getWriter(QueueObjectMapper.get(), TestEvent.class), writer);
+        assertEquals(EventTypeCache.getEventClass(TestEvent.class.getName()), TestEvent.class);
+    }
+
+    @Test(groups = "fast")
+    public void testClassLoaderIsNotRetained() throws Exception {
+        final WeakReference<ClassLoader> classLoaderRef = cacheClassFromThrowAwayClassLoader();
+        for (int i = 0; i < 50 && classLoaderRef.get() != null; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        assertNull(classLoaderRef.get());
+    }
+
+    private WeakReference<ClassLoader> cacheClassFromThrowAwayClassLoader() throws Exception {
+        final ClassLoader classLoader = new SingleClassLoader(TestEvent.class);
+        final Class<?> clazz = classLoader.loadClass(TestEvent.class.getName());
+        assertNotSame(clazz, TestEvent.class);
+
+        // Jackson's own caches retain the classes seen by an ObjectMapper (and the default TypeFactory is shared): use dedicated ones
+        final ObjectMapper objectMapper = QueueObjectMapper.get(new JsonFactory());
+        objectMapper.setTypeFactory(TypeFactory.defaultInstance().withCache(new LRUMap<Object, JavaType>(16, 200)));
+        final String json = EventTypeCache.getWriter(objectMapper, clazz).writeValueAsString(EventTypeCache.getReader(objectMapper, clazz).readValue("{\"name\":\"foo\",\"value\":12}"));
+        assertEquals(json, "{\"name\":\"foo\",\"value\":12,\"date\":null}");
+
+        return new WeakReference<ClassLoader>(classLoader);
+    }
+
+    // Defines its own copy of a single class (as a plugin class loader would), delegating everything else to the parent
+    private static final class SingleClassLoader extends ClassLoader {
+
+        private final String className;
+
+        private SingleClassLoader(final Class<?> clazz) {
+            super(clazz.getClassLoader());
+            this.className = clazz.getName();
+        }
+
+        @Override
+        protected Class<?> loadClass(final String name, final boolean resolve) throws ClassNotFoundException {
+            if (!className.equals(name)) {
+                return super.loadClass(name, resolve);
+            }
+
+            synchronized (getClassLoadingLock(name)) {
+                Class<?> clazz = findLoadedClass(name);
+                if (clazz == null) {
+                    final byte[] bytes;
+                    try {
+                        bytes = ByteStreams.toByteArray(getParent().getResourceAsStream(name.replace('.', '/') + ".class"));
+                    } catch (final IOException e) {
+                        throw new ClassNotFoundException(name, e);
+                    }
+                    clazz = defineClass(name, bytes, 0, bytes.length);
+                }
+                return clazz;
+            }
+        }
+    }
+}
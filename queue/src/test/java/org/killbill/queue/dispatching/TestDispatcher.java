@@ -24,22 +24,30 @@ import org.joda.time.DateTime;
 import org.killbill.bus.api.BusEvent;
 import org.killbill.bus.api.PersistentBusConfig;
 import org.killbill.bus.dao.BusEventModelDao;
+import org.killbill.queue.api.PersistentQueueConfig.DispatchMode;
 import org.killbill.queue.api.PersistentQueueEntryLifecycleState;
 import org.killbill.queue.api.QueueEvent;
 import org.skife.config.TimeSpan;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.testng.Assert;
 import org.testng.annotations.BeforeClass;
 import org.testng.annotations.Test;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class TestDispatcher {
 
@@ -82,6 +90,119 @@ public class TestDispatcher {
         });
     }
 
+    @Test(groups = "fast")
+    public void testKeyPartitionedDispatchKeepsOrderPerKey() throws Exception {
+        final int nbKeys = 10;
+        final int nbEntriesPerKey = 50;
+
+        final OrderRecordingCallableCallback orderCallback = new OrderRecordingCallableCallback();
+        final Dispatcher<BusEvent, BusEventModelDao> partitionedDispatcher = new Dispatcher<>(1, createConfig(DispatchMode.KEY_PARTITIONED, 4), 5, TimeUnit.MINUTES, new LinkedBlockingQueue<Runnable>(QUEUE_SIZE), Executors.defaultThreadFactory(), new BlockingRejectionExecutionHandler(),
+                                                                                              null, orderCallback, null);
+        partitionedDispatcher.start();
+        try {
+            for (int i = 0; i < nbEntriesPerKey; i++) {
+                for (long key = 0; key < nbKeys; key++) {
+                    partitionedDispatcher.dispatch(new BusEventModelDao("owner", new DateTime(), String.class.getName(), String.valueOf(i), UUID.randomUUID(), key, 1L));
+                }
+            }
+
+            Awaitility.await().atMost(5, TimeUnit.SECONDS).until(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    return orderCallback.getNbProcessed() == nbKeys * nbEntriesPerKey;
+                }
+            });
+
+            for (long key = 0; key < nbKeys; key++) {
+                final List<Integer> sequence = orderCallback.getProcessed(key);
+                Assert.assertEquals(sequence.size(), nbEntriesPerKey);
+                for (int i = 0; i < nbEntriesPerKey; i++) {
+                    Assert.assertEquals(sequence.get(i), (Integer) i);
+                }
+            }
+        } finally {
+            partitionedDispatcher.stop();
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testKeyPartitionedStopSharesDeadline() throws Exception {
+        final int nbLanes = 4;
+
+        final CountDownLatch started = new CountDownLatch(nbLanes);
+        final CountDownLatch release = new CountDownLatch(1);
+        final OrderRecordingCallableCallback blockingCallback = new OrderRecordingCallableCallback() {
+            @Override
+            public void dispatch(final BusEvent event, final BusEventModelDao modelDao) throws Exception {
+                started.countDown();
+                release.await(30, TimeUnit.SECONDS);
+            }
+        };
+        final Dispatcher<BusEvent, BusEventModelDao> partitionedDispatcher = new Dispatcher<>(1, createConfig(DispatchMode.KEY_PARTITIONED, nbLanes), 5, TimeUnit.MINUTES, new LinkedBlockingQueue<Runnable>(QUEUE_SIZE), Executors.defaultThreadFactory(), new BlockingRejectionExecutionHandler(),
+                                                                                              null, blockingCallback, null);
+        partitionedDispatcher.start();
+        try {
+            // Keep every lane busy (lanes are picked by searchKey1)
+            long key = 0;
+            while (started.getCount() > 0 && key < 1000) {
+                partitionedDispatcher.dispatch(new BusEventModelDao("owner", new DateTime(), String.class.getName(), "0", UUID.randomUUID(), key++, 1L));
+                started.await(10, TimeUnit.MILLISECONDS);
+            }
+            Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+
+            final long ini = System.nanoTime();
+            partitionedDispatcher.stop();
+            final long stopTimeMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - ini);
+            // One 5s deadline for all the lanes, instead of 5s per lane
+            Assert.assertTrue(stopTimeMs < 10000, "Stop took " + stopTimeMs + "ms");
+        } finally {
+            release.countDown();
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testVirtualThreadsDispatchIsBounded() throws Exception {
+        final int nbEntries = 50;
+        final int maxConcurrency = 3;
+
+        final AtomicInteger nbRunning = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        final OrderRecordingCallableCallback concurrencyCallback = new OrderRecordingCallableCallback() {
+            @Override
+            public void dispatch(final BusEvent event, final BusEventModelDao modelDao) throws Exception {
+                final int running = nbRunning.incrementAndGet();
+                try {
+                    int curMax = maxRunning.get();
+                    while (running > curMax && !maxRunning.compareAndSet(curMax, running)) {
+                        curMax = maxRunning.get();
+                    }
+                    super.dispatch(event, modelDao);
+                    Thread.sleep(5);
+                } finally {
+                    nbRunning.decrementAndGet();
+                }
+            }
+        };
+        final Dispatcher<BusEvent, BusEventModelDao> virtualThreadsDispatcher = new Dispatcher<>(1, createConfig(DispatchMode.VIRTUAL_THREADS, 1, maxConcurrency), 5, TimeUnit.MINUTES, new LinkedBlockingQueue<Runnable>(QUEUE_SIZE), Executors.defaultThreadFactory(), new BlockingRejectionExecutionHandler(),
+                                                                                                 null, concurrencyCallback, null);
+        virtualThreadsDispatcher.start();
+        try {
+            for (int i = 0; i < nbEntries; i++) {
+                virtualThreadsDispatcher.dispatch(new BusEventModelDao("owner", new DateTime(), String.class.getName(), String.valueOf(i), UUID.randomUUID(), (long) i, 1L));
+            }
+
+            Awaitility.await().atMost(5, TimeUnit.SECONDS).until(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    return concurrencyCallback.getNbProcessed() == nbEntries;
+                }
+            });
+            Assert.assertTrue(maxRunning.get() <= maxConcurrency);
+        } finally {
+            virtualThreadsDispatcher.stop();
+        }
+    }
+
     private void dispatch(final int i) {
         final BusEventModelDao e1 = new BusEventModelDao("owner", new DateTime(), String.class.getName(), "e-" + i, UUID.randomUUID(), 1L, 1L);
         dispatcher.dispatch(e1);
@@ -162,10 +283,55 @@ public class TestDispatcher {
         }
 
         @Override
-        public void updateRetriedEvents(final BusEventModelDao updatedEntry) {
+        public void updateRetriedEvents(final Iterable<BusEventModelDao> updatedEntries) {
+
+        }
+
+    }
+
+    private static class OrderRecordingCallableCallback implements CallableCallback<BusEvent, BusEventModelDao> {
+
+        private final Map<Long, List<Integer>> processedPerKey = new ConcurrentHashMap<Long, List<Integer>>();
+        private final AtomicInteger nbProcessed = new AtomicInteger();
+
+        public int getNbProcessed() {
+            return nbProcessed.get();
+        }
+
+        public List<Integer> getProcessed(final Long key) {
+            return processedPerKey.get(key);
+        }
+
+        @Override
+        public BusEvent deserialize(final BusEventModelDao modelDao) {
+            return new TestEvent(modelDao.getEventJson(), modelDao.getSearchKey1(), modelDao.getSearchKey2(), modelDao.getUserToken());
+        }
+
+        @Override
+        public void dispatch(final BusEvent event, final BusEventModelDao modelDao) throws Exception {
+            List<Integer> processed = processedPerKey.get(event.getSearchKey1());
+            if (processed == null) {
+                processedPerKey.putIfAbsent(event.getSearchKey1(), Collections.synchronizedList(new ArrayList<Integer>()));
+                processed = processedPerKey.get(event.getSearchKey1());
+            }
+            // Give a chance to other entries of the same key to run concurrently if they were not serialized
+            Thread.sleep(1);
+            processed.add(Integer.valueOf(((TestEvent) event).getJson()));
+            nbProcessed.incrementAndGet();
+        }
+
+        @Override
+        public BusEventModelDao buildEntry(final BusEventModelDao modelDao, final DateTime now, final PersistentQueueEntryLifecycleState newState, final long newErrorCount) {
+            return null;
+        }
 
+        @Override
+        public void moveCompletedOrFailedEvents(final Iterable<BusEventModelDao> entries) {
         }
 
+        @Override
+        public void updateRetriedEvents(final Iterable<BusEventModelDao> updatedEntries) {
+        }
     }
 
     public static class TestEvent implements BusEvent {
@@ -207,6 +373,14 @@ public class TestDispatcher {
     }
 
     private PersistentBusConfig createConfig() {
+        return createConfig(DispatchMode.POOL, 1);
+    }
+
+    private PersistentBusConfig createConfig(final DispatchMode dispatchMode, final int maxDispatchThreads) {
+        return createConfig(dispatchMode, maxDispatchThreads, 1000);
+    }
+
+    private PersistentBusConfig createConfig(final DispatchMode dispatchMode, final int maxDispatchThreads, final int maxDispatchConcurrency) {
         return new PersistentBusConfig() {
             @Override
             public boolean isInMemory() {
@@ -255,7 +429,7 @@ public class TestDispatcher {
 
             @Override
             public int geMaxDispatchThreads() {
-                return 1;
+                return maxDispatchThreads;
             }
 
             @Override
@@ -297,6 +471,16 @@ public class TestDispatcher {
             public TimeSpan getReapSchedule() {
                 return new TimeSpan(3, TimeUnit.MINUTES);
             }
+
+            @Override
+            public DispatchMode getDispatchMode() {
+                return dispatchMode;
+            }
+
+            @Override
+            public int getMaxDispatchConcurrency() {
+                return maxDispatchConcurrency;
+            }
         };
     }
 }
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2014-2019 Groupon, Inc
+ * Copyright 2014-2019 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.queue.wakeup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.killbill.commons.jdbi.notification.DatabaseTransactionEvent;
+import org.killbill.commons.jdbi.notification.DatabaseTransactionEventType;
+import org.killbill.commons.jdbi.notification.DatabaseTransactionNotificationApi;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class TestInProcessQueueWakeupSource {
+
+    private DatabaseTransactionNotificationApi databaseTransactionNotificationApi;
+    private InProcessQueueWakeupSource wakeupSource;
+
+    @BeforeMethod(groups = "fast")
+    public void beforeMethod() {
+        databaseTransactionNotificationApi = new DatabaseTransactionNotificationApi();
+        wakeupSource = new InProcessQueueWakeupSource(databaseTransactionNotificationApi);
+        wakeupSource.start();
+    }
+
+    @Test(groups = "fast")
+    public void testSignalOnCommit() throws InterruptedException {
+        assertFalse(wakeupSource.awaitWork(10, TimeUnit.MILLISECONDS));
+
+        wakeupSource.onEntryInsertedFromTransaction(null);
+        // Not committed yet
+        assertFalse(wakeupSource.awaitWork(10, TimeUnit.MILLISECONDS));
+
+        databaseTransactionNotificationApi.dispatchNotification(new DatabaseTransactionEvent(DatabaseTransactionEventType.COMMIT));
+        assertTrue(wakeupSource.awaitWork(10, TimeUnit.MILLISECONDS));
+        // Signal has been consumed
+        assertFalse(wakeupSource.awaitWork(10, TimeUnit.MILLISECONDS));
+
+        // Commit of a transaction which did not insert any entry
+        databaseTransactionNotificationApi.dispatchNotification(new DatabaseTransactionEvent(DatabaseTransactionEventType.COMMIT));
+        assertFalse(wakeupSource.awaitWork(10, TimeUnit.MILLISECONDS));
+    }
+
+    @Test(groups = "fast")
+    public void testNoSignalOnRollback() throws InterruptedException {
+        wakeupSource.onEntryInsertedFromTransaction(null);
+        databaseTransactionNotificationApi.dispatchNotification(new DatabaseTransactionEvent(DatabaseTransactionEventType.ROLLBACK));
+        assertFalse(wakeupSource.awaitWork(10, TimeUnit.MILLISECONDS));
+
+        // The rollback cleared the per thread state
+        databaseTransactionNotificationApi.dispatchNotification(new DatabaseTransactionEvent(DatabaseTransactionEventType.COMMIT));
+        assertFalse(wakeupSource.awaitWork(10, TimeUnit.MILLISECONDS));
+    }
+
+    @Test(groups = "fast")
+    public void testWakeupFromAnotherThread() throws InterruptedException {
+        final Thread committer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                wakeupSource.onEntryInsertedFromTransaction(null);
+                databaseTransactionNotificationApi.dispatchNotification(new DatabaseTransactionEvent(DatabaseTransactionEventType.COMMIT));
+            }
+        });
+        committer.start();
+
+        assertTrue(wakeupSource.awaitWork(5, TimeUnit.SECONDS));
+        committer.join();
+    }
+
+    @Test(groups = "fast")
+    public void testSignalWakesUpAllWaiters() throws Exception {
+        final int NB_WAITERS = 3;
+        final CountDownLatch waiting = new CountDownLatch(NB_WAITERS);
+        final ExecutorService executor = Executors.newFixedThreadPool(NB_WAITERS);
+        try {
+            final List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+            for (int i = 0; i < NB_WAITERS; i++) {
+                results.add(executor.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws Exception {
+                        waiting.countDown();
+                        return wakeupSource.awaitWork(5, TimeUnit.SECONDS);
+                    }
+                }));
+            }
+            waiting.await();
+
+            wakeupSource.onEntryInsertedFromTransaction(null);
+            databaseTransactionNotificationApi.dispatchNotification(new DatabaseTransactionEvent(DatabaseTransactionEventType.COMMIT));
+
+            // A single commit wakes up all the waiters
+            for (final Future<Boolean> result : results) {
+                assertTrue(result.get(10, TimeUnit.SECONDS));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // The signal was not consumed by the waiters on behalf of this (busy) thread
+        assertTrue(wakeupSource.awaitWork(10, TimeUnit.MILLISECONDS));
+        assertFalse(wakeupSource.awaitWork(10, TimeUnit.MILLISECONDS));
+    }
+
+    @Test(groups = "fast")
+    public void testNoSignalWhenStopped() throws InterruptedException {
+        wakeupSource.stop();
+
+        wakeupSource.onEntryInsertedFromTransaction(null);
+        databaseTransactionNotificationApi.dispatchNotification(new DatabaseTransactionEvent(DatabaseTransactionEventType.COMMIT));
+        assertFalse(wakeupSource.awaitWork(10, TimeUnit.MILLISECONDS));
+    }
+}